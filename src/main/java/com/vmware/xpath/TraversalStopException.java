@@ -33,6 +33,9 @@
 package com.vmware.xpath;
 
 /**
+ * Thrown by a visitor to be visited no more. The traversal still selects all the nodes of the Xpath, and returns them:
+ * only a {@link VisitResult#STOP} returned by a node visitor cuts the selection short.
+ *
  * @Copyright (c) 2018 VMware, Inc.  All rights reserved
  * @author banerjees
  *
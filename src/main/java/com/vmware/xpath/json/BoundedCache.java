@@ -0,0 +1,123 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.vmware.xpath.json;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded, thread-safe cache, for the hot paths looking entries up from many threads: lookups take no lock. Once
+ * full, adding an entry evicts by the clock algorithm: a hand goes round the entries, sparing those used since it last
+ * passed them and evicting the others, so that entries used once do not keep out those used again and again.
+ *
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+final class BoundedCache<K, V>
+{
+    private static final class Entry<V>
+    {
+        final V value;
+
+        volatile boolean used;
+
+        Entry( V value ) {
+            this.value = value;
+        }
+    }
+
+    private final int maxSize;
+
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Held while evicting; a thread finding it taken leaves the eviction to the holder.
+     */
+    private final ReentrantLock eviction = new ReentrantLock();
+
+    /**
+     * The clock hand, restarting from the first entry once past the last one. Guarded by {@link #eviction}.
+     */
+    private Iterator<Map.Entry<K, Entry<V>>> hand;
+
+    BoundedCache( int maxSize ) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param key
+     * @return the cached value, or null.
+     */
+    V get( K key ) {
+        Entry<V> entry = entries.get( key );
+        if ( entry == null )
+            return null;
+
+        // Read before written, so that entries in steady use are not written to from every thread
+        if ( !entry.used )
+            entry.used = true;
+        return entry.value;
+    }
+
+    void put( K key, V value ) {
+        entries.put( key, new Entry<>( value ) );
+        if ( entries.size() > maxSize && eviction.tryLock() ) {
+            try {
+                evict();
+            } finally {
+                eviction.unlock();
+            }
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private void evict() {
+        // Two rounds at most: the first one clears all the marks it passes
+        for ( int visited = 0, max = 2 * ( entries.size() + 1 ); entries.size() > maxSize && visited < max; visited++ ) {
+            if ( hand == null || !hand.hasNext() )
+                hand = entries.entrySet().iterator();
+            if ( !hand.hasNext() )
+                return;
+
+            Map.Entry<K, Entry<V>> candidate = hand.next();
+            Entry<V> entry = candidate.getValue();
+            if ( entry.used )
+                entry.used = false;
+            else
+                entries.remove( candidate.getKey(), entry );
+        }
+    }
+}
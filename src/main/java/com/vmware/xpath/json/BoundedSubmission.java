@@ -0,0 +1,110 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.vmware.xpath.json;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Hands tasks over to an executor, with at most a given number of them in flight at any time; a task the executor
+ * rejects is run by the caller. Used from a single submitting thread.
+ *
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+final class BoundedSubmission
+{
+    private final Executor executor;
+
+    private final int maxInFlight;
+
+    private final Semaphore inFlight;
+
+    BoundedSubmission( Executor executor, int maxInFlight ) {
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore( maxInFlight );
+    }
+
+    /**
+     * Blocks until the task can be handed over.
+     *
+     * @param task
+     * @throws InterruptedException once the tasks already handed over are done
+     */
+    void submit( Runnable task ) throws InterruptedException {
+        try {
+            inFlight.acquire();
+        } catch ( InterruptedException e ) {
+            drain();
+            throw e;
+        }
+
+        Runnable bounded = () -> {
+            try {
+                task.run();
+            } finally {
+                inFlight.release();
+            }
+        };
+        try {
+            executor.execute( bounded );
+        } catch ( RejectedExecutionException e ) {
+            bounded.run();
+        }
+    }
+
+    /**
+     * Blocks until all the tasks handed over are done: once all the permits are back, they are.
+     *
+     * @throws InterruptedException once the tasks handed over are done all the same
+     */
+    void awaitAll() throws InterruptedException {
+        try {
+            inFlight.acquire( maxInFlight );
+        } catch ( InterruptedException e ) {
+            drain();
+            throw e;
+        }
+        inFlight.release( maxInFlight );
+    }
+
+    /**
+     * The tasks in flight may use what the caller releases once interrupted, such as an open file: they are waited for.
+     */
+    private void drain() {
+        inFlight.acquireUninterruptibly( maxInFlight );
+        inFlight.release( maxInFlight );
+        // The InterruptedException rethrown stands for the interrupt
+        Thread.interrupted();
+    }
+}
@@ -0,0 +1,893 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.vmware.xpath.json;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.MissingNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vmware.xpath.VisitResult;
+
+/**
+ * An Xpath parsed once into its list of steps. A compiled Xpath is immutable, and can be evaluated any number of
+ * times, from any number of threads, without paying for the tokenization of the Xpath again.
+ *
+ * @see JsonXpath#compile(String)
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+public final class CompiledXpath
+{
+    /**
+     * How a step selects its nodes, relative to the context node.
+     */
+    public enum Axis {
+        /** '/name' : immediate fields of the context node (or of the objects within a context array) */
+        CHILD,
+        /** '//name' : fields at any depth under the context node */
+        DESCENDANT
+    }
+
+    /**
+     * One location step of the Xpath; i.e. <code>name[predicate]</code> along with its axis.
+     */
+    public static final class Step {
+        private final Axis axis;
+
+        private final String name;
+
+        private final String predicate;
+
+        private final int index;
+
+        /** For positional steps: first position selected; negative when counted back from the end of the array */
+        private final int from;
+
+        /** For positional steps: position after the last one selected, or Integer.MAX_VALUE for the end of the array */
+        private final int to;
+
+        private final Predicate<JsonNode> filter;
+
+        Step( Axis axis, String name, String predicate, int index, Predicate<JsonNode> filter ) {
+            this( axis, name, predicate, index, 0, Integer.MAX_VALUE, filter );
+        }
+
+        Step( Axis axis, String name, String predicate, int index, int from, int to, Predicate<JsonNode> filter ) {
+            this.axis = axis;
+            this.name = name;
+            this.predicate = predicate;
+            this.index = index;
+            this.from = from;
+            this.to = to;
+            this.filter = filter;
+        }
+
+        public Axis getAxis() {
+            return axis;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the filter expression within the [], or an empty string if the step has no filter.
+         */
+        public String getPredicate() {
+            return predicate;
+        }
+
+        public boolean hasPredicate() {
+            return !predicate.isEmpty();
+        }
+
+        /**
+         * @return the positional index for steps like <code>name[3]</code>, or -1 when the step is not positional.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * Positional steps, like <code>name[3]</code>, <code>name[last()]</code> or
+         * <code>name[position() &lt; 3]</code>, select elements of an array value by their position, counted from 0;
+         * they never select a value that is not an array.
+         *
+         * @return true if the predicate of the step is positional.
+         */
+        public boolean isPositional() {
+            return hasPredicate() && filter == null;
+        }
+
+        /**
+         * @return true if the step has a filter, which needs the value of each node to select it.
+         */
+        boolean hasFilter() {
+            return filter != null;
+        }
+
+        /**
+         * @return true if the positions selected are counted back from the end of the array, as with last().
+         */
+        boolean isFromEnd() {
+            return from < 0;
+        }
+
+        /**
+         * @param size of the array value
+         * @return the position of the first element selected.
+         */
+        int first( int size ) {
+            return Math.max( 0, from < 0 ? size + from : from );
+        }
+
+        /**
+         * @param size of the array value
+         * @return the position after the last element selected.
+         */
+        int end( int size ) {
+            return Math.min( size, to );
+        }
+
+        /**
+         * @param value a field value, not expanded into its elements
+         * @return true if the step selects the value as a whole.
+         */
+        boolean acceptValue( JsonNode value ) {
+            return !isPositional() && accept( value );
+        }
+
+        /**
+         * @param value a field value, or an element of an array field value
+         * @param position of the element within the array, or -1 for a field value
+         * @param size of the array
+         * @return true if the step selects the value.
+         */
+        boolean accept( JsonNode value, int position, int size ) {
+            if ( position < 0 )
+                return acceptValue( value );
+            return position >= first( size ) && position < end( size ) && accept( value );
+        }
+
+        /**
+         * @param value
+         * @return true if the step has no filter, or if its filter accepts the value.
+         */
+        boolean accept( JsonNode value ) {
+            return filter == null || filter.test( value );
+        }
+
+        /**
+         * Same as {@link #acceptValue(JsonNode)}, for a node of any model.
+         */
+        <N> boolean acceptValue( JsonTreeAdapter<N> adapter, N value ) {
+            return !isPositional() && accept( adapter, value );
+        }
+
+        /**
+         * Same as {@link #accept(JsonNode)}, for a node of any model. Native filters run on the node through its
+         * adapter; the others, on a Jackson 1 copy of it.
+         */
+        <N> boolean accept( JsonTreeAdapter<N> adapter, N value ) {
+            if ( filter == null )
+                return true;
+            if ( value instanceof JsonNode )
+                return filter.test( (JsonNode) value );
+            if ( filter instanceof TreePredicate )
+                return ( (TreePredicate) filter ).test( adapter, value );
+            return filter.test( adapter.toJackson1( value ) );
+        }
+
+        @Override
+        public String toString() {
+            return ( axis == Axis.DESCENDANT ? "//" : "/" ) + name + ( hasPredicate() ? "[" + predicate + "]" : "" );
+        }
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger( JsonXpath.class );
+
+    private static final Pattern LAST = Pattern.compile( "\\s*last\\(\\s*\\)\\s*" );
+
+    private static final Pattern POSITION = Pattern.compile( "\\s*position\\(\\s*\\)\\s*(<=|>=|<|>|=)\\s*(\\d+)\\s*" );
+
+    private final String xpath;
+
+    private final List<Step> steps;
+
+    private CompiledXpath( String xpath, List<Step> steps ) {
+        this.xpath = xpath;
+        this.steps = Collections.unmodifiableList( steps );
+    }
+
+    /**
+     * Tokenizes the Xpath into its steps. A '/' within a [] filter, or within a quoted string, does not start a new
+     * step.
+     *
+     * @param xpath
+     * @return
+     */
+    static CompiledXpath parse( String xpath ) {
+        if ( xpath == null || xpath.isEmpty() || xpath.equals( "/" ) || xpath.equals( "//" ) )
+            throw new IllegalArgumentException( "Invalid JPath: " + xpath );
+
+        List<Step> steps = new ArrayList<>();
+
+        Axis axis = Axis.CHILD;
+        int pos = 0;
+        if ( xpath.startsWith( "//" ) ) {
+            axis = Axis.DESCENDANT;
+            pos = 2;
+        } else if ( xpath.startsWith( "/" ) ) {
+            pos = 1;
+        }
+
+        while ( true ) {
+            int end = endOfStep( xpath, pos );
+            String stepStr = xpath.substring( pos, end );
+            if ( stepStr.isEmpty() )
+                throw new IllegalArgumentException( "Invalid JPath: " + xpath );
+
+            steps.add( parseStep( axis, stepStr ) );
+
+            if ( end == xpath.length() )
+                break;
+
+            if ( xpath.startsWith( "//", end ) ) {
+                axis = Axis.DESCENDANT;
+                pos = end + 2;
+            } else {
+                axis = Axis.CHILD;
+                pos = end + 1;
+            }
+        }
+
+        return new CompiledXpath( xpath, steps );
+    }
+
+    private static int endOfStep( String xpath, int from ) {
+        int depth = 0;
+        char quote = 0;
+        for ( int i = from; i < xpath.length(); i++ ) {
+            char c = xpath.charAt( i );
+            if ( quote != 0 ) {
+                if ( c == '\\' )
+                    i++;
+                else if ( c == quote )
+                    quote = 0;
+            } else if ( c == '\'' || c == '"' ) {
+                quote = c;
+            } else if ( c == '[' ) {
+                depth++;
+            } else if ( c == ']' ) {
+                depth--;
+            } else if ( c == '/' && depth == 0 ) {
+                return i;
+            }
+        }
+        return xpath.length();
+    }
+
+    private static Step parseStep( Axis axis, String stepStr ) {
+        if ( !stepStr.contains( "[" ) )
+            return new Step( axis, stepStr, "", -1, null );
+
+        if ( !stepStr.endsWith( "]" ) ) {
+            throw new IllegalArgumentException( "Incorrect XPath with filter: " + stepStr );
+        }
+
+        String name = stepStr.substring( 0, stepStr.indexOf( '[' ) );
+        String predicate = stepStr.substring( stepStr.indexOf( '[' ) + 1, stepStr.lastIndexOf( ']' ) );
+
+        // Positional predicates are answered straight off the array, without any filter
+        int index = parseIndex( stepStr, predicate );
+        if ( index >= 0 )
+            return new Step( axis, name, predicate, index, index, index + 1, null );
+        if ( LAST.matcher( predicate ).matches() )
+            return new Step( axis, name, predicate, -1, -1, Integer.MAX_VALUE, null );
+        Matcher position = POSITION.matcher( predicate );
+        if ( position.matches() ) {
+            int k = parsePosition( stepStr, position.group( 2 ) );
+            switch ( position.group( 1 ) ) {
+            case "<":
+                return new Step( axis, name, predicate, -1, 0, k, null );
+            case "<=":
+                return new Step( axis, name, predicate, -1, 0, k + 1, null );
+            case ">":
+                return new Step( axis, name, predicate, -1, k + 1, Integer.MAX_VALUE, null );
+            case ">=":
+                return new Step( axis, name, predicate, -1, k, Integer.MAX_VALUE, null );
+            default:
+                return new Step( axis, name, predicate, -1, k, k + 1, null );
+            }
+        }
+
+        return new Step( axis, name, predicate, -1, predicate.isEmpty() ? null : PredicateEngines.compile( predicate ) );
+    }
+
+    private static int parseIndex( String stepStr, String predicate ) {
+        String index = predicate.trim();
+        if ( index.isEmpty() )
+            return -1;
+        for ( int i = 0; i < index.length(); i++ ) {
+            if ( !Character.isDigit( index.charAt( i ) ) )
+                return -1;
+        }
+        return parsePosition( stepStr, index );
+    }
+
+    /**
+     * Positions end a range one past them, which must still be an int.
+     *
+     * @param stepStr
+     * @param digits
+     * @return the position.
+     */
+    private static int parsePosition( String stepStr, String digits ) {
+        try {
+            int position = Integer.parseInt( digits );
+            if ( position < Integer.MAX_VALUE )
+                return position;
+        } catch ( NumberFormatException e ) {
+            // Out of range
+        }
+        throw new IllegalArgumentException( "Incorrect XPath with position out of range: " + stepStr );
+    }
+
+    /**
+     * @return the steps of this Xpath, in evaluation order.
+     */
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    /**
+     * Best-fit evaluation, same as {@link JsonXpath#find(JsonNode, String)}. A child step looks the field up in the
+     * context object, or in the first object of a context array that has it; only a '//' step searches at any depth.
+     *
+     * @param tree
+     * @return The first occurrence of the JsonNode represented by the Xpath, or a MissingNode.
+     */
+    public JsonNode find( JsonNode tree ) {
+        JsonNode res = find( JsonTreeAdapters.JACKSON1, tree );
+        return res != null ? res : MissingNode.getInstance();
+    }
+
+    /**
+     * Same as {@link #find(JsonNode)}, on a tree of any model.
+     *
+     * @param adapter
+     * @param tree
+     * @return The first occurrence of the node represented by the Xpath, or null.
+     */
+    <N> N find( JsonTreeAdapter<N> adapter, N tree ) {
+        if ( tree == null )
+            return null;
+
+        N res = tree;
+        for ( Step step : steps ) {
+            res = step.axis == Axis.CHILD ? child( adapter, res, step.name ) : findValue( adapter, res, step.name );
+            if ( res == null )
+                return null;
+
+            if ( step.isPositional() ) {
+                if ( !adapter.isArray( res ) )
+                    return null;
+                int size = adapter.size( res );
+                if ( step.first( size ) >= step.end( size ) )
+                    return null;
+                res = adapter.get( res, step.first( size ) );
+            }
+        }
+        return res;
+    }
+
+    private static <N> N child( JsonTreeAdapter<N> adapter, N context, String name ) {
+        if ( adapter.isObject( context ) )
+            return adapter.get( context, name );
+
+        if ( adapter.isArray( context ) ) {
+            for ( int i = 0, size = adapter.size( context ); i < size; i++ ) {
+                N element = adapter.get( context, i );
+                N value = adapter.isObject( element ) ? adapter.get( element, name ) : null;
+                if ( value != null )
+                    return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Same as Jackson's findValue(): the first field of that name, depth-first.
+     */
+    private static <N> N findValue( JsonTreeAdapter<N> adapter, N node, String name ) {
+        if ( adapter.isObject( node ) ) {
+            for ( Iterator<Entry<String, N>> itr = adapter.fields( node ); itr.hasNext(); ) {
+                Entry<String, N> field = itr.next();
+                if ( name.equals( field.getKey() ) )
+                    return field.getValue();
+                N value = findValue( adapter, field.getValue(), name );
+                if ( value != null )
+                    return value;
+            }
+        } else if ( adapter.isArray( node ) ) {
+            for ( int i = 0, size = adapter.size( node ); i < size; i++ ) {
+                N value = findValue( adapter, adapter.get( node, i ), name );
+                if ( value != null )
+                    return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stops at the first node selected.
+     *
+     * @param tree
+     * @return true if this Xpath selects a node of the tree. A field holding an empty array exists, when the last step
+     *         has no predicate.
+     */
+    public boolean exists( JsonNode tree ) {
+        return new XpathIterator( steps, tree, true ).hasNext();
+    }
+
+    /**
+     * @param tree
+     * @return all the nodes selected by this Xpath, in document order.
+     */
+    public List<JsonNode> findAll( JsonNode tree ) {
+        List<JsonNode> ret = new ArrayList<>();
+        iterator( tree ).forEachRemaining( ret::add );
+        return ret;
+    }
+
+    /**
+     * Lazy evaluation: the tree is only traversed as far as needed to produce the next node. The tree must not be
+     * modified while iterating.
+     *
+     * @param tree
+     * @return the nodes selected by this Xpath, in document order.
+     */
+    public Iterator<JsonNode> iterator( JsonNode tree ) {
+        return new XpathIterator( steps, tree );
+    }
+
+    /**
+     * Lazy evaluation, as a Stream; short-circuiting operations such as findFirst(), limit(n) or anyMatch() stop
+     * the traversal as soon as they are satisfied.
+     *
+     * @param tree
+     * @return the nodes selected by this Xpath, in document order.
+     */
+    public Stream<JsonNode> stream( JsonNode tree ) {
+        return StreamSupport.stream( Spliterators.spliteratorUnknownSize( iterator( tree ), Spliterator.ORDERED | Spliterator.NONNULL ), false );
+    }
+
+    /**
+     * Traverses the nodes given by this Xpath, and lets the visitor modify the source JSON tree.
+     *
+     * @param tree
+     * @param visitor
+     * @return all the nodes selected by this Xpath, in document order.
+     */
+    public List<JsonNode> update( JsonNode tree, JsonXpathVisitor visitor ) {
+        return traverse( tree, JsonXpathNodeVisitor.of( visitor ) );
+    }
+
+    /**
+     * Same as {@link #update(JsonNode, JsonXpathVisitor)} on the indexed tree; descendant steps are looked up in the
+     * index instead of walking the tree.
+     *
+     * @param index
+     * @param visitor
+     * @return all the nodes selected by this Xpath, in document order.
+     */
+    public List<JsonNode> update( JsonXpathIndex index, JsonXpathVisitor visitor ) {
+        return traverse( index, JsonXpathNodeVisitor.of( visitor ) );
+    }
+
+    /**
+     * Traverses the nodes given by this Xpath, as steered by the visitor: the nodes it skips the subtree of are not
+     * evaluated any further, and the traversal ends as soon as it returns STOP.
+     *
+     * @param tree
+     * @param visitor may be null, to only select
+     * @return the nodes selected by this Xpath until the traversal ended, in document order.
+     */
+    public List<JsonNode> traverse( JsonNode tree, JsonXpathNodeVisitor visitor ) {
+        LOG.debug( "XPath: {}", xpath );
+        return evaluate( tree, 0, visitor, null );
+    }
+
+    /**
+     * Same as {@link #traverse(JsonNode, JsonXpathNodeVisitor)} on the indexed tree.
+     *
+     * @param index
+     * @param visitor may be null, to only select
+     * @return the nodes selected by this Xpath until the traversal ended, in document order.
+     */
+    public List<JsonNode> traverse( JsonXpathIndex index, JsonXpathNodeVisitor visitor ) {
+        LOG.debug( "XPath: {}", xpath );
+        return evaluate( index.getRoot(), 0, visitor, index );
+    }
+
+    /**
+     * @param index looked up for the descendant steps, and kept up to date with the changes made by the visitor, when
+     *            not null
+     */
+    List<JsonNode> evaluate( JsonNode tree, int stepIndex, JsonXpathNodeVisitor visitor, JsonXpathIndex index ) {
+        ArrayList<JsonNode> ret = new ArrayList<JsonNode>();
+        new Traversal<>( JsonTreeAdapters.JACKSON1, visits( visitor, mutator( index ) ), index ).evaluate( tree, "", stepIndex, ret );
+        return ret;
+    }
+
+    /**
+     * Same evaluation on a tree of any model.
+     *
+     * @param adapter
+     * @param tree
+     * @param visits may be null, to only select
+     * @return the nodes selected by this Xpath until the traversal ended, in document order.
+     */
+    <N> List<N> evaluate( JsonTreeAdapter<N> adapter, N tree, Visits<N> visits ) {
+        ArrayList<N> ret = new ArrayList<>();
+        new Traversal<>( adapter, visits, null ).evaluate( tree, "", 0, ret );
+        return ret;
+    }
+
+    /**
+     * What a traversal hands its nodes to: those selected by the intermediate steps as it enters them, those selected
+     * by the last step once they all are.
+     *
+     * @param <N> the node type of the model
+     */
+    interface Visits<N>
+    {
+        /**
+         * @return SKIP_SUBTREE to select nothing below the node, STOP to end the traversal.
+         */
+        VisitResult enter( Step step, N parent, N node );
+
+        /**
+         * @return STOP to end the traversal.
+         */
+        VisitResult visitAll( List<N> parents, List<N> nodes );
+    }
+
+    private static Visits<JsonNode> visits( JsonXpathNodeVisitor visitor, JsonTreeMutator mutator ) {
+        if ( visitor == null )
+            return null;
+
+        return new Visits<JsonNode>() {
+            @Override
+            public VisitResult enter( Step step, JsonNode parent, JsonNode node ) {
+                return visitor.enter( step, parent, node );
+            }
+
+            @Override
+            public VisitResult visitAll( List<JsonNode> parents, List<JsonNode> nodes ) {
+                return visitor.visitAll( parents, nodes, mutator );
+            }
+        };
+    }
+
+    /**
+     * The state of one evaluation: the nodes selected by each step, and their parents, in lists reused for every
+     * context node of the step. Nodes are only ever compared by identity; the structural equals() / hashCode() of
+     * Jackson containers would walk whole subtrees.
+     *
+     * When a {@link JsonXpathTracer} is installed as the evaluation starts, the nodes are selected by the traced
+     * methods instead, which also keep the path of each selected node; the untraced selection is left as is. Tracer
+     * events hold Jackson 1 nodes: the nodes of other models are converted for them.
+     *
+     * @param <N> the node type of the model
+     */
+    private final class Traversal<N>
+    {
+        private final JsonTreeAdapter<N> adapter;
+        private final Visits<N> visits;
+        private final JsonXpathIndex index;
+        private final JsonXpathTracer tracer;
+
+        /** Set once the visitor returned STOP */
+        private boolean stopped;
+
+        private final List<ArrayList<N>> values = new ArrayList<>( steps.size() );
+        private final List<ArrayList<N>> parents = new ArrayList<>( steps.size() );
+
+        /** The paths of the selected nodes, only kept when tracing */
+        private final List<ArrayList<String>> paths;
+
+        /** The fields found in the index, before the filter of the step */
+        private final List<JsonNode> indexedValues = new ArrayList<>();
+        private final List<JsonNode> indexedParents = new ArrayList<>();
+
+        /**
+         * @param index only for Jackson 1 trees; may be null
+         */
+        Traversal( JsonTreeAdapter<N> adapter, Visits<N> visits, JsonXpathIndex index ) {
+            this.adapter = adapter;
+            this.visits = visits;
+            this.index = index;
+            this.tracer = JsonXpathTracing.tracer();
+            this.paths = tracer != null ? new ArrayList<>( steps.size() ) : null;
+            for ( int i = 0; i < steps.size(); i++ ) {
+                values.add( new ArrayList<>() );
+                parents.add( new ArrayList<>() );
+                if ( paths != null )
+                    paths.add( new ArrayList<>() );
+            }
+        }
+
+        /**
+         * Selects the nodes of the step on the context node, then evaluates the next step on each of them, unless the
+         * visitor skips it. The nodes selected by the last step are visited, and appended to ret.
+         *
+         * @param path of the context node; only used when tracing
+         */
+        void evaluate( N tree, String path, int stepIndex, ArrayList<N> ret ) {
+            Step step = steps.get( stepIndex );
+            boolean lastStep = stepIndex == steps.size() - 1;
+
+            ArrayList<N> stepValues = lastStep ? ret : values.get( stepIndex );
+            ArrayList<N> stepParents = parents.get( stepIndex );
+            if ( !lastStep )
+                stepValues.clear();
+            stepParents.clear();
+            int start = stepValues.size();
+
+            if ( tracer != null )
+                traceStep( tree, path, stepIndex, stepValues, stepParents );
+            else if ( step.axis == Axis.CHILD )
+                selectChildren( tree, step, stepValues, stepParents );
+            else
+                selectDescendants( tree, step, stepValues, stepParents );
+
+            // Visitors run once the nodes are selected, as they may restructure the containers being walked
+            if ( lastStep ) {
+                if ( visits != null && stepValues.size() > start )
+                    stopped = visits.visitAll( stepParents, stepValues.subList( start, stepValues.size() ) ) == VisitResult.STOP;
+                return;
+            }
+
+            for ( int i = 0; i < stepValues.size() && !stopped; i++ ) {
+                if ( visits != null ) {
+                    VisitResult result = visits.enter( step, stepParents.get( i ), stepValues.get( i ) );
+                    if ( result == VisitResult.STOP ) {
+                        stopped = true;
+                        return;
+                    }
+                    if ( result == VisitResult.SKIP_SUBTREE )
+                        continue;
+                }
+                evaluate( stepValues.get( i ), paths != null ? paths.get( stepIndex ).get( i ) : null, stepIndex + 1, ret );
+            }
+        }
+
+        /**
+         * The field named after the step, of the context object or of each object in the context array.
+         */
+        private void selectChildren( N tree, Step step, ArrayList<N> filteredNodes, ArrayList<N> traverseParents ) {
+            if ( adapter.isObject( tree ) ) {
+                selectChild( tree, step, filteredNodes, traverseParents );
+            } else if ( adapter.isArray( tree ) ) {
+                for ( int i = 0, size = adapter.size( tree ); i < size; i++ )
+                    selectChild( adapter.get( tree, i ), step, filteredNodes, traverseParents );
+            }
+        }
+
+        private void selectChild( N object, Step step, ArrayList<N> filteredNodes, ArrayList<N> traverseParents ) {
+            N fieldValue = adapter.isObject( object ) ? adapter.get( object, step.name ) : null;
+            if ( fieldValue == null )
+                return;
+
+            // Room for all the elements of an array value, rather than growing the lists element by element
+            if ( !step.hasPredicate() && adapter.isArray( fieldValue ) ) {
+                int size = adapter.size( fieldValue );
+                filteredNodes.ensureCapacity( filteredNodes.size() + size );
+                traverseParents.ensureCapacity( traverseParents.size() + size );
+            }
+            select( adapter, object, fieldValue, step, filteredNodes, traverseParents );
+        }
+
+        @SuppressWarnings( "unchecked" )
+        private void selectDescendants( N tree, Step step, List<N> filteredNodes, List<N> traverseParents ) {
+            if ( index != null ) {
+                // Only ever given along with Jackson 1 trees
+                indexedValues.clear();
+                indexedParents.clear();
+                if ( index.findDescendants( (JsonNode) tree, step.name, indexedParents, indexedValues ) ) {
+                    for ( int i = 0; i < indexedValues.size(); i++ )
+                        select( adapter, (N) indexedParents.get( i ), (N) indexedValues.get( i ), step, filteredNodes, traverseParents );
+                    return;
+                }
+            }
+            walkDescendants( adapter, tree, step, filteredNodes, traverseParents );
+        }
+
+        /**
+         * Same selection as {@link #selectChildren} and {@link #selectDescendants}, reporting the step and each of its
+         * candidate nodes to the tracer. Descendants are always walked, for their paths.
+         */
+        private void traceStep( N tree, String path, int stepIndex, List<N> filteredNodes, List<N> traverseParents ) {
+            Step step = steps.get( stepIndex );
+            List<String> stepPaths = paths.get( stepIndex );
+            stepPaths.clear();
+            tracer.trace( new JsonXpathTracer.Event( JsonXpathTracer.Event.Kind.STEP, CompiledXpath.this, stepIndex, path,
+                null, adapter.toJackson1( tree ), true ) );
+
+            if ( step.axis == Axis.DESCENDANT ) {
+                traceDescendants( tree, path, stepIndex, filteredNodes, traverseParents, stepPaths );
+            } else if ( adapter.isObject( tree ) ) {
+                traceChild( tree, path, stepIndex, filteredNodes, traverseParents, stepPaths );
+            } else if ( adapter.isArray( tree ) ) {
+                for ( int i = 0, size = adapter.size( tree ); i < size; i++ )
+                    traceChild( adapter.get( tree, i ), path + "[" + i + "]", stepIndex, filteredNodes, traverseParents, stepPaths );
+            }
+        }
+
+        private void traceChild( N object, String path, int stepIndex, List<N> filteredNodes, List<N> traverseParents,
+            List<String> stepPaths ) {
+            String name = steps.get( stepIndex ).name;
+            N fieldValue = adapter.isObject( object ) ? adapter.get( object, name ) : null;
+            if ( fieldValue != null )
+                traceSelect( object, fieldValue, path + "/" + name, stepIndex, filteredNodes, traverseParents, stepPaths );
+        }
+
+        private void traceDescendants( N node, String path, int stepIndex, List<N> filteredNodes, List<N> traverseParents,
+            List<String> stepPaths ) {
+            String name = steps.get( stepIndex ).name;
+            if ( adapter.isObject( node ) ) {
+                for ( Iterator<Entry<String, N>> itr = adapter.fields( node ); itr.hasNext(); ) {
+                    Entry<String, N> field = itr.next();
+                    String fieldPath = path + "/" + field.getKey();
+
+                    if ( name.equals( field.getKey() ) )
+                        traceSelect( node, field.getValue(), fieldPath, stepIndex, filteredNodes, traverseParents, stepPaths );
+                    else
+                        traceDescendants( field.getValue(), fieldPath, stepIndex, filteredNodes, traverseParents, stepPaths );
+                }
+            } else if ( adapter.isArray( node ) ) {
+                for ( int i = 0, size = adapter.size( node ); i < size; i++ )
+                    traceDescendants( adapter.get( node, i ), path + "[" + i + "]", stepIndex, filteredNodes, traverseParents, stepPaths );
+            }
+        }
+
+        /**
+         * Same as {@link CompiledXpath#select}, tracing the filter outcome of each candidate.
+         */
+        private void traceSelect( N parent, N fieldValue, String path, int stepIndex, List<N> filteredNodes,
+            List<N> traverseParents, List<String> stepPaths ) {
+            Step step = steps.get( stepIndex );
+            if ( adapter.isArray( fieldValue ) ) {
+                int size = adapter.size( fieldValue );
+                for ( int i = step.first( size ), end = step.end( size ); i < end; i++ ) {
+                    N element = adapter.get( fieldValue, i );
+                    traceCandidate( fieldValue, element, path + "[" + i + "]", stepIndex, step.accept( adapter, element ),
+                        filteredNodes, traverseParents, stepPaths );
+                }
+            } else if ( !step.isPositional() ) {
+                traceCandidate( parent, fieldValue, path, stepIndex, step.accept( adapter, fieldValue ), filteredNodes,
+                    traverseParents, stepPaths );
+            }
+        }
+
+        private void traceCandidate( N parent, N node, String path, int stepIndex, boolean accepted, List<N> filteredNodes,
+            List<N> traverseParents, List<String> stepPaths ) {
+            tracer.trace( new JsonXpathTracer.Event( JsonXpathTracer.Event.Kind.CANDIDATE, CompiledXpath.this, stepIndex,
+                path, adapter.toJackson1( parent ), adapter.toJackson1( node ), accepted ) );
+            if ( accepted ) {
+                filteredNodes.add( node );
+                traverseParents.add( parent );
+                stepPaths.add( path );
+            }
+        }
+    }
+
+    /**
+     * Depth-first walk, in document order, selecting every field named after the step. A selected field is not
+     * descended into; all other fields are. This selects the same (parent, value) pairs as JsonNode.findParents and
+     * JsonNode.findValues, but in a single pass, feeding each pair straight into the filter.
+     *
+     * @param node
+     * @param step
+     * @param filteredNodes
+     * @param traverseParents
+     */
+    static void walkDescendants( JsonNode node, Step step, List<JsonNode> filteredNodes, List<JsonNode> traverseParents ) {
+        walkDescendants( JsonTreeAdapters.JACKSON1, node, step, filteredNodes, traverseParents );
+    }
+
+    static <N> void walkDescendants( JsonTreeAdapter<N> adapter, N node, Step step, List<N> filteredNodes, List<N> traverseParents ) {
+        if ( adapter.isObject( node ) ) {
+            for ( Iterator<Entry<String, N>> itr = adapter.fields( node ); itr.hasNext(); ) {
+                Entry<String, N> field = itr.next();
+
+                if ( step.name.equals( field.getKey() ) )
+                    select( adapter, node, field.getValue(), step, filteredNodes, traverseParents );
+                else
+                    walkDescendants( adapter, field.getValue(), step, filteredNodes, traverseParents );
+            }
+        } else if ( adapter.isArray( node ) ) {
+            for ( int i = 0, size = adapter.size( node ); i < size; i++ )
+                walkDescendants( adapter, adapter.get( node, i ), step, filteredNodes, traverseParents );
+        }
+    }
+
+    /**
+     * Applies the filter of the step to a selected field value; each element of an array value is filtered (and
+     * selected) on its own, with the array as its parent.
+     */
+    static void select( JsonNode parent, JsonNode fieldValue, Step step, List<JsonNode> filteredNodes,
+        List<JsonNode> traverseParents ) {
+        select( JsonTreeAdapters.JACKSON1, parent, fieldValue, step, filteredNodes, traverseParents );
+    }
+
+    static <N> void select( JsonTreeAdapter<N> adapter, N parent, N fieldValue, Step step, List<N> filteredNodes,
+        List<N> traverseParents ) {
+        if ( adapter.isArray( fieldValue ) ) {
+            int size = adapter.size( fieldValue );
+            for ( int i = step.first( size ), end = step.end( size ); i < end; i++ ) {
+                N element = adapter.get( fieldValue, i );
+                if ( step.accept( adapter, element ) ) {
+                    filteredNodes.add( element );
+                    traverseParents.add( fieldValue );
+                }
+            }
+        } else if ( step.acceptValue( adapter, fieldValue ) ) {
+            filteredNodes.add( fieldValue );
+            traverseParents.add( parent );
+        }
+    }
+
+    private static JsonTreeMutator mutator( JsonXpathIndex index ) {
+        return index == null ? JsonTreeMutator.direct() : index;
+    }
+
+    @Override
+    public String toString() {
+        return xpath;
+    }
+}
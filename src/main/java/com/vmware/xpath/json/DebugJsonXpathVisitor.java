@@ -72,12 +72,10 @@ public final class DebugJsonXpathVisitor implements JsonXpathVisitor
     public boolean visit(JsonNode parent, JsonNode currentNodeToSelect)
             throws XpathVisitorException, TraversalStopException
     {
+        // Nodes are only rendered when debug logging is on
+        logger.debug(" ==> Found node for Xpath {} : {}", this.xpath, currentNodeToSelect);
         if(isVerbose) {
-            logger.debug( " ==> Found node for Xpath " + this.xpath + " : " + currentNodeToSelect );
-            logger.debug( " ==> Found parent of the node " + parent );
-        } else {
-            logger.debug(" ==> Found node for Xpath "+ this.xpath+ " : "+currentNodeToSelect);
-            logger.debug(" ==> Found parent of the node "+ parent);
+            logger.debug(" ==> Found parent of the node {}", parent);
         }
         return true;
     }
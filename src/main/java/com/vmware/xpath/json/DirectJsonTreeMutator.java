@@ -0,0 +1,96 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.vmware.xpath.json;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * Applies the modifications straight onto the nodes.
+ *
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+final class DirectJsonTreeMutator implements JsonTreeMutator
+{
+    static final JsonTreeMutator INSTANCE = new DirectJsonTreeMutator();
+
+    private DirectJsonTreeMutator() {
+    }
+
+    @Override
+    public JsonNode put( ObjectNode object, String fieldName, JsonNode value ) {
+        return object.put( fieldName, value );
+    }
+
+    @Override
+    public JsonNode remove( ObjectNode object, String fieldName ) {
+        return object.remove( fieldName );
+    }
+
+    @Override
+    public void add( ArrayNode array, JsonNode value ) {
+        array.add( value );
+    }
+
+    @Override
+    public void insert( ArrayNode array, int index, JsonNode value ) {
+        array.insert( index, value );
+    }
+
+    @Override
+    public JsonNode set( ArrayNode array, int index, JsonNode value ) {
+        return array.set( index, value );
+    }
+
+    @Override
+    public JsonNode remove( ArrayNode array, int index ) {
+        return array.remove( index );
+    }
+
+    @Override
+    public void removeAll( ArrayNode array, int[] indexes ) {
+        List<JsonNode> retained = new ArrayList<>( array.size() - indexes.length );
+        for ( int i = 0, next = 0; i < array.size(); i++ ) {
+            if ( next < indexes.length && indexes[next] == i )
+                next++;
+            else
+                retained.add( array.get( i ) );
+        }
+        array.removeAll();
+        array.addAll( retained );
+    }
+}
@@ -0,0 +1,817 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.vmware.xpath.json;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.MissingNode;
+
+/**
+ * Compiles the [] filter of an Xpath step into a Java predicate over the candidate JsonNode, so that the common
+ * filters are evaluated without any script engine.
+ *
+ * The supported language is the subset of JavaScript the filters are written in:
+ * <ul>
+ * <li>'single' or "double" quoted strings, numbers, <code>true</code>, <code>false</code>, <code>null</code></li>
+ * <li><code>value</code>, bound to the candidate node, and the regex metacharacters <code>d s S D b B w W</code></li>
+ * <li><code>== != === !== &lt; &lt;= &gt; &gt;= &amp;&amp; || ! + -</code> and parentheses</li>
+ * <li><code>unDoubleQuote(x)</code></li>
+ * <li>JsonNode methods: <code>get path has size asText getTextValue asInt asLong asDouble asBoolean isXxx</code></li>
+ * <li>String methods: <code>matches startsWith endsWith contains equals equalsIgnoreCase indexOf length trim
+ * toLowerCase toUpperCase isEmpty</code>, and <code>toString</code> on anything</li>
+ * </ul>
+ * Operators follow the loose JavaScript conversions: a JsonNode compares through its JSON text, and a comparison
+ * with a number or a boolean is numeric. Anything else is reported as {@link UnsupportedFilterException}, and is
+ * left to the script engine.
+ *
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+final class FilterCompiler
+{
+    /**
+     * The filter uses a construct the native compiler does not handle.
+     */
+    static final class UnsupportedFilterException extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedFilterException( String message ) {
+            super( message );
+        }
+    }
+
+    /**
+     * A compiled (sub) expression. Constants are folded at compile time.
+     */
+    private static final class Operand
+    {
+        interface Eval {
+            /**
+             * @param value the candidate node: a JsonNode, or an {@link Adapted} node of another model
+             */
+            Object eval( Object value );
+        }
+
+        final Eval eval;
+
+        final boolean constant;
+
+        final boolean bool;
+
+        Operand( Eval eval, boolean constant, boolean bool ) {
+            this.eval = eval;
+            this.constant = constant;
+            this.bool = bool;
+        }
+
+        static Operand constant( Object constantValue ) {
+            return new Operand( value -> constantValue, true, constantValue instanceof Boolean );
+        }
+
+        static Operand of( Eval eval, boolean bool, Operand... operands ) {
+            for ( Operand operand : operands ) {
+                if ( !operand.constant )
+                    return new Operand( eval, false, bool );
+            }
+            Object folded;
+            try {
+                folded = eval.eval( null );
+            } catch ( RuntimeException e ) {
+                // Leave the error to evaluation time, like the script engine would
+                return new Operand( eval, false, bool );
+            }
+            return new Operand( value -> folded, true, bool );
+        }
+    }
+
+    /**
+     * A node of another tree model. Filters walk it through its adapter, and only convert to Jackson 1 the nodes they
+     * read a value from, typically a single field, rather than the whole candidate.
+     */
+    private static final class Adapted
+    {
+        final JsonTreeAdapter<Object> adapter;
+
+        final Object node;
+
+        private Adapted( JsonTreeAdapter<Object> adapter, Object node ) {
+            this.adapter = adapter;
+            this.node = node;
+        }
+
+        @SuppressWarnings( "unchecked" )
+        static Object of( JsonTreeAdapter<?> adapter, Object node ) {
+            return node == null || node instanceof JsonNode ? node : new Adapted( (JsonTreeAdapter<Object>) adapter, node );
+        }
+
+        JsonNode toJackson1() {
+            return adapter.toJackson1( node );
+        }
+    }
+
+    private static final class Token
+    {
+        enum Type {
+            STRING, NUMBER, IDENT, OP, EOF
+        }
+
+        final Type type;
+
+        final String text;
+
+        final Object literal;
+
+        Token( Type type, String text, Object literal ) {
+            this.type = type;
+            this.text = text;
+            this.literal = literal;
+        }
+
+        boolean is( String op ) {
+            return type == Type.OP && text.equals( op );
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    /*
+     * - Regex Metacharacters -
+     *
+     * @see: https://www.w3schools.com/jsref/jsref_obj_regexp.asp
+     */
+    static final Map<String, String> REGEX_METACHARACTERS;
+    static {
+        Map<String, String> metachars = new HashMap<>();
+        for ( String metachar : new String[] { "d", "s", "S", "D", "b", "B", "w", "W" } )
+            metachars.put( metachar, "\\" + metachar );
+        REGEX_METACHARACTERS = Collections.unmodifiableMap( metachars );
+    }
+
+    private static final String[] OPERATORS = { "===", "!==", "==", "!=", "<=", ">=", "&&", "||", "<", ">", "!", "+", "-",
+        "(", ")", ",", "." };
+
+    private static final Set<String> NODE_METHODS = new HashSet<>( Arrays.asList( "get", "path", "has", "size", "asText",
+        "getTextValue", "asInt", "asLong", "asDouble", "asBoolean", "isNull", "isTextual", "isNumber", "isBoolean",
+        "isArray", "isObject", "isMissingNode", "isValueNode", "isContainerNode" ) );
+
+    private static final Set<String> STRING_METHODS = new HashSet<>( Arrays.asList( "matches", "startsWith", "endsWith",
+        "contains", "equals", "equalsIgnoreCase", "indexOf", "length", "trim", "toLowerCase", "toUpperCase", "isEmpty" ) );
+
+    private static final Set<String> BOOLEAN_METHODS = new HashSet<>( Arrays.asList( "has", "asBoolean", "isNull",
+        "isTextual", "isNumber", "isBoolean", "isArray", "isObject", "isMissingNode", "isValueNode", "isContainerNode",
+        "matches", "startsWith", "endsWith", "contains", "equals", "equalsIgnoreCase", "isEmpty" ) );
+
+    private final String source;
+
+    private final List<Token> tokens;
+
+    private int pos;
+
+    private FilterCompiler( String source ) throws UnsupportedFilterException {
+        this.source = source;
+        this.tokens = tokenize( source );
+    }
+
+    /**
+     * @param source the filter expression, without the enclosing []
+     * @return a predicate accepting the nodes for which the filter evaluates to <code>true</code>, on any tree model
+     * @throws UnsupportedFilterException if the filter is not within the natively supported language
+     */
+    static TreePredicate compile( String source ) throws UnsupportedFilterException {
+        FilterCompiler compiler = new FilterCompiler( source );
+        Operand filter = compiler.parseOr();
+        if ( compiler.peek().type != Token.Type.EOF )
+            throw compiler.unsupported( "Unexpected '" + compiler.peek() + "'" );
+
+        /*
+         * Only a boolean filter can be decided natively; the script engine has its own rules for other results.
+         */
+        if ( !filter.bool )
+            throw compiler.unsupported( "Not a boolean expression" );
+
+        Operand.Eval eval = filter.eval;
+        return new TreePredicate() {
+            @Override
+            public boolean test( JsonNode value ) {
+                return Boolean.TRUE.equals( eval.eval( value ) );
+            }
+
+            @Override
+            public <N> boolean test( JsonTreeAdapter<N> adapter, N value ) {
+                return Boolean.TRUE.equals( eval.eval( Adapted.of( adapter, value ) ) );
+            }
+        };
+    }
+
+    /*
+     * ---------------- Parser ----------------
+     */
+
+    /**
+     * As in JavaScript, || and &amp;&amp; evaluate to the operand deciding the outcome, not to a boolean: only boolean
+     * operands make a boolean.
+     */
+    private Operand parseOr() throws UnsupportedFilterException {
+        Operand left = parseAnd();
+        while ( peek().is( "||" ) ) {
+            next();
+            Operand l = left, r = parseAnd();
+            left = Operand.of( value -> {
+                Object a = l.eval.eval( value );
+                return truthy( a ) ? a : r.eval.eval( value );
+            }, l.bool && r.bool, l, r );
+        }
+        return left;
+    }
+
+    private Operand parseAnd() throws UnsupportedFilterException {
+        Operand left = parseEquality();
+        while ( peek().is( "&&" ) ) {
+            next();
+            Operand l = left, r = parseEquality();
+            left = Operand.of( value -> {
+                Object a = l.eval.eval( value );
+                return truthy( a ) ? r.eval.eval( value ) : a;
+            }, l.bool && r.bool, l, r );
+        }
+        return left;
+    }
+
+    private Operand parseEquality() throws UnsupportedFilterException {
+        Operand left = parseRelational();
+        while ( peek().is( "==" ) || peek().is( "!=" ) || peek().is( "===" ) || peek().is( "!==" ) ) {
+            String op = next().text;
+            Operand l = left, r = parseRelational();
+            boolean strict = op.length() == 3;
+            boolean negate = op.startsWith( "!" );
+            left = Operand.of( value -> {
+                Object a = l.eval.eval( value ), b = r.eval.eval( value );
+                return negate != ( strict ? strictEquals( a, b ) : looseEquals( a, b ) );
+            }, true, l, r );
+        }
+        return left;
+    }
+
+    private Operand parseRelational() throws UnsupportedFilterException {
+        Operand left = parseAdditive();
+        while ( peek().is( "<" ) || peek().is( "<=" ) || peek().is( ">" ) || peek().is( ">=" ) ) {
+            String op = next().text;
+            Operand l = left, r = parseAdditive();
+            left = Operand.of( value -> compare( op, l.eval.eval( value ), r.eval.eval( value ) ), true, l, r );
+        }
+        return left;
+    }
+
+    private Operand parseAdditive() throws UnsupportedFilterException {
+        Operand left = parseUnary();
+        while ( peek().is( "+" ) || peek().is( "-" ) ) {
+            boolean plus = next().text.equals( "+" );
+            Operand l = left, r = parseUnary();
+            left = Operand.of( value -> plus ? plus( l.eval.eval( value ), r.eval.eval( value ) )
+                : toNumber( l.eval.eval( value ) ) - toNumber( r.eval.eval( value ) ), false, l, r );
+        }
+        return left;
+    }
+
+    private Operand parseUnary() throws UnsupportedFilterException {
+        if ( peek().is( "!" ) ) {
+            next();
+            Operand operand = parseUnary();
+            return Operand.of( value -> !truthy( operand.eval.eval( value ) ), true, operand );
+        }
+        if ( peek().is( "-" ) ) {
+            next();
+            Operand operand = parseUnary();
+            return Operand.of( value -> -toNumber( operand.eval.eval( value ) ), false, operand );
+        }
+        return parsePostfix();
+    }
+
+    private Operand parsePostfix() throws UnsupportedFilterException {
+        Operand target = parsePrimary();
+        while ( peek().is( "." ) ) {
+            next();
+            Token member = next();
+            if ( member.type != Token.Type.IDENT )
+                throw unsupported( "Expected a method name, found '" + member + "'" );
+
+            if ( !peek().is( "(" ) ) {
+                if ( !member.text.equals( "length" ) )
+                    throw unsupported( "Unsupported property '" + member + "'" );
+                Operand t = target;
+                target = Operand.of( value -> (double) toStringValue( t.eval.eval( value ), "length" ).length(), false, t );
+                continue;
+            }
+
+            List<Operand> args = parseArguments();
+            target = method( target, member.text, args );
+        }
+        return target;
+    }
+
+    private Operand parsePrimary() throws UnsupportedFilterException {
+        Token token = next();
+        switch ( token.type ) {
+            case STRING:
+            case NUMBER:
+                return Operand.constant( token.literal );
+            case IDENT:
+                if ( peek().is( "(" ) )
+                    return function( token.text, parseArguments() );
+                return identifier( token.text );
+            case OP:
+                if ( !token.is( "(" ) )
+                    break;
+                Operand inner = parseOr();
+                expect( ")" );
+                return inner;
+            default:
+                break;
+        }
+        throw unsupported( "Unexpected '" + token + "'" );
+    }
+
+    private List<Operand> parseArguments() throws UnsupportedFilterException {
+        expect( "(" );
+        List<Operand> args = new ArrayList<>();
+        if ( peek().is( ")" ) ) {
+            next();
+            return args;
+        }
+        args.add( parseOr() );
+        while ( peek().is( "," ) ) {
+            next();
+            args.add( parseOr() );
+        }
+        expect( ")" );
+        return args;
+    }
+
+    private Operand identifier( String name ) throws UnsupportedFilterException {
+        switch ( name ) {
+            case "value":
+                return new Operand( value -> value, false, false );
+            case "true":
+                return Operand.constant( Boolean.TRUE );
+            case "false":
+                return Operand.constant( Boolean.FALSE );
+            case "null":
+                return Operand.constant( null );
+            default:
+                if ( REGEX_METACHARACTERS.containsKey( name ) )
+                    return Operand.constant( REGEX_METACHARACTERS.get( name ) );
+                throw unsupported( "Unknown identifier '" + name + "'" );
+        }
+    }
+
+    private Operand function( String name, List<Operand> args ) throws UnsupportedFilterException {
+        if ( !name.equals( "unDoubleQuote" ) || args.size() != 1 )
+            throw unsupported( "Unknown function '" + name + "'" );
+
+        Operand arg = args.get( 0 );
+        return Operand.of( value -> unDoubleQuote( resolve( arg.eval.eval( value ) ) ), false, arg );
+    }
+
+    private Operand method( Operand target, String name, List<Operand> args ) throws UnsupportedFilterException {
+        int arity = args.size();
+        boolean known;
+        switch ( name ) {
+            case "get":
+            case "path":
+            case "has":
+            case "matches":
+            case "startsWith":
+            case "endsWith":
+            case "contains":
+            case "equals":
+            case "equalsIgnoreCase":
+            case "indexOf":
+                known = arity == 1;
+                break;
+            default:
+                known = arity == 0 && ( name.equals( "toString" ) || NODE_METHODS.contains( name ) || STRING_METHODS.contains( name ) );
+        }
+        if ( !known )
+            throw unsupported( "Unknown method '" + name + "' with " + arity + " argument(s)" );
+
+        Operand arg = arity == 1 ? args.get( 0 ) : null;
+        boolean bool = BOOLEAN_METHODS.contains( name );
+
+        if ( name.equals( "matches" ) && arg.constant ) {
+            Pattern pattern = Pattern.compile( toStringValue( arg.eval.eval( null ), name ) );
+            return Operand.of( value -> pattern.matcher( toStringValue( target.eval.eval( value ), name ) ).matches(), true, target );
+        }
+
+        if ( arg == null )
+            return Operand.of( value -> invoke( target.eval.eval( value ), name, null ), bool, target );
+        return Operand.of( value -> invoke( target.eval.eval( value ), name, arg.eval.eval( value ) ), bool, target, arg );
+    }
+
+    private Token peek() {
+        return tokens.get( pos );
+    }
+
+    private Token next() {
+        Token token = tokens.get( pos );
+        if ( token.type != Token.Type.EOF )
+            pos++;
+        return token;
+    }
+
+    private void expect( String op ) throws UnsupportedFilterException {
+        Token token = next();
+        if ( !token.is( op ) )
+            throw unsupported( "Expected '" + op + "', found '" + token + "'" );
+    }
+
+    private UnsupportedFilterException unsupported( String reason ) {
+        return new UnsupportedFilterException( reason + " in filter: " + source );
+    }
+
+    /*
+     * ---------------- Tokenizer ----------------
+     */
+
+    private static List<Token> tokenize( String source ) throws UnsupportedFilterException {
+        List<Token> tokens = new ArrayList<>();
+        int i = 0;
+        int len = source.length();
+
+        scan: while ( i < len ) {
+            char c = source.charAt( i );
+
+            if ( Character.isWhitespace( c ) ) {
+                i++;
+            } else if ( c == '\'' || c == '"' ) {
+                StringBuilder sb = new StringBuilder();
+                int j = i + 1;
+                while ( true ) {
+                    if ( j >= len )
+                        throw new UnsupportedFilterException( "Unterminated string in filter: " + source );
+                    char s = source.charAt( j++ );
+                    if ( s == c )
+                        break;
+                    if ( s == '\\' && j < len ) {
+                        char e = source.charAt( j++ );
+                        sb.append( e == 'n' ? '\n' : e == 't' ? '\t' : e == 'r' ? '\r' : e );
+                    } else {
+                        sb.append( s );
+                    }
+                }
+                tokens.add( new Token( Token.Type.STRING, source.substring( i, j ), sb.toString() ) );
+                i = j;
+            } else if ( Character.isDigit( c ) ) {
+                int j = i;
+                while ( j < len && ( Character.isDigit( source.charAt( j ) ) || source.charAt( j ) == '.' ) )
+                    j++;
+                String number = source.substring( i, j );
+                try {
+                    tokens.add( new Token( Token.Type.NUMBER, number, Double.valueOf( number ) ) );
+                } catch ( NumberFormatException e ) {
+                    throw new UnsupportedFilterException( "Incorrect number '" + number + "' in filter: " + source );
+                }
+                i = j;
+            } else if ( Character.isJavaIdentifierStart( c ) ) {
+                int j = i;
+                while ( j < len && Character.isJavaIdentifierPart( source.charAt( j ) ) )
+                    j++;
+                tokens.add( new Token( Token.Type.IDENT, source.substring( i, j ), null ) );
+                i = j;
+            } else {
+                for ( String op : OPERATORS ) {
+                    if ( source.startsWith( op, i ) ) {
+                        tokens.add( new Token( Token.Type.OP, op, null ) );
+                        i += op.length();
+                        continue scan;
+                    }
+                }
+                throw new UnsupportedFilterException( "Unsupported character '" + c + "' in filter: " + source );
+            }
+        }
+
+        tokens.add( new Token( Token.Type.EOF, "<end>", null ) );
+        return tokens;
+    }
+
+    /*
+     * ---------------- Runtime (loose JavaScript semantics) ----------------
+     */
+
+    private static Object invoke( Object target, String name, Object arg ) {
+        if ( target == null )
+            throw new IllegalStateException( "Cannot call '" + name + "' on null" );
+
+        arg = resolve( arg );
+        if ( target instanceof Adapted )
+            return invoke( (Adapted) target, name, arg );
+
+        if ( name.equals( "toString" ) )
+            return toJsString( target );
+
+        if ( target instanceof JsonNode && NODE_METHODS.contains( name ) ) {
+            JsonNode node = (JsonNode) target;
+            switch ( name ) {
+                case "get":
+                    return arg instanceof Number ? node.get( ( (Number) arg ).intValue() ) : node.get( toJsString( arg ) );
+                case "path":
+                    return arg instanceof Number ? node.path( ( (Number) arg ).intValue() ) : node.path( toJsString( arg ) );
+                case "has":
+                    return arg instanceof Number ? node.has( ( (Number) arg ).intValue() ) : node.has( toJsString( arg ) );
+                case "size":
+                    return (double) node.size();
+                case "asText":
+                    return node.asText();
+                case "getTextValue":
+                    return node.getTextValue();
+                case "asInt":
+                case "asLong":
+                case "asDouble":
+                    return node.asDouble();
+                case "asBoolean":
+                    return node.asBoolean();
+                case "isNull":
+                    return node.isNull();
+                case "isTextual":
+                    return node.isTextual();
+                case "isNumber":
+                    return node.isNumber();
+                case "isBoolean":
+                    return node.isBoolean();
+                case "isArray":
+                    return node.isArray();
+                case "isObject":
+                    return node.isObject();
+                case "isMissingNode":
+                    return node.isMissingNode();
+                case "isValueNode":
+                    return node.isValueNode();
+                case "isContainerNode":
+                    return node.isContainerNode();
+            }
+        }
+
+        String str = toStringValue( target, name );
+        switch ( name ) {
+            case "matches":
+                return str.matches( toJsString( arg ) );
+            case "startsWith":
+                return str.startsWith( toJsString( arg ) );
+            case "endsWith":
+                return str.endsWith( toJsString( arg ) );
+            case "contains":
+                return str.contains( toJsString( arg ) );
+            case "equals":
+                return arg instanceof String && str.equals( arg );
+            case "equalsIgnoreCase":
+                return str.equalsIgnoreCase( toJsString( arg ) );
+            case "indexOf":
+                return (double) str.indexOf( toJsString( arg ) );
+            case "length":
+                return (double) str.length();
+            case "trim":
+                return str.trim();
+            case "toLowerCase":
+                return str.toLowerCase();
+            case "toUpperCase":
+                return str.toUpperCase();
+            case "isEmpty":
+                return str.isEmpty();
+            default:
+                throw new IllegalStateException( "Cannot call '" + name + "' on " + target );
+        }
+    }
+
+    /**
+     * The structure of an adapted node is walked through its adapter; its values are read off its Jackson 1 copy.
+     */
+    private static Object invoke( Adapted target, String name, Object arg ) {
+        JsonTreeAdapter<Object> adapter = target.adapter;
+        Object node = target.node;
+        switch ( name ) {
+            case "get":
+                return Adapted.of( adapter, child( adapter, node, arg ) );
+            case "path":
+                Object child = child( adapter, node, arg );
+                return child != null ? Adapted.of( adapter, child ) : MissingNode.getInstance();
+            case "has":
+                return child( adapter, node, arg ) != null;
+            case "size":
+                if ( adapter.isArray( node ) )
+                    return (double) adapter.size( node );
+                int fields = 0;
+                if ( adapter.isObject( node ) ) {
+                    for ( Iterator<?> itr = adapter.fields( node ); itr.hasNext(); itr.next() )
+                        fields++;
+                }
+                return (double) fields;
+            case "isArray":
+                return adapter.isArray( node );
+            case "isObject":
+                return adapter.isObject( node );
+            case "isContainerNode":
+                return adapter.isArray( node ) || adapter.isObject( node );
+            case "isMissingNode":
+                return false;
+            default:
+                return invoke( target.toJackson1(), name, arg );
+        }
+    }
+
+    /**
+     * Same as JsonNode.get(): a field of an object, an element of an array, or null.
+     */
+    private static Object child( JsonTreeAdapter<Object> adapter, Object node, Object arg ) {
+        if ( arg instanceof Number ) {
+            if ( !adapter.isArray( node ) )
+                return null;
+            int index = ( (Number) arg ).intValue();
+            return index >= 0 && index < adapter.size( node ) ? adapter.get( node, index ) : null;
+        }
+        return adapter.isObject( node ) ? adapter.get( node, toJsString( arg ) ) : null;
+    }
+
+    /**
+     * @return the Jackson 1 copy of an adapted node, or the value as is.
+     */
+    private static Object resolve( Object o ) {
+        return o instanceof Adapted ? ( (Adapted) o ).toJackson1() : o;
+    }
+
+    private static String toStringValue( Object target, String method ) {
+        if ( target instanceof String )
+            return (String) target;
+        throw new IllegalStateException( "Cannot call '" + method + "' on non-string " + target );
+    }
+
+    static Object unDoubleQuote( Object str ) {
+        if ( str == null )
+            return null;
+
+        String ret = str.toString();
+        if ( ret.startsWith( "\"" ) && ret.endsWith( "\"" ) ) {
+            return ret.substring( 1, ret.length() - 1 );
+        }
+        return ret;
+    }
+
+    private static boolean truthy( Object o ) {
+        if ( o == null )
+            return false;
+        if ( o instanceof Boolean )
+            return (Boolean) o;
+        if ( o instanceof Double ) {
+            double d = (Double) o;
+            return d != 0 && !Double.isNaN( d );
+        }
+        if ( o instanceof String )
+            return !( (String) o ).isEmpty();
+        return true;
+    }
+
+    /**
+     * Objects (JsonNodes) convert through their string form, as the script engine does for Java objects.
+     */
+    private static Object toPrimitive( Object o ) {
+        o = resolve( o );
+        return o instanceof JsonNode ? o.toString() : o;
+    }
+
+    private static double toNumber( Object o ) {
+        o = resolve( o );
+        // Same as parsing its string form, without building it
+        if ( o instanceof JsonNode && ( (JsonNode) o ).isNumber() )
+            return ( (JsonNode) o ).getDoubleValue();
+
+        o = toPrimitive( o );
+        if ( o == null )
+            return 0;
+        if ( o instanceof Double )
+            return (Double) o;
+        if ( o instanceof Boolean )
+            return (Boolean) o ? 1 : 0;
+        String str = o.toString().trim();
+        if ( str.isEmpty() )
+            return 0;
+        try {
+            return Double.parseDouble( str );
+        } catch ( NumberFormatException e ) {
+            return Double.NaN;
+        }
+    }
+
+    private static String toJsString( Object o ) {
+        o = resolve( o );
+        if ( o instanceof Double ) {
+            double d = (Double) o;
+            if ( d == Math.rint( d ) && !Double.isInfinite( d ) && Math.abs( d ) < 1e15 )
+                return Long.toString( (long) d );
+        }
+        return String.valueOf( o );
+    }
+
+    private static boolean looseEquals( Object a, Object b ) {
+        a = resolve( a );
+        b = resolve( b );
+        if ( a == null || b == null )
+            return a == b;
+        if ( a instanceof JsonNode && b instanceof JsonNode )
+            return a.equals( b );
+        if ( a instanceof Boolean && b instanceof Boolean )
+            return a.equals( b );
+        if ( isNumeric( a ) || isNumeric( b ) )
+            return toNumber( a ) == toNumber( b );
+
+        return toPrimitive( a ).equals( toPrimitive( b ) );
+    }
+
+    private static boolean isNumeric( Object o ) {
+        return o instanceof Double || o instanceof Boolean;
+    }
+
+    private static boolean strictEquals( Object a, Object b ) {
+        a = resolve( a );
+        b = resolve( b );
+        if ( a == null || b == null )
+            return a == b;
+        if ( a instanceof Double && b instanceof Double )
+            return ( (Double) a ).doubleValue() == ( (Double) b ).doubleValue();
+        return a.getClass() == b.getClass() && a.equals( b );
+    }
+
+    private static boolean compare( String op, Object a, Object b ) {
+        a = resolve( a );
+        b = resolve( b );
+        int cmp;
+        if ( !isNumeric( a ) && !isNumeric( b ) && a != null && b != null ) {
+            cmp = toPrimitive( a ).toString().compareTo( toPrimitive( b ).toString() );
+        } else {
+            double x = toNumber( a ), y = toNumber( b );
+            if ( Double.isNaN( x ) || Double.isNaN( y ) )
+                return false;
+            cmp = Double.compare( x, y );
+        }
+
+        switch ( op ) {
+            case "<":
+                return cmp < 0;
+            case "<=":
+                return cmp <= 0;
+            case ">":
+                return cmp > 0;
+            default:
+                return cmp >= 0;
+        }
+    }
+
+    private static Object plus( Object a, Object b ) {
+        a = toPrimitive( a );
+        b = toPrimitive( b );
+        if ( a instanceof String || b instanceof String )
+            return toJsString( a ) + toJsString( b );
+        return toNumber( a ) + toNumber( b );
+    }
+}
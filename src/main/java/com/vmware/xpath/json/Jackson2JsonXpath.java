@@ -0,0 +1,165 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.vmware.xpath.json;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.codehaus.jackson.node.JsonNodeFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.BinaryNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import com.fasterxml.jackson.databind.node.POJONode;
+
+import com.vmware.xpath.TraversalStopException;
+import com.vmware.xpath.XpathVisitorException;
+
+/**
+ * Xpath evaluation straight on Jackson 2 (com.fasterxml) trees, with the same semantics as {@link JsonXpath} has on
+ * Jackson 1 trees; no conversion of the document between the two models is needed. Native [] filters run on the
+ * Jackson 2 nodes as well; those of the script or custom predicate engines are given a Jackson 1 copy of each candidate.
+ *
+ * @see JsonTreeXpath
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+public final class Jackson2JsonXpath
+{
+    private Jackson2JsonXpath() {
+    }
+
+    /**
+     * Best-fit evaluation, same as {@link JsonXpath#find(org.codehaus.jackson.JsonNode, String)}.
+     *
+     * @param tree
+     * @param xpath
+     * @return The first occurrence of the JsonNode represented by the Xpath, or a MissingNode.
+     */
+    public static JsonNode find( JsonNode tree, String xpath ) {
+        JsonNode res = JsonTreeXpath.find( JsonTreeAdapter.jackson2(), tree, xpath );
+        return res == null ? MissingNode.getInstance() : res;
+    }
+
+    /**
+     * @param tree
+     * @param xpath
+     * @return all the nodes selected by the Xpath, in document order.
+     */
+    public static List<JsonNode> findAll( JsonNode tree, String xpath ) {
+        return JsonTreeXpath.findAll( JsonTreeAdapter.jackson2(), tree, xpath );
+    }
+
+    /**
+     * Same as {@link JsonXpath#findAndUpdateMultiple(org.codehaus.jackson.JsonNode, String, JsonXpathVisitor)}.
+     *
+     * @param tree
+     * @param xpath
+     * @param visitor
+     * @return all the nodes selected by the Xpath, in document order.
+     */
+    public static List<JsonNode> findAndUpdateMultiple( JsonNode tree, String xpath, Jackson2JsonXpathVisitor visitor ) {
+        return findAndUpdateMultiple( tree, JsonXpath.compiled( xpath ), visitor );
+    }
+
+    /**
+     * Same as {@link CompiledXpath#update(org.codehaus.jackson.JsonNode, JsonXpathVisitor)}.
+     *
+     * @param tree
+     * @param xpath
+     * @param visitor may be null, to only select
+     * @return all the nodes selected by the Xpath, in document order.
+     */
+    public static List<JsonNode> findAndUpdateMultiple( JsonNode tree, CompiledXpath xpath, Jackson2JsonXpathVisitor visitor ) {
+        if ( visitor == null )
+            return JsonTreeXpath.findAndUpdateMultiple( JsonTreeAdapter.jackson2(), tree, xpath, null );
+
+        return JsonTreeXpath.findAndUpdateMultiple( JsonTreeAdapter.jackson2(), tree, xpath, new JsonTreeXpathVisitor<JsonNode>() {
+            @Override
+            public boolean visit( JsonTreeAdapter<JsonNode> adapter, JsonNode parent, JsonNode currentNodeToSelect )
+                throws XpathVisitorException, TraversalStopException {
+                return visitor.visit( parent, currentNodeToSelect );
+            }
+
+            @Override
+            public void visitAll( JsonTreeAdapter<JsonNode> adapter, List<JsonNode> parents, List<JsonNode> nodes )
+                throws TraversalStopException {
+                visitor.visitAll( parents, nodes );
+            }
+        } );
+    }
+
+    /**
+     * @param node
+     * @return a Jackson 1 copy of the node, for the filters to run on.
+     */
+    static org.codehaus.jackson.JsonNode toJackson1( JsonNode node ) {
+        JsonNodeFactory factory = JsonNodeFactory.instance;
+        switch ( node.getNodeType() ) {
+        case OBJECT:
+            org.codehaus.jackson.node.ObjectNode object = factory.objectNode();
+            for ( Iterator<Entry<String, JsonNode>> itr = node.fields(); itr.hasNext(); ) {
+                Entry<String, JsonNode> field = itr.next();
+                object.put( field.getKey(), toJackson1( field.getValue() ) );
+            }
+            return object;
+        case ARRAY:
+            org.codehaus.jackson.node.ArrayNode array = factory.arrayNode();
+            for ( JsonNode element : node )
+                array.add( toJackson1( element ) );
+            return array;
+        case STRING:
+            return factory.textNode( node.textValue() );
+        case NUMBER:
+            if ( node.isInt() || node.isShort() )
+                return factory.numberNode( node.intValue() );
+            if ( node.isLong() )
+                return factory.numberNode( node.longValue() );
+            if ( node.isBigInteger() )
+                return factory.numberNode( node.bigIntegerValue() );
+            if ( node.isBigDecimal() )
+                return factory.numberNode( node.decimalValue() );
+            return factory.numberNode( node.doubleValue() );
+        case BOOLEAN:
+            return factory.booleanNode( node.booleanValue() );
+        case BINARY:
+            return factory.binaryNode( ( (BinaryNode) node ).binaryValue() );
+        case MISSING:
+            return org.codehaus.jackson.node.MissingNode.getInstance();
+        case POJO:
+            return factory.POJONode( ( (POJONode) node ).getPojo() );
+        default:
+            return factory.nullNode();
+        }
+    }
+}
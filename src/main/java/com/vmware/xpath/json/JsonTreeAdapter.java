@@ -0,0 +1,190 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.vmware.xpath.json;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+/**
+ * The view the engine has of a JSON tree model: structure, field lookup, value access and mutation. Through an
+ * adapter the tree is queried in place, whatever the library it comes from, without first converting it to Jackson 1
+ * nodes.
+ *
+ * Objects keep their fields in document order; an existing field replaced by {@link #put} keeps its place.
+ *
+ * @param <N> the node type of the model
+ * @see JsonTreeXpath
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+public interface JsonTreeAdapter<N>
+{
+    boolean isObject( N node );
+
+    boolean isArray( N node );
+
+    /**
+     * @param object
+     * @param fieldName
+     * @return the value of the field, or null if the object has no such field.
+     */
+    N get( N object, String fieldName );
+
+    /**
+     * @param object
+     * @return the fields of the object, in document order.
+     */
+    Iterator<Entry<String, N>> fields( N object );
+
+    int size( N array );
+
+    N get( N array, int index );
+
+    /**
+     * @param node
+     * @return the text of a value, as Jackson's asText() has it; empty for objects and arrays.
+     */
+    String asText( N node );
+
+    /**
+     * Looks the element up by identity, from the given index on; the elements before it are looked at last. Looking up
+     * elements in document order, each from the index after the previous one, takes a single pass over the array.
+     *
+     * @param array
+     * @param element
+     * @param from
+     * @return the index of the element, or -1.
+     */
+    default int indexOf( N array, N element, int from ) {
+        int size = size( array );
+        for ( int i = from; i < size; i++ )
+            if ( get( array, i ) == element )
+                return i;
+        for ( int i = 0; i < Math.min( from, size ); i++ )
+            if ( get( array, i ) == element )
+                return i;
+        return -1;
+    }
+
+    /**
+     * @param text
+     * @return a new string value.
+     */
+    N textNode( String text );
+
+    /**
+     * @param node
+     * @return the node as a Jackson 1 node, for the [] filters to run on.
+     */
+    org.codehaus.jackson.JsonNode toJackson1( N node );
+
+    /**
+     * @param object
+     * @param fieldName
+     * @param value
+     * @return the previous value of the field, or null.
+     */
+    N put( N object, String fieldName, N value );
+
+    /**
+     * @param object
+     * @param fieldName
+     * @return the removed value, or null.
+     */
+    N remove( N object, String fieldName );
+
+    void add( N array, N value );
+
+    /**
+     * @param array
+     * @param index
+     * @param value
+     * @return the previous element.
+     */
+    N set( N array, int index, N value );
+
+    /**
+     * @param array
+     * @param index
+     * @return the removed element.
+     */
+    N remove( N array, int index );
+
+    /**
+     * Removes the elements at the given indexes, in one pass where the model allows it; the other elements keep their
+     * order.
+     *
+     * @param array
+     * @param indexes ascending, without duplicates
+     */
+    default void removeAll( N array, int[] indexes ) {
+        for ( int i = indexes.length - 1; i >= 0; i-- )
+            remove( array, indexes[i] );
+    }
+
+    /**
+     * @return the adapter for Jackson 1 (org.codehaus) trees, modifying the nodes directly.
+     */
+    static JsonTreeAdapter<org.codehaus.jackson.JsonNode> jackson1() {
+        return JsonTreeAdapters.JACKSON1;
+    }
+
+    /**
+     * @param mutator
+     * @return the adapter for Jackson 1 (org.codehaus) trees, making its modifications through the mutator.
+     */
+    static JsonTreeAdapter<org.codehaus.jackson.JsonNode> jackson1( JsonTreeMutator mutator ) {
+        return mutator == JsonTreeMutator.direct() ? JsonTreeAdapters.JACKSON1 : new JsonTreeAdapters.Jackson1( mutator );
+    }
+
+    /**
+     * @return the adapter for Jackson 2 (com.fasterxml) trees.
+     */
+    static JsonTreeAdapter<com.fasterxml.jackson.databind.JsonNode> jackson2() {
+        return JsonTreeAdapters.JACKSON2;
+    }
+
+    /**
+     * @return the adapter for Jettison trees: JSONObject, JSONArray and their values.
+     */
+    static JsonTreeAdapter<Object> jettison() {
+        return JsonTreeAdapters.JETTISON;
+    }
+
+    /**
+     * Plain Map and List trees, as most JSON libraries can bind documents to. A field holding null is taken as absent.
+     *
+     * @return the adapter for Map / List trees.
+     */
+    static JsonTreeAdapter<Object> collections() {
+        return JsonTreeAdapters.COLLECTIONS;
+    }
+}
@@ -0,0 +1,497 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.vmware.xpath.json;
+
+import java.lang.reflect.Field;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+import org.codehaus.jackson.node.TextNode;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * The {@link JsonTreeAdapter}s of the models supported out of the box.
+ *
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+final class JsonTreeAdapters
+{
+    static final JsonTreeAdapter<JsonNode> JACKSON1 = new Jackson1( JsonTreeMutator.direct() );
+
+    static final JsonTreeAdapter<com.fasterxml.jackson.databind.JsonNode> JACKSON2 = new Jackson2();
+
+    static final JsonTreeAdapter<Object> JETTISON = new Jettison();
+
+    static final JsonTreeAdapter<Object> COLLECTIONS = new Collections();
+
+    private JsonTreeAdapters() {
+    }
+
+    static final class Jackson1 implements JsonTreeAdapter<JsonNode>
+    {
+        private final JsonTreeMutator mutator;
+
+        Jackson1( JsonTreeMutator mutator ) {
+            this.mutator = mutator;
+        }
+
+        @Override
+        public boolean isObject( JsonNode node ) {
+            return node instanceof ObjectNode;
+        }
+
+        @Override
+        public boolean isArray( JsonNode node ) {
+            return node instanceof ArrayNode;
+        }
+
+        @Override
+        public JsonNode get( JsonNode object, String fieldName ) {
+            return object.get( fieldName );
+        }
+
+        @Override
+        public Iterator<Entry<String, JsonNode>> fields( JsonNode object ) {
+            return object.getFields();
+        }
+
+        @Override
+        public int size( JsonNode array ) {
+            return array.size();
+        }
+
+        @Override
+        public JsonNode get( JsonNode array, int index ) {
+            return array.get( index );
+        }
+
+        @Override
+        public String asText( JsonNode node ) {
+            return node.asText();
+        }
+
+        @Override
+        public JsonNode textNode( String text ) {
+            return TextNode.valueOf( text );
+        }
+
+        @Override
+        public JsonNode toJackson1( JsonNode node ) {
+            return node;
+        }
+
+        @Override
+        public JsonNode put( JsonNode object, String fieldName, JsonNode value ) {
+            return mutator.put( (ObjectNode) object, fieldName, value );
+        }
+
+        @Override
+        public JsonNode remove( JsonNode object, String fieldName ) {
+            return mutator.remove( (ObjectNode) object, fieldName );
+        }
+
+        @Override
+        public void add( JsonNode array, JsonNode value ) {
+            mutator.add( (ArrayNode) array, value );
+        }
+
+        @Override
+        public JsonNode set( JsonNode array, int index, JsonNode value ) {
+            return mutator.set( (ArrayNode) array, index, value );
+        }
+
+        @Override
+        public JsonNode remove( JsonNode array, int index ) {
+            return mutator.remove( (ArrayNode) array, index );
+        }
+
+        @Override
+        public void removeAll( JsonNode array, int[] indexes ) {
+            mutator.removeAll( (ArrayNode) array, indexes );
+        }
+    }
+
+    private static final class Jackson2 implements JsonTreeAdapter<com.fasterxml.jackson.databind.JsonNode>
+    {
+        @Override
+        public boolean isObject( com.fasterxml.jackson.databind.JsonNode node ) {
+            return node instanceof com.fasterxml.jackson.databind.node.ObjectNode;
+        }
+
+        @Override
+        public boolean isArray( com.fasterxml.jackson.databind.JsonNode node ) {
+            return node instanceof com.fasterxml.jackson.databind.node.ArrayNode;
+        }
+
+        @Override
+        public com.fasterxml.jackson.databind.JsonNode get( com.fasterxml.jackson.databind.JsonNode object, String fieldName ) {
+            return object.get( fieldName );
+        }
+
+        @Override
+        public Iterator<Entry<String, com.fasterxml.jackson.databind.JsonNode>> fields( com.fasterxml.jackson.databind.JsonNode object ) {
+            return object.fields();
+        }
+
+        @Override
+        public int size( com.fasterxml.jackson.databind.JsonNode array ) {
+            return array.size();
+        }
+
+        @Override
+        public com.fasterxml.jackson.databind.JsonNode get( com.fasterxml.jackson.databind.JsonNode array, int index ) {
+            return array.get( index );
+        }
+
+        @Override
+        public String asText( com.fasterxml.jackson.databind.JsonNode node ) {
+            return node.asText();
+        }
+
+        @Override
+        public com.fasterxml.jackson.databind.JsonNode textNode( String text ) {
+            return com.fasterxml.jackson.databind.node.TextNode.valueOf( text );
+        }
+
+        @Override
+        public JsonNode toJackson1( com.fasterxml.jackson.databind.JsonNode node ) {
+            return Jackson2JsonXpath.toJackson1( node );
+        }
+
+        @Override
+        public com.fasterxml.jackson.databind.JsonNode put( com.fasterxml.jackson.databind.JsonNode object, String fieldName,
+            com.fasterxml.jackson.databind.JsonNode value ) {
+            return ( (com.fasterxml.jackson.databind.node.ObjectNode) object ).replace( fieldName, value );
+        }
+
+        @Override
+        public com.fasterxml.jackson.databind.JsonNode remove( com.fasterxml.jackson.databind.JsonNode object, String fieldName ) {
+            return ( (com.fasterxml.jackson.databind.node.ObjectNode) object ).remove( fieldName );
+        }
+
+        @Override
+        public void add( com.fasterxml.jackson.databind.JsonNode array, com.fasterxml.jackson.databind.JsonNode value ) {
+            ( (com.fasterxml.jackson.databind.node.ArrayNode) array ).add( value );
+        }
+
+        @Override
+        public com.fasterxml.jackson.databind.JsonNode set( com.fasterxml.jackson.databind.JsonNode array, int index,
+            com.fasterxml.jackson.databind.JsonNode value ) {
+            return ( (com.fasterxml.jackson.databind.node.ArrayNode) array ).set( index, value );
+        }
+
+        @Override
+        public com.fasterxml.jackson.databind.JsonNode remove( com.fasterxml.jackson.databind.JsonNode array, int index ) {
+            return ( (com.fasterxml.jackson.databind.node.ArrayNode) array ).remove( index );
+        }
+
+        @Override
+        public void removeAll( com.fasterxml.jackson.databind.JsonNode array, int[] indexes ) {
+            List<com.fasterxml.jackson.databind.JsonNode> retained = new ArrayList<>( array.size() - indexes.length );
+            for ( int i = 0, next = 0; i < array.size(); i++ ) {
+                if ( next < indexes.length && indexes[next] == i )
+                    next++;
+                else
+                    retained.add( array.get( i ) );
+            }
+            ( (com.fasterxml.jackson.databind.node.ArrayNode) array ).removeAll().addAll( retained );
+        }
+    }
+
+    /**
+     * JSON null is JSONObject.NULL, or one of the explicit Null instances the parser creates. JSONArray has no removal
+     * by index, nor any way to empty it: removals go through the list it wraps, and only fall back to its removal by
+     * equality if that list cannot be reached.
+     */
+    private static final class Jettison implements JsonTreeAdapter<Object>
+    {
+        private static final Field ELEMENTS = elementsField();
+
+        private static Field elementsField() {
+            try {
+                Field elements = JSONArray.class.getDeclaredField( "myArrayList" );
+                elements.setAccessible( true );
+                return List.class.isAssignableFrom( elements.getType() ) ? elements : null;
+            } catch ( ReflectiveOperationException | RuntimeException e ) {
+                return null;
+            }
+        }
+
+        /**
+         * @param array
+         * @return the list of elements of the array, or null if out of reach.
+         */
+        @SuppressWarnings( "unchecked" )
+        private static List<Object> elements( Object array ) {
+            if ( ELEMENTS == null )
+                return null;
+            try {
+                return (List<Object>) ELEMENTS.get( array );
+            } catch ( IllegalAccessException e ) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean isObject( Object node ) {
+            return node instanceof JSONObject;
+        }
+
+        @Override
+        public boolean isArray( Object node ) {
+            return node instanceof JSONArray;
+        }
+
+        @Override
+        public Object get( Object object, String fieldName ) {
+            return ( (JSONObject) object ).opt( fieldName );
+        }
+
+        @Override
+        public Iterator<Entry<String, Object>> fields( Object object ) {
+            JSONObject json = (JSONObject) object;
+            Iterator<?> keys = json.keys();
+            return new Iterator<Entry<String, Object>>() {
+                @Override
+                public boolean hasNext() {
+                    return keys.hasNext();
+                }
+
+                @Override
+                public Entry<String, Object> next() {
+                    String key = (String) keys.next();
+                    return new SimpleImmutableEntry<>( key, json.opt( key ) );
+                }
+            };
+        }
+
+        @Override
+        public int size( Object array ) {
+            return ( (JSONArray) array ).length();
+        }
+
+        @Override
+        public Object get( Object array, int index ) {
+            return ( (JSONArray) array ).opt( index );
+        }
+
+        @Override
+        public String asText( Object node ) {
+            if ( node == null || node.getClass() == JSONObject.NULL.getClass() )
+                return "null";
+            return node instanceof JSONObject || node instanceof JSONArray ? "" : node.toString();
+        }
+
+        @Override
+        public Object textNode( String text ) {
+            return text;
+        }
+
+        @Override
+        public JsonNode toJackson1( Object node ) {
+            return JsonXpath.toJsonNode( node );
+        }
+
+        @Override
+        public Object put( Object object, String fieldName, Object value ) {
+            JSONObject json = (JSONObject) object;
+            Object previous = json.opt( fieldName );
+            try {
+                json.put( fieldName, value == null ? JSONObject.NULL : value );
+            } catch ( JSONException e ) {
+                throw new IllegalArgumentException( e.getMessage(), e );
+            }
+            return previous;
+        }
+
+        @Override
+        public Object remove( Object object, String fieldName ) {
+            return ( (JSONObject) object ).remove( fieldName );
+        }
+
+        @Override
+        public void add( Object array, Object value ) {
+            ( (JSONArray) array ).put( value == null ? JSONObject.NULL : value );
+        }
+
+        @Override
+        public Object set( Object array, int index, Object value ) {
+            JSONArray json = (JSONArray) array;
+            Object previous = json.opt( index );
+            try {
+                json.put( index, value == null ? JSONObject.NULL : value );
+            } catch ( JSONException e ) {
+                throw new IllegalArgumentException( e.getMessage(), e );
+            }
+            return previous;
+        }
+
+        /**
+         * JSONArray itself only removes by equality: the element is then swapped for a placeholder equal to nothing
+         * else first.
+         */
+        @Override
+        public Object remove( Object array, int index ) {
+            List<Object> elements = elements( array );
+            if ( elements != null )
+                return elements.remove( index );
+
+            Object placeholder = new Object();
+            Object previous = set( array, index, placeholder );
+            ( (JSONArray) array ).remove( placeholder );
+            return previous;
+        }
+
+        /**
+         * Rebuilds the elements once from the retained ones, rather than scanning the array for each removal.
+         */
+        @Override
+        public void removeAll( Object array, int[] indexes ) {
+            List<Object> elements = elements( array );
+            if ( elements == null ) {
+                JsonTreeAdapter.super.removeAll( array, indexes );
+                return;
+            }
+
+            List<Object> retained = new ArrayList<>( elements.size() - indexes.length );
+            for ( int i = 0, next = 0; i < elements.size(); i++ ) {
+                if ( next < indexes.length && indexes[next] == i )
+                    next++;
+                else
+                    retained.add( elements.get( i ) );
+            }
+            elements.clear();
+            elements.addAll( retained );
+        }
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private static final class Collections implements JsonTreeAdapter<Object>
+    {
+        @Override
+        public boolean isObject( Object node ) {
+            return node instanceof Map;
+        }
+
+        @Override
+        public boolean isArray( Object node ) {
+            return node instanceof List;
+        }
+
+        @Override
+        public Object get( Object object, String fieldName ) {
+            return ( (Map<String, Object>) object ).get( fieldName );
+        }
+
+        @Override
+        public Iterator<Entry<String, Object>> fields( Object object ) {
+            return ( (Map<String, Object>) object ).entrySet().iterator();
+        }
+
+        @Override
+        public int size( Object array ) {
+            return ( (List<Object>) array ).size();
+        }
+
+        @Override
+        public Object get( Object array, int index ) {
+            return ( (List<Object>) array ).get( index );
+        }
+
+        @Override
+        public String asText( Object node ) {
+            if ( node == null )
+                return "null";
+            return node instanceof Map || node instanceof List ? "" : node.toString();
+        }
+
+        @Override
+        public Object textNode( String text ) {
+            return text;
+        }
+
+        @Override
+        public JsonNode toJackson1( Object node ) {
+            return JsonXpath.toJsonNode( node );
+        }
+
+        @Override
+        public Object put( Object object, String fieldName, Object value ) {
+            return ( (Map<String, Object>) object ).put( fieldName, value );
+        }
+
+        @Override
+        public Object remove( Object object, String fieldName ) {
+            return ( (Map<String, Object>) object ).remove( fieldName );
+        }
+
+        @Override
+        public void add( Object array, Object value ) {
+            ( (List<Object>) array ).add( value );
+        }
+
+        @Override
+        public Object set( Object array, int index, Object value ) {
+            return ( (List<Object>) array ).set( index, value );
+        }
+
+        @Override
+        public Object remove( Object array, int index ) {
+            return ( (List<Object>) array ).remove( index );
+        }
+
+        /**
+         * Moves the retained elements down over the removed ones, then drops the tail.
+         */
+        @Override
+        public void removeAll( Object array, int[] indexes ) {
+            List<Object> list = (List<Object>) array;
+            int retained = 0;
+            for ( int i = 0, next = 0; i < list.size(); i++ ) {
+                if ( next < indexes.length && indexes[next] == i )
+                    next++;
+                else
+                    list.set( retained++, list.get( i ) );
+            }
+            list.subList( retained, list.size() ).clear();
+        }
+    }
+}
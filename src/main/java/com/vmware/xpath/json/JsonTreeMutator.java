@@ -0,0 +1,99 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.vmware.xpath.json;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * Structural modifications of a JSON tree. Visitors making their changes through a mutator, rather than on the
+ * nodes directly, keep whatever the engine has cached about the tree (such as a {@link JsonXpathIndex}) up to date.
+ *
+ * @see MutatingJsonXpathVisitor
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+public interface JsonTreeMutator
+{
+    /**
+     * @param object
+     * @param fieldName
+     * @param value
+     * @return the previous value of the field, or null. An existing field keeps its place within the object.
+     */
+    JsonNode put( ObjectNode object, String fieldName, JsonNode value );
+
+    /**
+     * @param object
+     * @param fieldName
+     * @return the removed value, or null.
+     */
+    JsonNode remove( ObjectNode object, String fieldName );
+
+    void add( ArrayNode array, JsonNode value );
+
+    void insert( ArrayNode array, int index, JsonNode value );
+
+    /**
+     * @param array
+     * @param index
+     * @param value
+     * @return the previous element.
+     */
+    JsonNode set( ArrayNode array, int index, JsonNode value );
+
+    /**
+     * @param array
+     * @param index
+     * @return the removed element.
+     */
+    JsonNode remove( ArrayNode array, int index );
+
+    /**
+     * Removes the elements at the given indexes, in one pass; the other elements keep their order.
+     *
+     * @param array
+     * @param indexes ascending, without duplicates
+     */
+    default void removeAll( ArrayNode array, int[] indexes ) {
+        for ( int i = indexes.length - 1; i >= 0; i-- )
+            remove( array, indexes[i] );
+    }
+
+    /**
+     * @return the mutator modifying the nodes directly, with nothing to keep up to date.
+     */
+    static JsonTreeMutator direct() {
+        return DirectJsonTreeMutator.INSTANCE;
+    }
+}
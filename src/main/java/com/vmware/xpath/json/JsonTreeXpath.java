@@ -0,0 +1,147 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.vmware.xpath.json;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vmware.xpath.TraversalStopException;
+import com.vmware.xpath.VisitResult;
+import com.vmware.xpath.json.CompiledXpath.Step;
+
+/**
+ * Xpath evaluation on any JSON tree model, through its {@link JsonTreeAdapter}, by the same traversal as
+ * {@link JsonXpath} runs on Jackson 1 trees, tracing included. The document is queried in place: Jettison objects,
+ * Jackson 2 trees or plain Map / List structures need no conversion.
+ *
+ * The [] filters of the native engine also run through the adapter. Those of the other engines are written against
+ * Jackson 1 nodes: they are given a Jackson 1 copy of each candidate value. Positional predicates need no conversion.
+ *
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+public final class JsonTreeXpath
+{
+    private static final Logger LOG = LoggerFactory.getLogger( JsonTreeXpath.class );
+
+    private JsonTreeXpath() {
+    }
+
+    /**
+     * Best-fit evaluation, same as {@link JsonXpath#find(org.codehaus.jackson.JsonNode, String)}.
+     *
+     * @param adapter
+     * @param tree
+     * @param xpath
+     * @return The first occurrence of the node represented by the Xpath, or null.
+     */
+    public static <N> N find( JsonTreeAdapter<N> adapter, N tree, String xpath ) {
+        if ( xpath == null || xpath.isEmpty() )
+            throw new IllegalArgumentException( "Invalid Xpath: " + xpath );
+
+        return JsonXpath.compiled( xpath ).find( adapter, tree );
+    }
+
+    /**
+     * @param adapter
+     * @param tree
+     * @param xpath
+     * @return all the nodes selected by the Xpath, in document order.
+     */
+    public static <N> List<N> findAll( JsonTreeAdapter<N> adapter, N tree, String xpath ) {
+        return findAndUpdateMultiple( adapter, tree, JsonXpath.compiled( xpath ), null );
+    }
+
+    /**
+     * Same as {@link JsonXpath#findAndUpdateMultiple(org.codehaus.jackson.JsonNode, String, JsonXpathVisitor)}.
+     *
+     * @param adapter
+     * @param tree
+     * @param xpath
+     * @param visitor
+     * @return all the nodes selected by the Xpath, in document order.
+     */
+    public static <N> List<N> findAndUpdateMultiple( JsonTreeAdapter<N> adapter, N tree, String xpath, JsonTreeXpathVisitor<N> visitor ) {
+        return findAndUpdateMultiple( adapter, tree, JsonXpath.compiled( xpath ), visitor );
+    }
+
+    /**
+     * Same as {@link CompiledXpath#update(org.codehaus.jackson.JsonNode, JsonXpathVisitor)}.
+     *
+     * @param adapter
+     * @param tree
+     * @param xpath
+     * @param visitor may be null, to only select
+     * @return all the nodes selected by the Xpath, in document order.
+     */
+    public static <N> List<N> findAndUpdateMultiple( JsonTreeAdapter<N> adapter, N tree, CompiledXpath xpath, JsonTreeXpathVisitor<N> visitor ) {
+        LOG.debug( "XPath: {}", xpath );
+        return xpath.evaluate( adapter, tree, visitor != null ? new Visits<>( adapter, visitor ) : null );
+    }
+
+    /**
+     * Hands the selected nodes to the visitor; once it threw TraversalStopException, the selection goes on, without
+     * visits.
+     */
+    private static final class Visits<N> implements CompiledXpath.Visits<N>
+    {
+        private final JsonTreeAdapter<N> adapter;
+        private final JsonTreeXpathVisitor<N> visitor;
+
+        private boolean stopped;
+
+        Visits( JsonTreeAdapter<N> adapter, JsonTreeXpathVisitor<N> visitor ) {
+            this.adapter = adapter;
+            this.visitor = visitor;
+        }
+
+        @Override
+        public VisitResult enter( Step step, N parent, N node ) {
+            return VisitResult.CONTINUE;
+        }
+
+        @Override
+        public VisitResult visitAll( List<N> parents, List<N> nodes ) {
+            if ( stopped )
+                return VisitResult.CONTINUE;
+
+            try {
+                visitor.visitAll( adapter, parents, nodes );
+            } catch ( TraversalStopException e ) {
+                LOG.debug( "Visits stopped", e );
+                stopped = true;
+            }
+            return VisitResult.CONTINUE;
+        }
+    }
+}
@@ -34,32 +34,24 @@ package com.vmware.xpath.json;
 
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.JsonProcessingException;
-import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.node.ArrayNode;
-import org.codehaus.jackson.node.MissingNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
 import org.codehaus.jackson.node.ObjectNode;
-import org.codehaus.jackson.node.ValueNode;
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.vmware.xpath.TraversalStopException;
-import com.vmware.xpath.XpathVisitorException;
-
 import java.io.IOException;
+import java.math.BigInteger;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
-import java.util.function.Function;
+import java.util.stream.Stream;
 
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
-import javax.script.ScriptException;
-import javax.script.SimpleScriptContext;
-import static javax.script.ScriptContext.ENGINE_SCOPE;
-import static javax.script.ScriptContext.GLOBAL_SCOPE;
 
 /**
  * Provides static method to use Xpath with JSON 
@@ -70,57 +62,44 @@ import static javax.script.ScriptContext.GLOBAL_SCOPE;
  */
 public class JsonXpath
 {
-    private static final class Pair<K, T> {
-        final K k;
-
-        final T t;
-
-        public Pair( K k, T t ) {
-            this.k = k;
-            this.t = t;
-        }
-    }
-
     private static final Logger LOG = LoggerFactory
             .getLogger(JsonXpath.class);
 
-    private static SimpleScriptContext SCR_CTX = new SimpleScriptContext();
-
-    private static ScriptEngineManager SCR_FACTORY = new ScriptEngineManager();
-
-    private static ScriptEngine SCR_ENGINE = SCR_FACTORY.getEngineByName( "JavaScript" );
-    static {
-
-        /*
-         * - Regex Metacharacters -
-         *
-         * @see: https://www.w3schools.com/jsref/jsref_obj_regexp.asp
-         */
-        SCR_CTX.setAttribute( "d", "\\d", ENGINE_SCOPE );
-        SCR_CTX.setAttribute( "s", "\\s", ENGINE_SCOPE );
-        SCR_CTX.setAttribute( "S", "\\S", ENGINE_SCOPE );
-        SCR_CTX.setAttribute( "D", "\\D", ENGINE_SCOPE );
-        SCR_CTX.setAttribute( "b", "\\b", ENGINE_SCOPE );
-        SCR_CTX.setAttribute( "B", "\\B", ENGINE_SCOPE );
-        SCR_CTX.setAttribute( "w", "\\w", ENGINE_SCOPE );
-        SCR_CTX.setAttribute( "W", "\\W", ENGINE_SCOPE );
+    private static final int COMPILED_XPATHS_MAX = 1024;
 
-        Function<?, String> unDoubleQuote = ( str ) -> {
-            String ret = str.toString();
+    private static final BoundedCache<String, CompiledXpath> COMPILED_XPATHS = new BoundedCache<>( COMPILED_XPATHS_MAX );
 
-            if ( ret.startsWith( "\"" ) && ret.endsWith( "\"" ) ) {
-                return ret.substring( 1, ret.length() - 1 );
-            }
-            return ret;
-        };
-
-        SCR_CTX.setAttribute( "unDoubleQuote", unDoubleQuote, ENGINE_SCOPE );
+    /**
+     *
+     */
+    public JsonXpath() {
     }
 
     /**
+     * Parses the Xpath into a {@link CompiledXpath}. Callers evaluating the same Xpath repeatedly should hold on to
+     * the returned instance, which is immutable and thread-safe.
      *
+     * @param xpath
+     * @return
      */
-    public JsonXpath() {
+    public static CompiledXpath compile( String xpath ) {
+        return CompiledXpath.parse( xpath );
+    }
+
+    /**
+     * Same as {@link #compile(String)}, but shares the compiled form between the static helpers of this class; the
+     * Xpaths not used lately make room for new ones.
+     */
+    static CompiledXpath compiled( String xpath ) {
+        if ( xpath == null )
+            return compile( xpath );
+
+        CompiledXpath compiledXpath = COMPILED_XPATHS.get( xpath );
+        if ( compiledXpath == null ) {
+            compiledXpath = compile( xpath );
+            COMPILED_XPATHS.put( xpath, compiledXpath );
+        }
+        return compiledXpath;
     }
 
     /**
@@ -129,12 +108,26 @@ public class JsonXpath
      * @return
      */
     public static boolean exists( JsonNode tree, String xpath ) {
-        return !( find( tree, xpath ) instanceof MissingNode );
+        return compiled( xpath ).exists( tree );
+    }
+
+    /**
+     * Lazy version of {@link #findAndUpdateMultiple(JsonNode, String, JsonXpathVisitor)}, without a visitor: nodes
+     * are selected as the stream is consumed, so short-circuiting operations stop traversing as soon as they are
+     * satisfied. The tree must not be modified while the stream is consumed.
+     *
+     * @param tree
+     * @param xpath
+     * @return
+     */
+    public static Stream<JsonNode> stream( JsonNode tree, String xpath ) {
+        return compiled( xpath ).stream( tree );
     }
 
     /**
      * Implements a best-fit Xpath evaluator on JSON object. Very basic implementation of XPath over JSON. only static
-     * values and [] supported.
+     * values and [] supported. Each step is a direct field lookup (an array standing for its first object having
+     * the field), unless it is a '//' step, which searches at any depth.
      * 
      * @param tree
      * @param xpath
@@ -145,31 +138,7 @@ public class JsonXpath
         if ( xpath == null || xpath.isEmpty() )
             throw new IllegalArgumentException( "Invalid Xpath: " + xpath );
 
-        String[] paths = xpath.split( "/" );
-
-        JsonNode res = tree;
-        for ( String path : paths ) {
-            if ( path.contains( "[" ) ) {
-                String realPath = path.substring( 0, path.indexOf( "[" ) );
-                String index = path.substring( path.indexOf( "[" ) + 1, path.indexOf( "]" ) );
-
-                if ( res == null || res instanceof MissingNode )
-                    return MissingNode.getInstance();
-                res = res.findPath( realPath );
-
-                if ( Character.isDigit( index.charAt( 0 ) ) ) {
-                    if ( !res.has( Integer.valueOf( index ) ) )
-                        return MissingNode.getInstance();
-                    res = res.path( Integer.valueOf( index ) );
-                }
-            } else {
-                if ( res == null || res instanceof MissingNode )
-                    return MissingNode.getInstance();
-                res = res.findPath( path );
-            }
-        }
-
-        return res == null ? MissingNode.getInstance() : res;
+        return compiled( xpath ).find( tree );
     }
 
     /**
@@ -181,302 +150,123 @@ public class JsonXpath
      * @return
      */
     public static List<JsonNode> findAndUpdateMultiple( JsonNode tree, String xpath, JsonXpathVisitor visitor ) {
-        LOG.debug( "XPath: {}", xpath );
-        List<JsonNode> ret = new ArrayList<JsonNode>();
-
-        if ( xpath == null || xpath.isEmpty() || xpath.equals( "/" ) || xpath.equals( "//" ) )
-            throw new IllegalArgumentException( "Invalid JPath: " + xpath );
-
-        boolean singular = true;
-
-        /*
-         * Trim all the leading '//' chars
-         */
-        if ( xpath.startsWith( "//" ) ) {
-            singular = false;
-            xpath = xpath.substring( 2 );
-        } else if ( xpath.startsWith( "/" ) ) {
-            singular = true;
-            xpath = xpath.substring( 1 );
-        }
-
-        /*
-         * unary path
-         */
-        if ( xpath.indexOf( '/' ) == -1 )
-            return singular ? getSingularDepthValues( tree, xpath, visitor ) : getMultipleDepthValues( tree, xpath, visitor );
-
-        /*
-         * form: XPATH = <HEAD> / <CONS>
-         * HEAD ==> singular depth
-         * CONS ==> new (sub) XPATH
-         */
-        String head = xpath.substring( 0, xpath.indexOf( '/' ) );
-        String cons = xpath.substring( xpath.indexOf( '/' ) );
-
-        if ( head.isEmpty() )
-            return findAndUpdateMultiple( tree, cons, visitor );
-
-        List<JsonNode> breadthList =
-            singular ? getSingularDepthValues( tree, head, new DebugJsonXpathVisitor( xpath, false ) ) : getMultipleDepthValues( tree, head, new DebugJsonXpathVisitor( xpath, false ) );
-
-        for ( JsonNode currentNode : breadthList ) {
-            LOG.debug( "BREADTH LIST: {}", currentNode );
-            ret.addAll( findAndUpdateMultiple( currentNode, cons, visitor ) );
-        }
-
-        return ret;
+        return compiled( xpath ).update( tree, visitor );
     }
 
     /**
-     * @param tree
+     * Same as {@link #findAndUpdateMultiple(JsonNode, String, JsonXpathVisitor)} on the indexed tree, looking up
+     * descendant steps in the index. The changes made by {@link MutatingJsonXpathVisitor}s are indexed as they are
+     * made; other visitors modifying the tree leave the index out of date.
+     *
+     * @param index
      * @param xpath
      * @param visitor
      * @return
      */
-    private static List<JsonNode> getMultipleDepthValues( JsonNode tree, String xpath, JsonXpathVisitor visitor ) {
-        List<JsonNode> filteredNodes = new ArrayList<>();
-        List<Pair<JsonNode, JsonNode>> traverseMap = new ArrayList<>();
-        String filterExprStr = "";
-
-        if ( xpath.contains( "[" ) ) {
-            if ( !xpath.endsWith( "]" ) ) {
-                throw new IllegalArgumentException( "Incorrect XPath with filter: " + xpath );
-            }
-
-            filterExprStr = xpath.substring( xpath.indexOf( '[' ) + 1, xpath.lastIndexOf( ']' ) );
-            xpath = xpath.substring( 0, xpath.indexOf( '[' ) );
-        }
-
-        List<JsonNode> foundParents = tree.findParents( xpath );
-        List<JsonNode> foundValues = tree.findValues( xpath );
-
-        for ( int i = 0; i < foundValues.size(); i++ ) {
-            try {
-                LOG.debug( "\n\n\nFilter Pattern: {}", filterExprStr );
-
-                JsonNode fieldValue = foundValues.get( i );
-                JsonNode parentValue = foundParents.get( i );
-
-                if ( fieldValue instanceof ArrayNode ) {
-
-                    ArrayNode fieldArr = (ArrayNode) fieldValue;
-
-                    for ( Iterator<JsonNode> itr = fieldArr.iterator(); itr.hasNext(); ) {
-                        JsonNode jthFieldValue = itr.next();
-
-                        if ( !filterExprStr.isEmpty() ) {
-                            SCR_CTX.setAttribute( "value", jthFieldValue, ENGINE_SCOPE );
-                            if ( LOG.isDebugEnabled() ) {
-                                SCR_ENGINE.eval( "print('value-type: ', typeof value)", SCR_CTX );
-                                SCR_ENGINE.eval( "print('value: ', value)", SCR_CTX );
-                                SCR_ENGINE.eval( "print('MATCH: ', " + filterExprStr + ")", SCR_CTX );
-                            }
-
-                            Object filterResult = SCR_ENGINE.eval( filterExprStr, SCR_CTX );
-                            if ( filterResult instanceof Boolean ) {
-                                if ( Boolean.TRUE.equals( filterResult ) ) {
-                                    filteredNodes.add( jthFieldValue );
-                                    traverseMap.add( new Pair( fieldArr, jthFieldValue ) );
-                                } else {
-                                    LOG.debug( "SKIPPING: {}", filterExprStr );
-                                }
-                            }
-                        } else {
-                            filteredNodes.add( jthFieldValue );
-                            traverseMap.add( new Pair( fieldArr, jthFieldValue ) );
-                        }
-                    }
-                } else {
-
-                    if ( !filterExprStr.isEmpty() ) {
-                        SCR_CTX.setAttribute( "value", fieldValue, ENGINE_SCOPE );
-                        if ( LOG.isDebugEnabled() ) {
-                            SCR_ENGINE.eval( "print('value-type: ', typeof value)", SCR_CTX );
-                            SCR_ENGINE.eval( "print('value: ', value)", SCR_CTX );
-                            SCR_ENGINE.eval( "print('MATCH: ', " + filterExprStr + ")", SCR_CTX );
-                        }
-                        Object filterResult = SCR_ENGINE.eval( filterExprStr, SCR_CTX );
-                        if ( filterResult instanceof Boolean ) {
-                            if ( Boolean.FALSE.equals( filterResult ) ) {
-                                LOG.debug( "SKIPPING: {}", filterExprStr );
-                                continue;
-                            }
-                        }
-                    }
-
-                    filteredNodes.add( fieldValue );
-                    traverseMap.add( new Pair( parentValue, fieldValue ) );
-                }
-
-            } catch ( ScriptException e ) {
-                throw new IllegalArgumentException( "Illegal Filter Expression: " + filterExprStr, e );
-            } catch ( Exception e ) {
-
-            }
-        }
-
-        for ( Pair<JsonNode, JsonNode> pairs : traverseMap ) {
-            try {
-                visitor.visit( pairs.k, pairs.t );
-            } catch ( XpathVisitorException e ) {
-                continue;
-            } catch ( TraversalStopException e ) {
-                break;
-            }
-        }
-
-        return filteredNodes;
+    public static List<JsonNode> findAndUpdateMultiple( JsonXpathIndex index, String xpath, JsonXpathVisitor visitor ) {
+        return compiled( xpath ).update( index, visitor );
     }
 
     /**
+     * Same as {@link CompiledXpath#traverse(JsonNode, JsonXpathNodeVisitor)}.
+     *
      * @param tree
      * @param xpath
      * @param visitor
      * @return
      */
-    private static List<JsonNode> getSingularDepthValues( JsonNode tree, String xpath, JsonXpathVisitor visitor ) {
-        List<JsonNode> ret = new ArrayList<JsonNode>();
-
-        if ( tree instanceof ObjectNode )
-            return findSingularDepthValuesOnObjectNode( tree, xpath, visitor );
-
-        if ( tree instanceof ArrayNode ) {
-            Iterator<JsonNode> itr = ( (ArrayNode) tree ).getElements();
-            while ( itr.hasNext() ) {
-                JsonNode elm = itr.next();
-                ret.addAll( findSingularDepthValuesOnObjectNode( elm, xpath, visitor ) );
-            }
-        }
-
-        return ret;
+    public static List<JsonNode> traverse( JsonNode tree, String xpath, JsonXpathNodeVisitor visitor ) {
+        return compiled( xpath ).traverse( tree, visitor );
     }
 
     /**
-     * @param tree
+     * Same as {@link CompiledXpath#traverse(JsonXpathIndex, JsonXpathNodeVisitor)}.
+     *
+     * @param index
      * @param xpath
      * @param visitor
      * @return
      */
-    private static List<JsonNode> findSingularDepthValuesOnObjectNode( JsonNode tree, String xpath, JsonXpathVisitor visitor ) {
-        List<JsonNode> ret = new ArrayList<JsonNode>();
-
-        if ( !( tree instanceof ObjectNode ) )
-            return ret;
-
-        ObjectNode on = (ObjectNode) tree;
-
-        String filterExprStr = "";
-
-        if ( xpath.contains( "[" ) ) {
-            if ( !xpath.endsWith( "]" ) ) {
-                throw new IllegalArgumentException( "Incorrect XPath with filter: " + xpath );
-            }
-
-            filterExprStr = xpath.substring( xpath.indexOf( '[' ) + 1, xpath.indexOf( ']' ) );
-            xpath = xpath.substring( 0, xpath.indexOf( '[' ) );
-        }
-
-        Iterator<Entry<String, JsonNode>> itr = on.getFields();
-
-        Map<JsonNode, List<JsonNode>> traverseMap = new HashMap<>();
-        while ( itr.hasNext() ) {
-            Entry<String, JsonNode> field = itr.next();
-
-            if ( field.getKey().equals( xpath ) ) {
-                JsonNode fieldValue = field.getValue();
-
-                LOG.debug( "\n\n\nFilter Pattern Singular Depth: {}", filterExprStr );
-
-                if ( fieldValue instanceof ArrayNode ) {
-
-                    List<JsonNode> existingValues = traverseMap.get( fieldValue );
-                    if ( existingValues == null ) {
-                        existingValues = new ArrayList<JsonNode>();
-                        traverseMap.put( fieldValue, existingValues );
-                    }
+    public static List<JsonNode> traverse( JsonXpathIndex index, String xpath, JsonXpathNodeVisitor visitor ) {
+        return compiled( xpath ).traverse( index, visitor );
+    }
 
-                    ArrayNode arrayValues = (ArrayNode) fieldValue;
-                    for ( Iterator<JsonNode> itr2 = arrayValues.iterator(); itr2.hasNext(); ) {
-                        JsonNode ithFieldValue = itr2.next();
-
-                        if ( !filterExprStr.isEmpty() ) {
-                            try {
-                                SCR_CTX.setAttribute( "value", ithFieldValue, ENGINE_SCOPE );
-                                if ( LOG.isDebugEnabled() ) {
-                                    SCR_ENGINE.eval( "print('(Singular) value-type: ', typeof value)", SCR_CTX );
-                                    SCR_ENGINE.eval( "print('(Singular) value: ', value.get('id'))", SCR_CTX );
-                                    SCR_ENGINE.eval( "print('(Singular) MATCH: ', " + filterExprStr + ")", SCR_CTX );
-                                }
-                                Object filterResult = SCR_ENGINE.eval( filterExprStr, SCR_CTX );
-                                if ( filterResult instanceof Boolean ) {
-                                    if ( Boolean.TRUE.equals( filterResult ) ) {
-                                        ret.add( ithFieldValue );
-                                        existingValues.add( ithFieldValue );
-
-                                    } else {
-                                        LOG.debug( "SKIPPING (Singular Depth): {}", filterExprStr );
-                                    }
-                                }
-                            } catch ( ScriptException e ) {
-                                throw new IllegalArgumentException( "Illegal Filter Expression: " + filterExprStr, e );
-                            }
-                        } else {
-                            ret.add( ithFieldValue );
-                            existingValues.add( ithFieldValue );
-                        }
-                    }
-                } else {
+    /**
+     * Opt-in parallel evaluation: large arrays and objects are searched and filtered as fork/join tasks over the
+     * pool. Nodes come back in document order, and visitors are still called one node at a time.
+     *
+     * @param pool
+     * @return
+     */
+    public static ParallelJsonXpath withParallelism( ForkJoinPool pool ) {
+        return new ParallelJsonXpath( pool );
+    }
 
-                    List<JsonNode> existingValues = traverseMap.get( on );
-                    if ( existingValues == null ) {
-                        existingValues = new ArrayList<JsonNode>();
-                        traverseMap.put( on, existingValues );
-                    }
+    /**
+     * Same as {@link #evaluateBatch(Collection, CompiledXpath, Executor, int)}, with up to twice as many documents in
+     * flight as there are cores.
+     *
+     * @param documents
+     * @param xpath
+     * @param executor
+     * @return
+     * @throws InterruptedException
+     */
+    public static JsonXpathBatchResult evaluateBatch( Collection<JsonNode> documents, CompiledXpath xpath, Executor executor )
+        throws InterruptedException {
+        return evaluateBatch( documents, xpath, executor, 2 * Runtime.getRuntime().availableProcessors() );
+    }
 
-                    // Field value is likely a text-node
-                    if ( !filterExprStr.isEmpty() ) {
-                        try {
-                            SCR_CTX.setAttribute( "value", fieldValue, ENGINE_SCOPE );
-                            if ( LOG.isDebugEnabled() ) {
-                                SCR_ENGINE.eval( "print('(Singular) value-type: ', typeof value)", SCR_CTX );
-                                SCR_ENGINE.eval( "print('(Singular) value: ', value)", SCR_CTX );
-                                SCR_ENGINE.eval( "print('(Singular) MATCH: ', " + filterExprStr + ")", SCR_CTX );
-                            }
-                            Object filterResult = SCR_ENGINE.eval( filterExprStr, SCR_CTX );
-                            if ( filterResult instanceof Boolean ) {
-                                if ( Boolean.TRUE.equals( filterResult ) ) {
-                                    ret.add( fieldValue );
-                                    existingValues.add( fieldValue );
-
-                                } else {
-                                    LOG.debug( "SKIPPING (Singular Depth): {}", filterExprStr );
-                                }
-                            }
-                        } catch ( ScriptException e ) {
-                            throw new IllegalArgumentException( "Illegal Filter Expression: " + filterExprStr, e );
-                        }
-                    } else {
-                        ret.add( fieldValue );
-                        existingValues.add( fieldValue );
-                    }
-                }
-            }
-        }
+    /**
+     * Evaluates the Xpath over each document, as separate tasks on the executor. At most maxInFlight documents are
+     * handed to the executor at any time: the caller blocks until an earlier document is done before handing over
+     * the next one, and runs the document itself if the executor rejects it. Blocks until all the documents are done.
+     *
+     * A document failing with a RuntimeException or a StackOverflowError (a too deeply nested document) is reported in
+     * the result. Any other Error stops the batch, and is rethrown once the documents handed over are done.
+     *
+     * @param documents
+     * @param xpath
+     * @param executor
+     * @param maxInFlight
+     * @return the nodes selected in each document, in the order given.
+     * @throws InterruptedException if interrupted while waiting; the documents already handed over are done by then
+     */
+    public static JsonXpathBatchResult evaluateBatch( Collection<JsonNode> documents, CompiledXpath xpath, Executor executor,
+        int maxInFlight ) throws InterruptedException {
+        if ( maxInFlight < 1 )
+            throw new IllegalArgumentException( "Incorrect number of documents in flight: " + maxInFlight );
+
+        List<List<JsonNode>> results = new ArrayList<>( Collections.nCopies( documents.size(), null ) );
+        Throwable[] errors = new Throwable[documents.size()];
+        AtomicReference<Error> fatal = new AtomicReference<>();
+        BoundedSubmission submission = new BoundedSubmission( executor, maxInFlight );
+
+        long start = System.nanoTime();
+        int i = 0;
+        for ( JsonNode document : documents ) {
+            if ( fatal.get() != null )
+                break;
 
-        for ( Entry<JsonNode, List<JsonNode>> entries : traverseMap.entrySet() )
-            for ( JsonNode entry : entries.getValue() ) {
+            int index = i++;
+            submission.submit( () -> {
                 try {
-                    visitor.visit( entries.getKey(), entry );
-                } catch ( XpathVisitorException e ) {
-                    LOG.warn( "Skipping incorrect handler exception: {}", e.getMessage() );
-                    LOG.debug( "Skipping incorrect handler exception", e );
-                    continue;
-                } catch ( TraversalStopException e ) {
-                    break;
+                    results.set( index, xpath.update( document, NullJsonFilter.instance() ) );
+                } catch ( RuntimeException | StackOverflowError e ) {
+                    results.set( index, Collections.emptyList() );
+                    errors[index] = e;
+                } catch ( Error e ) {
+                    fatal.compareAndSet( null, e );
+                    throw e;
                 }
-            }
+            } );
+        }
+        submission.awaitAll();
+        if ( fatal.get() != null )
+            throw fatal.get();
 
+        JsonXpathBatchResult ret = new JsonXpathBatchResult( results, errors, System.nanoTime() - start );
+        LOG.debug( "Batch evaluation of {}: {}", xpath, ret );
         return ret;
     }
 
@@ -492,8 +282,7 @@ public class JsonXpath
      */
     public static List<JsonNode> findMultiple( JSONObject json, String xpath, JsonXpathVisitor visitor )
         throws JsonProcessingException, IOException {
-        ObjectMapper om = new ObjectMapper();
-        return findAndUpdateMultiple( om.readTree( json.toString() ), xpath, visitor );
+        return findAndUpdateMultiple( toJsonNode( json ), xpath, visitor );
     }
 
     /*
@@ -525,33 +314,84 @@ public class JsonXpath
 
     public static Map<String, Object> flattenJSONObjectToMap( JSONObject json ) {
         Map<String, Object> keyValueMap = new HashMap<>();
-        try {
-            createDottedStringFromJson( "", new ObjectMapper().readTree( json.toString() ), keyValueMap );
-        } catch ( IOException e ) {
-            String errorMessage = "Unable to flatten the JSON object" + e.getMessage();
-            LOG.error( errorMessage, e );
-        }
+        createDottedStringFromJettison( "", json, keyValueMap );
         return keyValueMap;
     }
 
-    private static void createDottedStringFromJson( String currentPath, JsonNode jsonNode, Map<String, Object> keyValueMap ) {
-        if ( jsonNode.isObject() ) {
-            ObjectNode objectNode = (ObjectNode) jsonNode;
-            Iterator<Map.Entry<String, JsonNode>> iter = objectNode.getFields();
+    private static void createDottedStringFromJettison( String currentPath, Object value, Map<String, Object> keyValueMap ) {
+        if ( value instanceof JSONObject ) {
+            JSONObject object = (JSONObject) value;
             String pathPrefix = currentPath.isEmpty() ? "" : currentPath + ".";
-            while ( iter.hasNext() ) {
-                Map.Entry<String, JsonNode> entry = iter.next();
-                createDottedStringFromJson( pathPrefix + entry.getKey(), entry.getValue(), keyValueMap );
+            for ( Iterator<?> iter = object.keys(); iter.hasNext(); ) {
+                String key = (String) iter.next();
+                createDottedStringFromJettison( pathPrefix + key, object.opt( key ), keyValueMap );
             }
-        } else if ( jsonNode.isArray() ) {
-            ArrayNode arrayNode = (ArrayNode) jsonNode;
-            for ( int i = 0; i < arrayNode.size(); i++ ) {
-                createDottedStringFromJson( currentPath, arrayNode.get( i ), keyValueMap );
+        } else if ( value instanceof JSONArray ) {
+            JSONArray array = (JSONArray) value;
+            for ( int i = 0; i < array.length(); i++ ) {
+                createDottedStringFromJettison( currentPath, array.opt( i ), keyValueMap );
             }
-        } else if ( jsonNode.isValueNode() ) {
-            ValueNode valueNode = (ValueNode) jsonNode;
-            keyValueMap.put( currentPath, valueNode.asText() );
+        } else {
+            keyValueMap.put( currentPath, toJsonNode( value ).asText() );
+        }
+    }
+
+    /**
+     * Copies a Jettison value into a JsonNode tree, node by node; the same tree as parsing the JSON text of the value
+     * gives, without writing or parsing that text.
+     *
+     * Plain Map / List trees are copied the same way.
+     *
+     * @param value JSONObject, JSONArray, Map, List or any of their values
+     * @return
+     */
+    static JsonNode toJsonNode( Object value ) {
+        JsonNodeFactory factory = JsonNodeFactory.instance;
+        if ( value instanceof JSONObject ) {
+            JSONObject object = (JSONObject) value;
+            ObjectNode ret = factory.objectNode();
+            for ( Iterator<?> iter = object.keys(); iter.hasNext(); ) {
+                String key = (String) iter.next();
+                ret.put( key, toJsonNode( object.opt( key ) ) );
+            }
+            return ret;
+        }
+        if ( value instanceof JSONArray ) {
+            JSONArray array = (JSONArray) value;
+            ArrayNode ret = factory.arrayNode();
+            for ( int i = 0; i < array.length(); i++ )
+                ret.add( toJsonNode( array.opt( i ) ) );
+            return ret;
+        }
+        if ( value instanceof Map ) {
+            ObjectNode ret = factory.objectNode();
+            for ( Map.Entry<?, ?> field : ( (Map<?, ?>) value ).entrySet() )
+                ret.put( String.valueOf( field.getKey() ), toJsonNode( field.getValue() ) );
+            return ret;
+        }
+        if ( value instanceof Collection ) {
+            ArrayNode ret = factory.arrayNode();
+            for ( Object element : (Collection<?>) value )
+                ret.add( toJsonNode( element ) );
+            return ret;
+        }
+        // Parsed nulls are "explicit" Null instances, distinct from JSONObject.NULL
+        if ( value == null || value.getClass() == JSONObject.NULL.getClass() )
+            return factory.nullNode();
+        if ( value instanceof Boolean )
+            return factory.booleanNode( (Boolean) value );
+        if ( value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte ) {
+            long l = ( (Number) value ).longValue();
+            return l == (int) l ? factory.numberNode( (int) l ) : factory.numberNode( l );
+        }
+        if ( value instanceof BigInteger ) {
+            BigInteger bi = (BigInteger) value;
+            return bi.bitLength() < 64 ? toJsonNode( bi.longValue() ) : factory.numberNode( bi );
         }
+        if ( value instanceof Number )
+            // Floating point values parse as doubles, from their JSON text
+            return factory.numberNode( Double.parseDouble( value.toString() ) );
+        return factory.textNode( value.toString() );
     }
 
     public static JSONArray append( JSONArray dst, JSONArray src )
@@ -0,0 +1,139 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.vmware.xpath.json;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.JsonNode;
+
+/**
+ * Outcome of {@link JsonXpath#evaluateBatch(java.util.Collection, CompiledXpath, java.util.concurrent.Executor)}: the
+ * nodes selected in each document, in the order the documents were given, along with throughput figures.
+ *
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+public final class JsonXpathBatchResult
+{
+    private final List<List<JsonNode>> results;
+
+    private final Throwable[] errors;
+
+    private final long elapsedNanos;
+
+    private final int matches;
+
+    private final int failures;
+
+    JsonXpathBatchResult( List<List<JsonNode>> results, Throwable[] errors, long elapsedNanos ) {
+        this.results = results;
+        this.errors = errors;
+        this.elapsedNanos = elapsedNanos;
+
+        int matches = 0;
+        int failures = 0;
+        for ( int i = 0; i < results.size(); i++ ) {
+            if ( errors[i] != null )
+                failures++;
+            else
+                matches += results.get( i ).size();
+        }
+        this.matches = matches;
+        this.failures = failures;
+    }
+
+    /**
+     * @return the number of documents evaluated.
+     */
+    public int size() {
+        return results.size();
+    }
+
+    /**
+     * @param document index of the document, in the order given
+     * @return the nodes selected in the document, or an empty list if its evaluation failed.
+     */
+    public List<JsonNode> get( int document ) {
+        return results.get( document );
+    }
+
+    /**
+     * @param document index of the document, in the order given
+     * @return what the evaluation of the document failed with, or null.
+     */
+    public Throwable getError( int document ) {
+        return errors[document];
+    }
+
+    /**
+     * @return the nodes selected in each document, in the order given.
+     */
+    public List<List<JsonNode>> getResults() {
+        return Collections.unmodifiableList( results );
+    }
+
+    /**
+     * @return the number of nodes selected, over all the documents.
+     */
+    public int getMatches() {
+        return matches;
+    }
+
+    /**
+     * @return the number of documents whose evaluation failed.
+     */
+    public int getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return the wall-clock time taken by the whole batch.
+     */
+    public long getElapsed( TimeUnit unit ) {
+        return unit.convert( elapsedNanos, TimeUnit.NANOSECONDS );
+    }
+
+    /**
+     * @return the number of documents evaluated per second of wall-clock time.
+     */
+    public double getDocumentsPerSecond() {
+        return elapsedNanos == 0 ? 0 : results.size() * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format( "%d documents, %d matches, %d failures in %.3f ms (%.1f documents/s)", results.size(), matches,
+            failures, elapsedNanos / 1e6, getDocumentsPerSecond() );
+    }
+}
@@ -0,0 +1,525 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.vmware.xpath.json;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * Field-name inverted index of a JSON tree: for each field name, the (parent, value) locations of the fields with
+ * that name, in document order. With an index, a descendant step such as <code>//groupingObjectId</code> costs a
+ * lookup plus the number of matches, rather than a walk of the whole tree.
+ *
+ * Usage:
+ *
+ * <pre>
+ * JsonXpathIndex index = JsonXpathIndex.build( edge );
+ * List&lt;JsonNode&gt; ids = JsonXpath.findAndUpdateMultiple( index, "//groupingObjectId", visitor );
+ * </pre>
+ *
+ * The index is also a {@link JsonTreeMutator}: changes made through it, and through {@link MutatingJsonXpathVisitor}s
+ * such as {@link ReplaceTextValueVisitor} and {@link RemoveFieldVisitor} when evaluating an Xpath on the index, are
+ * indexed as they are made. Changes made to the nodes directly leave the index out of date.
+ *
+ * Queries can run from any number of threads, as long as the tree is not being modified.
+ *
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+public final class JsonXpathIndex implements JsonTreeMutator
+{
+    /**
+     * The fields with one name, ordered by position. Positions follow a depth-first walk of the tree, so the fields
+     * under any container lie within the span of positions of that container. A removed field leaves a tombstone
+     * (a null parent) in its slot, to be reused by a field added next to it.
+     */
+    private static final class Postings
+    {
+        int size;
+
+        int dead;
+
+        long[] positions = new long[4];
+
+        /** The position following the value of each field; a field within that value lies before it */
+        long[] ends = new long[4];
+
+        JsonNode[] parents = new JsonNode[4];
+
+        JsonNode[] values = new JsonNode[4];
+
+        int add( long position, JsonNode parent, JsonNode value ) {
+            int i = lowerBound( position );
+            if ( i > 0 && parents[i - 1] == null ) {
+                i--;
+                dead--;
+            } else if ( i < size && parents[i] == null ) {
+                dead--;
+            } else {
+                if ( size == positions.length ) {
+                    positions = Arrays.copyOf( positions, size * 2 );
+                    ends = Arrays.copyOf( ends, size * 2 );
+                    parents = Arrays.copyOf( parents, size * 2 );
+                    values = Arrays.copyOf( values, size * 2 );
+                }
+                System.arraycopy( positions, i, positions, i + 1, size - i );
+                System.arraycopy( ends, i, ends, i + 1, size - i );
+                System.arraycopy( parents, i, parents, i + 1, size - i );
+                System.arraycopy( values, i, values, i + 1, size - i );
+                size++;
+            }
+            positions[i] = position;
+            ends[i] = position + 1;
+            parents[i] = parent;
+            values[i] = value;
+            return i;
+        }
+
+        int lowerBound( long position ) {
+            if ( size == 0 || position > positions[size - 1] )
+                return size;
+
+            int i = Arrays.binarySearch( positions, 0, size, position );
+            return i < 0 ? -i - 1 : i;
+        }
+
+        /**
+         * @return the number of fields removed, those positioned within [from, to).
+         */
+        int remove( long from, long to ) {
+            int removed = 0;
+            for ( int i = lowerBound( from ); i < size && positions[i] < to; i++ ) {
+                if ( parents[i] != null ) {
+                    parents[i] = null;
+                    values[i] = null;
+                    removed++;
+                }
+            }
+            dead += removed;
+            if ( dead > size / 2 )
+                compact();
+            return removed;
+        }
+
+        private void compact() {
+            int live = 0;
+            for ( int i = 0; i < size; i++ ) {
+                if ( parents[i] != null ) {
+                    positions[live] = positions[i];
+                    ends[live] = ends[i];
+                    parents[live] = parents[i];
+                    values[live] = values[i];
+                    live++;
+                }
+            }
+            Arrays.fill( parents, live, size, null );
+            Arrays.fill( values, live, size, null );
+            size = live;
+            dead = 0;
+        }
+
+        int count() {
+            return size - dead;
+        }
+    }
+
+    /** Room left after each field, each container element and at the end of each container, for content added later */
+    private static final long GAP = 1L << 32;
+
+    /** Contexts with fewer fields under them are walked rather than looked up */
+    private static final int MIN_LOOKUP_SPAN = 32;
+
+    private final JsonNode root;
+
+    private final Map<String, Postings> postings = new HashMap<>();
+
+    /**
+     * Container to the {start, content end, end} positions of its span: the fields under it lie within [start,
+     * content end), and [content end, end) is free for the fields appended to it.
+     */
+    private final Map<JsonNode, long[]> spans = new IdentityHashMap<>();
+
+    private int fields;
+
+    /** Position given to the next field indexed, and the room left after it */
+    private long next;
+
+    private long gap = GAP;
+
+    private JsonXpathIndex( JsonNode root ) {
+        this.root = root;
+    }
+
+    /**
+     * @param tree
+     * @return the index of all the fields of the tree, at any depth.
+     */
+    public static JsonXpathIndex build( JsonNode tree ) {
+        JsonXpathIndex index = new JsonXpathIndex( tree );
+        index.add( tree );
+        return index;
+    }
+
+    private void add( JsonNode node ) {
+        if ( !node.isContainerNode() )
+            return;
+
+        long[] span = new long[] { next, 0, 0 };
+        spans.put( node, span );
+        if ( node instanceof ObjectNode ) {
+            for ( Iterator<Entry<String, JsonNode>> itr = node.getFields(); itr.hasNext(); ) {
+                Entry<String, JsonNode> field = itr.next();
+                addField( (ObjectNode) node, field.getKey(), field.getValue() );
+            }
+        } else {
+            for ( JsonNode element : node ) {
+                if ( element.isContainerNode() ) {
+                    add( element );
+                    next += gap;
+                }
+            }
+        }
+        span[1] = next;
+        next += gap;
+        span[2] = next;
+    }
+
+    private void addField( ObjectNode parent, String name, JsonNode value ) {
+        Postings p = postings.computeIfAbsent( name, k -> new Postings() );
+        int i = p.add( next, parent, value );
+        fields++;
+        next += gap;
+        add( value );
+        p.ends[i] = next;
+    }
+
+    /**
+     * Indexes new content within the free positions [from, to), leaving room around it for more content: content
+     * appended to a container takes a small slice at the start of the range, as more is likely to follow it; other
+     * content is spread over the middle quarter of the range. When the range is too small, the whole tree is indexed
+     * again.
+     *
+     * @param name of the new field, or null for new content that is not a field
+     * @return the position following the new content
+     */
+    private long place( long from, long to, ObjectNode parent, String name, JsonNode value, boolean append ) {
+        long units = ( name == null ? 0 : 1 ) + units( value );
+        if ( units == 0 )
+            return from;
+
+        long step = Math.min( GAP, ( to - from ) / ( ( append ? 64 : 4 ) * ( units + 1 ) ) );
+        if ( step < 1 ) {
+            rebuild();
+            return -1;
+        }
+
+        next = append ? from + step : from + ( to - from - units * step ) / 2;
+        gap = step;
+        if ( name == null )
+            add( value );
+        else
+            addField( parent, name, value );
+        gap = GAP;
+        return next;
+    }
+
+    private static long units( JsonNode node ) {
+        if ( !node.isContainerNode() )
+            return 0;
+
+        long units = 1;
+        if ( node instanceof ObjectNode ) {
+            for ( Iterator<JsonNode> itr = node.getElements(); itr.hasNext(); )
+                units += 1 + units( itr.next() );
+        } else {
+            for ( JsonNode element : node )
+                units += element.isContainerNode() ? 1 + units( element ) : 0;
+        }
+        return units;
+    }
+
+    private void rebuild() {
+        postings.clear();
+        spans.clear();
+        fields = 0;
+        next = 0;
+        gap = GAP;
+        add( root );
+    }
+
+    /**
+     * Drops the fields and containers within the node from the index.
+     */
+    private void unindex( JsonNode node ) {
+        long[] span = spans.get( node );
+        if ( span == null )
+            return;
+
+        Set<String> names = new HashSet<>();
+        collect( node, names );
+        for ( String name : names ) {
+            Postings p = postings.get( name );
+            if ( p != null )
+                fields -= p.remove( span[0], span[2] );
+        }
+    }
+
+    private void collect( JsonNode node, Set<String> names ) {
+        if ( spans.remove( node ) == null )
+            return;
+
+        if ( node instanceof ObjectNode ) {
+            for ( Iterator<Entry<String, JsonNode>> itr = node.getFields(); itr.hasNext(); ) {
+                Entry<String, JsonNode> field = itr.next();
+                names.add( field.getKey() );
+                collect( field.getValue(), names );
+            }
+        } else {
+            for ( JsonNode element : node )
+                collect( element, names );
+        }
+    }
+
+    /**
+     * @return the index of the field within the postings of its name, or -1.
+     */
+    private int indexOf( Postings p, ObjectNode object, long[] span ) {
+        if ( p == null )
+            return -1;
+
+        for ( int i = p.lowerBound( span[0] ); i < p.size && p.positions[i] < span[1]; ) {
+            if ( p.parents[i] == object )
+                return i;
+            // A field of a sibling: the field sought is not within its value
+            i = p.parents[i] == null ? i + 1 : p.lowerBound( p.ends[i] );
+        }
+        return -1;
+    }
+
+    /**
+     * @return the first free position before the given element: the end of the closest container before it, or the
+     *         start of the array.
+     */
+    private long freeBefore( ArrayNode array, int index, long[] span ) {
+        for ( int i = index - 1; i >= 0; i-- ) {
+            long[] elementSpan = spans.get( array.get( i ) );
+            if ( elementSpan != null )
+                return elementSpan[2];
+        }
+        return span[0];
+    }
+
+    /**
+     * @return the first position in use after the given element: the start of the closest container after it, or
+     *         -1 when there is none.
+     */
+    private long usedAfter( ArrayNode array, int index ) {
+        for ( int i = index; i < array.size(); i++ ) {
+            long[] elementSpan = spans.get( array.get( i ) );
+            if ( elementSpan != null )
+                return elementSpan[0];
+        }
+        return -1;
+    }
+
+    /**
+     * Indexes a new element, placed between the given free position and the next container of the array.
+     */
+    private void placeElement( ArrayNode array, int index, long from, long[] span ) {
+        long to = usedAfter( array, index + 1 );
+        long end = place( from, to < 0 ? span[2] : to, null, null, array.get( index ), to < 0 );
+        if ( to < 0 && end > span[1] )
+            span[1] = end;
+    }
+
+    @Override
+    public JsonNode put( ObjectNode object, String fieldName, JsonNode value ) {
+        long[] span = spans.get( object );
+        if ( span == null )
+            return object.put( fieldName, value );
+
+        Postings p = postings.get( fieldName );
+        int i = indexOf( p, object, span );
+        if ( i < 0 ) {
+            JsonNode old = object.put( fieldName, value );
+            long end = place( span[1], span[2], object, fieldName, value, true );
+            if ( end >= 0 )
+                span[1] = end;
+            return old;
+        }
+
+        // The field keeps its place: the new value takes the positions of the old one
+        long from = p.positions[i] + 1;
+        long to = p.ends[i];
+        p.values[i] = value;
+        JsonNode old = object.put( fieldName, value );
+        unindex( old );
+        place( from, to, null, null, value, false );
+        return old;
+    }
+
+    @Override
+    public JsonNode remove( ObjectNode object, String fieldName ) {
+        long[] span = spans.get( object );
+        if ( span == null )
+            return object.remove( fieldName );
+
+        Postings p = postings.get( fieldName );
+        int i = indexOf( p, object, span );
+        if ( i >= 0 ) {
+            long position = p.positions[i];
+            unindex( p.values[i] );
+            fields -= p.remove( position, position + 1 );
+        }
+        return object.remove( fieldName );
+    }
+
+    @Override
+    public void add( ArrayNode array, JsonNode value ) {
+        long[] span = spans.get( array );
+        array.add( value );
+        if ( span != null ) {
+            long end = place( span[1], span[2], null, null, value, true );
+            if ( end >= 0 )
+                span[1] = end;
+        }
+    }
+
+    @Override
+    public void insert( ArrayNode array, int index, JsonNode value ) {
+        long[] span = spans.get( array );
+        if ( span == null ) {
+            array.insert( index, value );
+            return;
+        }
+
+        index = Math.max( 0, Math.min( index, array.size() ) );
+        long from = freeBefore( array, index, span );
+        array.insert( index, value );
+        placeElement( array, index, from, span );
+    }
+
+    @Override
+    public JsonNode set( ArrayNode array, int index, JsonNode value ) {
+        long[] span = spans.get( array );
+        // Only containers take positions
+        if ( span == null || !array.get( index ).isContainerNode() && !value.isContainerNode() )
+            return array.set( index, value );
+
+        long from = freeBefore( array, index, span );
+        unindex( array.get( index ) );
+        JsonNode old = array.set( index, value );
+        placeElement( array, index, from, span );
+        return old;
+    }
+
+    @Override
+    public JsonNode remove( ArrayNode array, int index ) {
+        if ( spans.containsKey( array ) && index >= 0 && index < array.size() )
+            unindex( array.get( index ) );
+        return array.remove( index );
+    }
+
+    @Override
+    public void removeAll( ArrayNode array, int[] indexes ) {
+        if ( spans.containsKey( array ) )
+            for ( int index : indexes )
+                unindex( array.get( index ) );
+        JsonTreeMutator.direct().removeAll( array, indexes );
+    }
+
+    /**
+     * @return the tree this index was built from.
+     */
+    public JsonNode getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the number of fields indexed.
+     */
+    public int size() {
+        return fields;
+    }
+
+    /**
+     * @param name
+     * @return the number of fields with that name.
+     */
+    public int count( String name ) {
+        Postings p = postings.get( name );
+        return p == null ? 0 : p.count();
+    }
+
+    /**
+     * Same selection as JsonNode.findParents / JsonNode.findValues on the context: the fields with the given name at
+     * any depth under the context, in document order, not looking within the fields already selected.
+     *
+     * @param context
+     * @param name
+     * @param parents receives the object holding each field
+     * @param values receives the value of each field
+     * @return false if the context is not a container of the indexed tree, or is small enough to be walked; nothing
+     *         is selected then.
+     */
+    boolean findDescendants( JsonNode context, String name, List<JsonNode> parents, List<JsonNode> values ) {
+        long[] span = spans.get( context );
+        if ( span == null || span[1] - span[0] < MIN_LOOKUP_SPAN * GAP )
+            return false;
+
+        Postings p = postings.get( name );
+        if ( p == null )
+            return true;
+
+        long skipUntil = span[0];
+        for ( int i = p.lowerBound( span[0] ); i < p.size && p.positions[i] < span[1]; i++ ) {
+            if ( p.parents[i] == null || p.positions[i] < skipUntil )
+                continue;
+
+            parents.add( p.parents[i] );
+            values.add( p.values[i] );
+            skipUntil = p.ends[i];
+        }
+        return true;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.vmware.xpath.json;
+
+import java.util.List;
+
+import org.codehaus.jackson.JsonNode;
+
+import com.vmware.xpath.TraversalStopException;
+import com.vmware.xpath.VisitResult;
+import com.vmware.xpath.XpathVisitorException;
+import com.vmware.xpath.json.CompiledXpath.Step;
+
+/**
+ * Visitor steering the traversal through the {@link VisitResult} it returns, rather than by throwing. Besides the
+ * nodes selected by the Xpath, it may look at the nodes selected by the intermediate steps as the traversal enters
+ * them, and prune the traversal below those it has no use for.
+ *
+ * {@link JsonXpathVisitor}s are supported through {@link #of(JsonXpathVisitor)}.
+ *
+ * @see CompiledXpath#traverse(JsonNode, JsonXpathNodeVisitor)
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+@FunctionalInterface
+public interface JsonXpathNodeVisitor
+{
+    /**
+     * Visits a node selected by the Xpath. Changes made through the mutator keep an index of the tree up to date.
+     *
+     * @param parent
+     * @param currentNodeToSelect
+     * @param mutator to make the changes with
+     * @return STOP to end the traversal; SKIP_SUBTREE is the same as CONTINUE, as nothing is selected below the node.
+     */
+    VisitResult visit( JsonNode parent, JsonNode currentNodeToSelect, JsonTreeMutator mutator );
+
+    /**
+     * Called for each node selected by an intermediate step, before the rest of the Xpath is evaluated on it. The node
+     * must not be modified.
+     *
+     * @param step the step that selected the node
+     * @param parent
+     * @param node
+     * @return SKIP_SUBTREE to select nothing below the node, STOP to end the traversal.
+     */
+    default VisitResult enter( Step step, JsonNode parent, JsonNode node ) {
+        return VisitResult.CONTINUE;
+    }
+
+    /**
+     * Visits the nodes a step selected, in document order, the nodes of one parent one after the other, until one of
+     * the visits returns STOP.
+     *
+     * @param parents
+     * @param nodes
+     * @param mutator to make the changes with
+     * @return STOP if a visit did, CONTINUE otherwise.
+     */
+    default VisitResult visitAll( List<JsonNode> parents, List<JsonNode> nodes, JsonTreeMutator mutator ) {
+        for ( int i = 0; i < nodes.size(); i++ ) {
+            if ( visit( parents.get( i ), nodes.get( i ), mutator ) == VisitResult.STOP )
+                return VisitResult.STOP;
+        }
+        return VisitResult.CONTINUE;
+    }
+
+    /**
+     * Adapts a {@link JsonXpathVisitor}: a node throwing XpathVisitorException is skipped. TraversalStopException keeps
+     * its meaning: no visit follows, but the selection goes on, and the traversal still returns every node the Xpath
+     * selects. Only {@link VisitResult#STOP} cuts the selection short. {@link MutatingJsonXpathVisitor}s still make
+     * the edits of each parent in one batch.
+     *
+     * The adapter remembers the stop: use one per traversal.
+     *
+     * @param visitor
+     * @return the adapted visitor, or null if visitor is null.
+     */
+    static JsonXpathNodeVisitor of( JsonXpathVisitor visitor ) {
+        if ( visitor == null )
+            return null;
+
+        return new JsonXpathNodeVisitor() {
+            private boolean stopped;
+
+            @Override
+            public VisitResult visit( JsonNode parent, JsonNode currentNodeToSelect, JsonTreeMutator mutator ) {
+                if ( stopped )
+                    return VisitResult.CONTINUE;
+
+                try {
+                    MutatingJsonXpathVisitor.visit( visitor, parent, currentNodeToSelect, mutator );
+                } catch ( XpathVisitorException e ) {
+                    return VisitResult.CONTINUE;
+                } catch ( TraversalStopException e ) {
+                    stopped = true;
+                }
+                return VisitResult.CONTINUE;
+            }
+
+            @Override
+            public VisitResult visitAll( List<JsonNode> parents, List<JsonNode> nodes, JsonTreeMutator mutator ) {
+                if ( stopped )
+                    return VisitResult.CONTINUE;
+
+                try {
+                    MutatingJsonXpathVisitor.visitAll( visitor, parents, nodes, mutator );
+                } catch ( TraversalStopException e ) {
+                    stopped = true;
+                }
+                return VisitResult.CONTINUE;
+            }
+
+            @Override
+            public String toString() {
+                return String.valueOf( visitor );
+            }
+        };
+    }
+}
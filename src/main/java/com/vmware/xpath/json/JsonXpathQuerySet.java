@@ -0,0 +1,328 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.vmware.xpath.json;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vmware.xpath.json.CompiledXpath.Axis;
+import com.vmware.xpath.json.CompiledXpath.Step;
+
+/**
+ * Evaluates many Xpaths over the same JSON tree in a single traversal. Each query selects the same nodes, in the same
+ * order, as {@link JsonXpath#findAndUpdateMultiple(JsonNode, String, JsonXpathVisitor)} would; but the tree is walked
+ * once for all of them, instead of once per query, and subtrees no query can match in are not walked at all.
+ *
+ * Usage:
+ *
+ * <pre>
+ * JsonXpathQuerySet queries = new JsonXpathQuerySet()
+ *     .add( "//firewallRules/ruleId", ruleIdVisitor )
+ *     .add( "//groupingObjectId", groupingObjectVisitor );
+ * Map&lt;String, List&lt;JsonNode&gt;&gt; results = queries.evaluate( edge );
+ * </pre>
+ *
+ * Visitors are called once the traversal is over, query by query in the order they were added, with the nodes of their
+ * query in document order, those of one parent in one batch; they may modify the tree. Queries are to be
+ * added before the set is shared; {@link #evaluate(JsonNode)} itself can then be called from any number of threads.
+ *
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+public final class JsonXpathQuerySet
+{
+    private static final Logger LOG = LoggerFactory.getLogger( JsonXpathQuerySet.class );
+
+    private static final BitSet NONE = new BitSet();
+
+    private final List<CompiledXpath> xpaths = new ArrayList<>();
+
+    private final List<JsonXpathVisitor> visitors = new ArrayList<>();
+
+    private volatile Automaton automaton;
+
+    /**
+     * The steps of all the queries, numbered as states: state <code>s</code> looks for its step in the context it
+     * is active in; once the step selects a node, state <code>s + 1</code> (the next step of the same query) becomes
+     * active with that node as its context.
+     */
+    private static final class Automaton
+    {
+        final Step[] steps;
+
+        final int[] query;
+
+        final boolean[] last;
+
+        /** Field name to the states whose step selects that name */
+        final Map<String, int[]> byName = new HashMap<>();
+
+        final BitSet initialDescendants = new BitSet();
+
+        final BitSet initialChildren = new BitSet();
+
+        Automaton( List<CompiledXpath> xpaths ) {
+            List<Step> allSteps = new ArrayList<>();
+            List<Integer> queries = new ArrayList<>();
+            for ( int q = 0; q < xpaths.size(); q++ ) {
+                List<Step> querySteps = xpaths.get( q ).getSteps();
+                ( querySteps.get( 0 ).getAxis() == Axis.DESCENDANT ? initialDescendants : initialChildren ).set( allSteps.size() );
+                for ( Step step : querySteps ) {
+                    allSteps.add( step );
+                    queries.add( q );
+                }
+            }
+
+            steps = allSteps.toArray( new Step[allSteps.size()] );
+            query = new int[steps.length];
+            last = new boolean[steps.length];
+            Map<String, List<Integer>> names = new HashMap<>();
+            for ( int s = 0; s < steps.length; s++ ) {
+                query[s] = queries.get( s );
+                last[s] = s == steps.length - 1 || queries.get( s + 1 ) != query[s];
+                names.computeIfAbsent( steps[s].getName(), k -> new ArrayList<>() ).add( s );
+            }
+            for ( Entry<String, List<Integer>> name : names.entrySet() )
+                byName.put( name.getKey(), name.getValue().stream().mapToInt( Integer::intValue ).toArray() );
+        }
+    }
+
+    /**
+     * The matches of one traversal, query by query, in document order.
+     */
+    private static final class Matches
+    {
+        final List<List<JsonNode>> parents = new ArrayList<>();
+
+        final List<List<JsonNode>> values = new ArrayList<>();
+
+        Matches( int queries ) {
+            for ( int q = 0; q < queries; q++ ) {
+                parents.add( new ArrayList<>() );
+                values.add( new ArrayList<>() );
+            }
+        }
+
+        void add( int query, JsonNode parent, JsonNode value ) {
+            parents.get( query ).add( parent );
+            values.get( query ).add( value );
+        }
+
+        /**
+         * Hands the matches of the query to its visitor, the nodes of one parent in one batch. Parents are told apart
+         * by identity; the structural equals() of Jackson containers would walk whole subtrees.
+         */
+        void visit( int query, JsonXpathNodeVisitor visitor ) {
+            List<JsonNode> queryParents = parents.get( query );
+            List<JsonNode> queryValues = values.get( query );
+            int start = 0;
+            while ( start < queryValues.size() ) {
+                JsonNode parent = queryParents.get( start );
+                int end = start + 1;
+                while ( end < queryValues.size() && queryParents.get( end ) == parent )
+                    end++;
+                visitor.visitAll( queryParents.subList( start, end ), queryValues.subList( start, end ), JsonTreeMutator.direct() );
+                start = end;
+            }
+        }
+    }
+
+    /**
+     * @param xpath
+     * @param visitor called for each node selected by the Xpath
+     * @return this query set
+     */
+    public JsonXpathQuerySet add( String xpath, JsonXpathVisitor visitor ) {
+        return add( JsonXpath.compile( xpath ), visitor );
+    }
+
+    /**
+     * @param xpath
+     * @param visitor called for each node selected by the Xpath
+     * @return this query set
+     */
+    public synchronized JsonXpathQuerySet add( CompiledXpath xpath, JsonXpathVisitor visitor ) {
+        for ( CompiledXpath existing : xpaths ) {
+            if ( existing.toString().equals( xpath.toString() ) )
+                throw new IllegalArgumentException( "Xpath already in the query set: " + xpath );
+        }
+
+        xpaths.add( xpath );
+        visitors.add( visitor == null ? NullJsonFilter.instance() : visitor );
+        automaton = null;
+        return this;
+    }
+
+    /**
+     * @param xpath
+     * @return this query set
+     */
+    public JsonXpathQuerySet add( String xpath ) {
+        return add( xpath, NullJsonFilter.instance() );
+    }
+
+    private Automaton automaton() {
+        Automaton a = automaton;
+        if ( a == null ) {
+            synchronized ( this ) {
+                if ( automaton == null )
+                    automaton = new Automaton( xpaths );
+                a = automaton;
+            }
+        }
+        return a;
+    }
+
+    /**
+     * Walks the tree once, then hands each query's selected nodes to its visitor, the same as
+     * {@link CompiledXpath#update(JsonNode, JsonXpathVisitor)} would: the nodes of one parent in one batch, and
+     * TraversalStopException ends the visits of the query, not its selection.
+     *
+     * @param tree
+     * @return the nodes selected by each Xpath, keyed by Xpath, in the order the queries were added.
+     */
+    public Map<String, List<JsonNode>> evaluate( JsonNode tree ) {
+        Automaton a = automaton();
+        Matches matches = new Matches( xpaths.size() );
+        walk( a, tree, a.initialDescendants, a.initialChildren, matches );
+
+        Map<String, List<JsonNode>> ret = new LinkedHashMap<>();
+        for ( int q = 0; q < xpaths.size(); q++ ) {
+            LOG.debug( "XPath: {}, {} nodes selected", xpaths.get( q ), matches.values.get( q ).size() );
+            matches.visit( q, JsonXpathNodeVisitor.of( visitors.get( q ) ) );
+            ret.put( xpaths.get( q ).toString(), matches.values.get( q ) );
+        }
+        return ret;
+    }
+
+    /**
+     * @param node
+     * @param descendants the states looking for their step anywhere under this node
+     * @param children the states looking for their step in the fields of this node (or, for an array, in the fields
+     *            of its object elements)
+     * @param matches
+     */
+    private static void walk( Automaton a, JsonNode node, BitSet descendants, BitSet children, Matches matches ) {
+        if ( descendants.isEmpty() && children.isEmpty() )
+            return;
+
+        if ( node instanceof ObjectNode ) {
+            for ( Iterator<Entry<String, JsonNode>> itr = node.getFields(); itr.hasNext(); ) {
+                Entry<String, JsonNode> field = itr.next();
+                walkField( a, node, field.getKey(), field.getValue(), descendants, children, matches );
+            }
+        } else if ( node instanceof ArrayNode ) {
+            for ( JsonNode element : node )
+                walk( a, element, descendants, element instanceof ObjectNode ? children : NONE, matches );
+        }
+    }
+
+    private static void walkField( Automaton a, JsonNode parent, String name, JsonNode fieldValue, BitSet descendants,
+        BitSet children, Matches matches ) {
+        int[] candidates = a.byName.get( name );
+
+        BitSet matched = null;
+        if ( candidates != null ) {
+            for ( int s : candidates ) {
+                if ( descendants.get( s ) || children.get( s ) ) {
+                    if ( matched == null )
+                        matched = new BitSet();
+                    matched.set( s );
+                }
+            }
+        }
+
+        if ( matched == null ) {
+            // Only the states searching at any depth carry on into the field value
+            walk( a, fieldValue, descendants, NONE, matches );
+            return;
+        }
+
+        // A state that selected this field does not search within it
+        BitSet below = descendants;
+        if ( descendants.intersects( matched ) ) {
+            below = (BitSet) descendants.clone();
+            below.andNot( matched );
+        }
+
+        if ( fieldValue instanceof ArrayNode ) {
+            for ( int i = 0; i < fieldValue.size(); i++ )
+                select( a, fieldValue, fieldValue.get( i ), i, fieldValue.size(), matched, below, NONE, matches );
+        } else {
+            select( a, parent, fieldValue, -1, 0, matched, below, NONE, matches );
+        }
+    }
+
+    /**
+     * The node is selected by the matched states whose filter accepts it; it then becomes the context of their next
+     * steps, and is walked along with the states searching below it.
+     *
+     * @param position of the node within its array, or -1 for a field value
+     * @param size of the array
+     */
+    private static void select( Automaton a, JsonNode parent, JsonNode node, int position, int size, BitSet matched,
+        BitSet descendants, BitSet children, Matches matches ) {
+        BitSet nodeDescendants = descendants;
+        BitSet nodeChildren = children;
+
+        for ( int s = matched.nextSetBit( 0 ); s >= 0; s = matched.nextSetBit( s + 1 ) ) {
+            if ( !a.steps[s].accept( node, position, size ) )
+                continue;
+
+            if ( a.last[s] ) {
+                matches.add( a.query[s], parent, node );
+            } else if ( a.steps[s + 1].getAxis() == Axis.DESCENDANT ) {
+                if ( nodeDescendants == descendants )
+                    nodeDescendants = (BitSet) descendants.clone();
+                nodeDescendants.set( s + 1 );
+            } else {
+                if ( nodeChildren == children )
+                    nodeChildren = (BitSet) children.clone();
+                nodeChildren.set( s + 1 );
+            }
+        }
+
+        walk( a, node, nodeDescendants, nodeChildren, matches );
+    }
+}
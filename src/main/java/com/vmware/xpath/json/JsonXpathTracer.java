@@ -0,0 +1,137 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.vmware.xpath.json;
+
+import org.codehaus.jackson.JsonNode;
+
+import com.vmware.xpath.json.CompiledXpath.Step;
+
+/**
+ * Receives the events of the Xpath evaluations while installed through {@link JsonXpathTracing#enable(JsonXpathTracer)}.
+ * Events are only created when a tracer is installed; evaluations otherwise run untraced, with no logging or string
+ * building on their path.
+ *
+ * Tracers are called on the evaluating thread, and must be thread-safe if evaluations run concurrently.
+ *
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+@FunctionalInterface
+public interface JsonXpathTracer
+{
+    void trace( Event event );
+
+    /**
+     * One event of an evaluation. The path of a node is the chain of fields and array positions leading to it from the
+     * tree the evaluation started on, such as /firewallRules[2]/source[0]/groupingObjectId.
+     */
+    final class Event
+    {
+        public enum Kind
+        {
+            /** A step is evaluated on a context node */
+            STEP,
+            /** A candidate node of a step is filtered; see {@link Event#isAccepted()} */
+            CANDIDATE
+        }
+
+        private final Kind kind;
+        private final CompiledXpath xpath;
+        private final int stepIndex;
+        private final String path;
+        private final JsonNode parent;
+        private final JsonNode node;
+        private final boolean accepted;
+
+        Event( Kind kind, CompiledXpath xpath, int stepIndex, String path, JsonNode parent, JsonNode node, boolean accepted ) {
+            this.kind = kind;
+            this.xpath = xpath;
+            this.stepIndex = stepIndex;
+            this.path = path;
+            this.parent = parent;
+            this.node = node;
+            this.accepted = accepted;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public CompiledXpath getXpath() {
+            return xpath;
+        }
+
+        public int getStepIndex() {
+            return stepIndex;
+        }
+
+        public Step getStep() {
+            return xpath.getSteps().get( stepIndex );
+        }
+
+        /**
+         * @return the path of the context node for a STEP event, of the candidate node for a CANDIDATE event.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the parent of the candidate node; null for a STEP event.
+         */
+        public JsonNode getParent() {
+            return parent;
+        }
+
+        /**
+         * @return the context node for a STEP event, the candidate node for a CANDIDATE event.
+         */
+        public JsonNode getNode() {
+            return node;
+        }
+
+        /**
+         * @return true if the step selects the candidate node: it has no [] filter, or its filter accepts the node.
+         *         Always true for a STEP event.
+         */
+        public boolean isAccepted() {
+            return accepted;
+        }
+
+        /**
+         * Nodes are left out, as they may be arbitrarily large.
+         */
+        @Override
+        public String toString() {
+            return kind + " " + getStep() + " " + ( path.isEmpty() ? "/" : path ) + ( kind == Kind.CANDIDATE ? accepted ? " accepted" : " rejected" : "" );
+        }
+    }
+}
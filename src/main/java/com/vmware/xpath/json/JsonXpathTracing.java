@@ -0,0 +1,84 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package com.vmware.xpath.json;
+
+/**
+ * Switches the tracing of the Xpath evaluations on and off, for the whole JVM. Each evaluation checks for a tracer once,
+ * when it starts; an evaluation started while tracing is off is not traced.
+ *
+ * <pre>
+ * List&lt;JsonXpathTracer.Event&gt; events = Collections.synchronizedList( new ArrayList&lt;&gt;() );
+ * JsonXpathTracing.enable( events::add );
+ * try {
+ *     JsonXpath.findAndUpdateMultiple( tree, "//firewallRules/firewallRules[value.get('ruleId') &gt; 131073]/name", null );
+ * } finally {
+ *     JsonXpathTracing.disable();
+ * }
+ * </pre>
+ *
+ * Traced evaluations on a {@link JsonXpathIndex} walk the tree rather than looking up the index, so that every node
+ * has its path. The parallel evaluation, the streaming evaluation and the evaluation on other tree models through
+ * {@link JsonTreeXpath} are not traced.
+ *
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+public final class JsonXpathTracing
+{
+    private static volatile JsonXpathTracer tracer;
+
+    private JsonXpathTracing() {
+    }
+
+    /**
+     * @param tracer receives the events of the evaluations started from now on, replacing any tracer installed before
+     */
+    public static void enable( JsonXpathTracer tracer ) {
+        if ( tracer == null )
+            throw new IllegalArgumentException( "Invalid tracer: null" );
+        JsonXpathTracing.tracer = tracer;
+    }
+
+    public static void disable() {
+        tracer = null;
+    }
+
+    public static boolean isEnabled() {
+        return tracer != null;
+    }
+
+    /**
+     * @return the installed tracer, or null if tracing is off.
+     */
+    static JsonXpathTracer tracer() {
+        return tracer;
+    }
+}
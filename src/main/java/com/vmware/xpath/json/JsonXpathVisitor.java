@@ -51,7 +51,8 @@ public interface JsonXpathVisitor
      * @param currentNodeToSelect
      * @return true always! ignored for now!
      * @throws XpathVisitorException This will not cause the next traversal to stop
-     * @throws TraversalStopException if the client wants to abort iterating further
+     * @throws TraversalStopException if the client wants to abort iterating further: no other node is visited, but
+     *             the Xpath is still evaluated to the end, and returns all the nodes it selects
      */
     boolean visit(JsonNode parent, JsonNode currentNodeToSelect) throws XpathVisitorException, TraversalStopException;
 }
\ No newline at end of file
@@ -0,0 +1,86 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.vmware.xpath.json;
+
+import java.util.function.Predicate;
+
+import org.codehaus.jackson.JsonNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Evaluates filters in Java, without any script engine. Supports the expression language described in
+ * {@link FilterCompiler}; other filters are left to the next engine.
+ *
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+public final class NativePredicateEngine implements PredicateEngine
+{
+    private static final Logger LOG = LoggerFactory.getLogger( NativePredicateEngine.class );
+
+    @Override
+    public int getOrder() {
+        return 0;
+    }
+
+    @Override
+    public Predicate<JsonNode> compile( String filter ) {
+        TreePredicate predicate;
+        try {
+            predicate = FilterCompiler.compile( filter );
+        } catch ( FilterCompiler.UnsupportedFilterException e ) {
+            LOG.debug( "Not a native filter: {}", e.getMessage() );
+            return null;
+        }
+
+        return new TreePredicate() {
+            @Override
+            public boolean test( JsonNode value ) {
+                try {
+                    return predicate.test( value );
+                } catch ( IllegalStateException e ) {
+                    throw new IllegalArgumentException( "Illegal Filter Expression: " + filter, e );
+                }
+            }
+
+            @Override
+            public <N> boolean test( JsonTreeAdapter<N> adapter, N value ) {
+                try {
+                    return predicate.test( adapter, value );
+                } catch ( IllegalStateException e ) {
+                    throw new IllegalArgumentException( "Illegal Filter Expression: " + filter, e );
+                }
+            }
+        };
+    }
+}
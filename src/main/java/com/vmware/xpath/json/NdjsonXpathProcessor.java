@@ -0,0 +1,382 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.vmware.xpath.json;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Evaluates an Xpath over each record of a newline-delimited JSON (JSON Lines) file.
+ *
+ * The file is memory-mapped rather than read onto the heap, and cut into chunks evaluated as separate tasks on an
+ * executor. Each record is parsed straight off the mapping with {@link StreamingJsonXpath}, so only the matches are
+ * ever materialized. Blank lines are ignored; a record that is not a single well-formed JSON value is counted as
+ * malformed and skipped.
+ *
+ * <pre>
+ * NdjsonXpathProcessor processor = new NdjsonXpathProcessor( JsonXpath.compile( "//userName" ), pool );
+ * NdjsonXpathProcessor.Summary summary = processor.process( auditLog, ( offset, matches ) -&gt; ... );
+ * </pre>
+ *
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+public final class NdjsonXpathProcessor
+{
+    private static final Logger LOG = LoggerFactory.getLogger( NdjsonXpathProcessor.class );
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /** Default number of bytes handed to a task */
+    public static final long DEFAULT_CHUNK_SIZE = 64L << 20;
+
+    /** Bytes mapped at a time; a record has to fit in it */
+    private static final long WINDOW = 1L << 30;
+
+    /**
+     * Receives the matches of each record. Called from the executor's threads: records of different chunks are handed
+     * over concurrently, and the records of a chunk in file order.
+     */
+    public interface RecordSink
+    {
+        /**
+         * @param offset position of the record in the file, in bytes
+         * @param matches the nodes selected in the record; never empty
+         */
+        void accept( long offset, List<JsonNode> matches );
+    }
+
+    private final CompiledXpath xpath;
+
+    private final Executor executor;
+
+    private final long chunkSize;
+
+    public NdjsonXpathProcessor( CompiledXpath xpath, Executor executor ) {
+        this( xpath, executor, DEFAULT_CHUNK_SIZE );
+    }
+
+    /**
+     * @param xpath
+     * @param executor
+     * @param chunkSize number of bytes handed to each task; records straddling the end of a chunk go with it
+     */
+    public NdjsonXpathProcessor( CompiledXpath xpath, Executor executor, long chunkSize ) {
+        if ( chunkSize < 1 )
+            throw new IllegalArgumentException( "Incorrect chunk size: " + chunkSize );
+        this.xpath = xpath;
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Evaluates the Xpath over each record of the file, handing the matches of each record to the sink. At most twice
+     * as many chunks as there are cores are handed to the executor at any time; a chunk the executor rejects is run by
+     * the caller. Blocks until the whole file is done.
+     *
+     * @param file
+     * @param sink
+     * @return the record counts and throughput.
+     * @throws IOException if the file cannot be read, or holds a record too long to be mapped
+     * @throws InterruptedException if interrupted while waiting; the chunks already handed over are done, and the file
+     *             closed, by then
+     */
+    public Summary process( Path file, RecordSink sink ) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        try ( FileChannel channel = FileChannel.open( file, StandardOpenOption.READ ) ) {
+            long size = channel.size();
+            int count = (int) Math.max( 1, ( size + chunkSize - 1 ) / chunkSize );
+            int maxInFlight = 2 * Runtime.getRuntime().availableProcessors();
+
+            List<Chunk> chunks = new ArrayList<>( count );
+            BoundedSubmission submission = new BoundedSubmission( executor, maxInFlight );
+            for ( int i = 0; i < count; i++ ) {
+                Chunk chunk = new Chunk( channel, size, i * chunkSize, Math.min( size, ( i + 1 ) * chunkSize ), sink );
+                chunks.add( chunk );
+                submission.submit( chunk::run );
+            }
+            submission.awaitAll();
+
+            long records = 0;
+            long matchedRecords = 0;
+            long matches = 0;
+            long malformed = 0;
+            for ( Chunk chunk : chunks ) {
+                if ( chunk.error != null )
+                    throw new IOException( "Failed to process " + file + " at offset " + chunk.from, chunk.error );
+                records += chunk.records;
+                matchedRecords += chunk.matchedRecords;
+                matches += chunk.matches;
+                malformed += chunk.malformed;
+            }
+
+            Summary ret = new Summary( size, records, matchedRecords, matches, malformed, System.nanoTime() - start );
+            LOG.debug( "Processed {} with {}: {}", file, xpath, ret );
+            return ret;
+        }
+    }
+
+    /**
+     * The records starting in [from, to), read off a mapped window of the file.
+     */
+    private final class Chunk
+    {
+        final FileChannel channel;
+
+        final long size;
+
+        final long from;
+
+        final long to;
+
+        final RecordSink sink;
+
+        ByteBuffer window;
+
+        long windowStart;
+
+        long windowEnd;
+
+        long records;
+
+        long matchedRecords;
+
+        long matches;
+
+        long malformed;
+
+        Throwable error;
+
+        Chunk( FileChannel channel, long size, long from, long to, RecordSink sink ) {
+            this.channel = channel;
+            this.size = size;
+            this.from = from;
+            this.to = to;
+            this.sink = sink;
+        }
+
+        void run() {
+            try {
+                // A record starting before the chunk belongs to the previous one
+                long position = from == 0 ? 0 : lineEnd( from - 1 ) + 1;
+                while ( position < to ) {
+                    long end = lineEnd( position );
+                    record( position, end );
+                    position = end + 1;
+                }
+            } catch ( Throwable e ) {
+                error = e;
+            }
+        }
+
+        /**
+         * @return the position of the first newline at or after position, or the size of the file.
+         */
+        long lineEnd( long position ) throws IOException {
+            while ( position < size ) {
+                if ( position < windowStart || position >= windowEnd )
+                    map( position );
+                int limit = (int) ( windowEnd - windowStart );
+                for ( int i = (int) ( position - windowStart ); i < limit; i++ ) {
+                    if ( window.get( i ) == '\n' )
+                        return windowStart + i;
+                }
+                position = windowEnd;
+            }
+            return size;
+        }
+
+        void record( long start, long end ) throws IOException {
+            if ( start < windowStart || end > windowEnd )
+                map( start );
+            if ( end > windowEnd )
+                throw new IOException( "Record at offset " + start + " is longer than " + WINDOW + " bytes" );
+
+            ByteBuffer bytes = window.duplicate();
+            bytes.limit( (int) ( end - windowStart ) ).position( (int) ( start - windowStart ) );
+            List<JsonNode> found = new ArrayList<>();
+            try ( JsonParser parser = MAPPER.getJsonFactory().createJsonParser( new ByteBufferInputStream( bytes ) ) ) {
+                if ( parser.nextToken() == null )
+                    return;
+                StreamingJsonXpath.evaluate( parser, xpath, found::add );
+                if ( parser.nextToken() != null )
+                    throw new JsonParseException( "Unexpected content after the record", parser.getCurrentLocation() );
+            } catch ( JsonProcessingException e ) {
+                malformed++;
+                LOG.debug( "Skipping malformed record at offset {}: {}", start, e.getMessage() );
+                return;
+            }
+
+            records++;
+            if ( !found.isEmpty() ) {
+                matchedRecords++;
+                matches += found.size();
+                sink.accept( start, found );
+            }
+        }
+
+        void map( long position ) throws IOException {
+            window = channel.map( FileChannel.MapMode.READ_ONLY, position, Math.min( WINDOW, size - position ) );
+            windowStart = position;
+            windowEnd = position + window.capacity();
+        }
+    }
+
+    /**
+     * Reads the remaining bytes of a buffer, without copying them elsewhere first.
+     */
+    private static final class ByteBufferInputStream extends InputStream
+    {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream( ByteBuffer buffer ) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len ) {
+            if ( !buffer.hasRemaining() )
+                return len == 0 ? 0 : -1;
+            int n = Math.min( len, buffer.remaining() );
+            buffer.get( b, off, n );
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * Outcome of {@link NdjsonXpathProcessor#process(Path, RecordSink)}.
+     */
+    public static final class Summary
+    {
+        private final long bytes;
+
+        private final long records;
+
+        private final long matchedRecords;
+
+        private final long matches;
+
+        private final long malformed;
+
+        private final long elapsedNanos;
+
+        Summary( long bytes, long records, long matchedRecords, long matches, long malformed, long elapsedNanos ) {
+            this.bytes = bytes;
+            this.records = records;
+            this.matchedRecords = matchedRecords;
+            this.matches = matches;
+            this.malformed = malformed;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return the size of the file.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return the number of well-formed records evaluated.
+         */
+        public long getRecords() {
+            return records;
+        }
+
+        /**
+         * @return the number of records in which the Xpath selected something.
+         */
+        public long getMatchedRecords() {
+            return matchedRecords;
+        }
+
+        /**
+         * @return the number of nodes selected, over all the records.
+         */
+        public long getMatches() {
+            return matches;
+        }
+
+        /**
+         * @return the number of records skipped as malformed.
+         */
+        public long getMalformedRecords() {
+            return malformed;
+        }
+
+        /**
+         * @return the wall-clock time taken by the whole file.
+         */
+        public long getElapsed( TimeUnit unit ) {
+            return unit.convert( elapsedNanos, TimeUnit.NANOSECONDS );
+        }
+
+        /**
+         * @return the number of bytes processed per second of wall-clock time.
+         */
+        public double getBytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : bytes * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format( "%d records, %d matched, %d matches, %d malformed in %.3f ms (%.1f MB/s)", records,
+                matchedRecords, matches, malformed, elapsedNanos / 1e6, getBytesPerSecond() / 1e6 );
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.vmware.xpath.json;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vmware.xpath.TraversalStopException;
+import com.vmware.xpath.json.CompiledXpath.Axis;
+import com.vmware.xpath.json.CompiledXpath.Step;
+
+/**
+ * Parallel evaluation of Xpaths, over a fork/join pool: large arrays and objects are split into chunks of elements
+ * (or fields), searched and filtered as separate tasks. Obtained through {@link JsonXpath#withParallelism(ForkJoinPool)}:
+ *
+ * <pre>
+ * List&lt;JsonNode&gt; ids = JsonXpath.withParallelism( ForkJoinPool.commonPool() )
+ *     .findAndUpdateMultiple( rules, "//groupingObjectId", visitor );
+ * </pre>
+ *
+ * Nodes are selected as with {@link JsonXpath#findAndUpdateMultiple(JsonNode, String, JsonXpathVisitor)}, and come
+ * back in document order. The visitor is only called once all the nodes have been selected, in one batch on the
+ * calling thread; visitors modifying the tree are therefore safe, but they do not run in parallel. A
+ * {@link TraversalStopException} stops all further visits. Filters run on the pool threads, and must be thread-safe.
+ *
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+public final class ParallelJsonXpath
+{
+    private static final Logger LOG = LoggerFactory.getLogger( ParallelJsonXpath.class );
+
+    /** Containers with more children than that are split; chunks of at most that many children run as one task */
+    private static final int CHUNK = 256;
+
+    private final ForkJoinPool pool;
+
+    ParallelJsonXpath( ForkJoinPool pool ) {
+        if ( pool == null )
+            throw new IllegalArgumentException( "No ForkJoinPool given" );
+        this.pool = pool;
+    }
+
+    /**
+     * The (parent, node) pairs selected, in document order.
+     */
+    private static final class Selection
+    {
+        final List<JsonNode> parents = new ArrayList<>();
+
+        final List<JsonNode> values = new ArrayList<>();
+
+        Selection addAll( Selection other ) {
+            parents.addAll( other.parents );
+            values.addAll( other.values );
+            return this;
+        }
+    }
+
+    /**
+     * Runs over a range of items, splitting it in halves down to chunks; the selections of the halves are
+     * concatenated in order.
+     */
+    private abstract static class RangeTask extends RecursiveTask<Selection>
+    {
+        private static final long serialVersionUID = 1L;
+
+        final int from;
+
+        final int to;
+
+        RangeTask( int from, int to ) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Selection compute() {
+            if ( to - from <= CHUNK ) {
+                Selection out = new Selection();
+                for ( int i = from; i < to; i++ )
+                    select( i, out );
+                return out;
+            }
+
+            int mid = ( from + to ) >>> 1;
+            RangeTask left = split( from, mid );
+            left.fork();
+            Selection right = split( mid, to ).compute();
+            return left.join().addAll( right );
+        }
+
+        abstract void select( int i, Selection out );
+
+        abstract RangeTask split( int from, int to );
+    }
+
+    /**
+     * One step, from each context of a list.
+     */
+    private static final class ContextsTask extends RangeTask
+    {
+        private static final long serialVersionUID = 1L;
+
+        final List<JsonNode> contexts;
+
+        final Step step;
+
+        ContextsTask( List<JsonNode> contexts, Step step, int from, int to ) {
+            super( from, to );
+            this.contexts = contexts;
+            this.step = step;
+        }
+
+        @Override
+        void select( int i, Selection out ) {
+            JsonNode context = contexts.get( i );
+            if ( step.getAxis() == Axis.DESCENDANT )
+                walk( context, step, out );
+            else
+                selectChildren( context, step, out );
+        }
+
+        @Override
+        RangeTask split( int from, int to ) {
+            return new ContextsTask( contexts, step, from, to );
+        }
+    }
+
+    /**
+     * A descendant step, within the elements of a large array.
+     */
+    private static final class ElementsTask extends RangeTask
+    {
+        private static final long serialVersionUID = 1L;
+
+        final JsonNode array;
+
+        final Step step;
+
+        ElementsTask( JsonNode array, Step step, int from, int to ) {
+            super( from, to );
+            this.array = array;
+            this.step = step;
+        }
+
+        @Override
+        void select( int i, Selection out ) {
+            walk( array.get( i ), step, out );
+        }
+
+        @Override
+        RangeTask split( int from, int to ) {
+            return new ElementsTask( array, step, from, to );
+        }
+    }
+
+    /**
+     * A descendant step, within the fields of a large object.
+     */
+    private static final class FieldsTask extends RangeTask
+    {
+        private static final long serialVersionUID = 1L;
+
+        final JsonNode object;
+
+        final List<Entry<String, JsonNode>> fields;
+
+        final Step step;
+
+        FieldsTask( JsonNode object, List<Entry<String, JsonNode>> fields, Step step, int from, int to ) {
+            super( from, to );
+            this.object = object;
+            this.fields = fields;
+            this.step = step;
+        }
+
+        @Override
+        void select( int i, Selection out ) {
+            Entry<String, JsonNode> field = fields.get( i );
+            if ( step.getName().equals( field.getKey() ) )
+                CompiledXpath.select( object, field.getValue(), step, out.values, out.parents );
+            else
+                walk( field.getValue(), step, out );
+        }
+
+        @Override
+        RangeTask split( int from, int to ) {
+            return new FieldsTask( object, fields, step, from, to );
+        }
+    }
+
+    /**
+     * A child step, from the objects of a large context array.
+     */
+    private static final class ChildrenTask extends RangeTask
+    {
+        private static final long serialVersionUID = 1L;
+
+        final JsonNode array;
+
+        final Step step;
+
+        ChildrenTask( JsonNode array, Step step, int from, int to ) {
+            super( from, to );
+            this.array = array;
+            this.step = step;
+        }
+
+        @Override
+        void select( int i, Selection out ) {
+            selectChild( array.get( i ), step, out );
+        }
+
+        @Override
+        RangeTask split( int from, int to ) {
+            return new ChildrenTask( array, step, from, to );
+        }
+    }
+
+    /**
+     * Same selection as CompiledXpath.walkDescendants, forking on the large containers.
+     */
+    private static void walk( JsonNode node, Step step, Selection out ) {
+        if ( node.size() <= CHUNK ) {
+            if ( node instanceof ObjectNode ) {
+                for ( Iterator<Entry<String, JsonNode>> itr = node.getFields(); itr.hasNext(); ) {
+                    Entry<String, JsonNode> field = itr.next();
+                    if ( step.getName().equals( field.getKey() ) )
+                        CompiledXpath.select( node, field.getValue(), step, out.values, out.parents );
+                    else
+                        walk( field.getValue(), step, out );
+                }
+            } else if ( node instanceof ArrayNode ) {
+                for ( JsonNode element : node )
+                    walk( element, step, out );
+            }
+        } else if ( node instanceof ObjectNode ) {
+            List<Entry<String, JsonNode>> fields = new ArrayList<>( node.size() );
+            node.getFields().forEachRemaining( fields::add );
+            out.addAll( new FieldsTask( node, fields, step, 0, fields.size() ).invoke() );
+        } else {
+            out.addAll( new ElementsTask( node, step, 0, node.size() ).invoke() );
+        }
+    }
+
+    private static void selectChildren( JsonNode context, Step step, Selection out ) {
+        if ( context instanceof ObjectNode ) {
+            selectChild( context, step, out );
+        } else if ( context instanceof ArrayNode ) {
+            if ( context.size() > CHUNK ) {
+                out.addAll( new ChildrenTask( context, step, 0, context.size() ).invoke() );
+            } else {
+                for ( JsonNode element : context )
+                    selectChild( element, step, out );
+            }
+        }
+    }
+
+    private static void selectChild( JsonNode object, Step step, Selection out ) {
+        if ( !( object instanceof ObjectNode ) )
+            return;
+
+        JsonNode fieldValue = object.get( step.getName() );
+        if ( fieldValue != null )
+            CompiledXpath.select( object, fieldValue, step, out.values, out.parents );
+    }
+
+    /**
+     * @param tree
+     * @param xpath
+     * @param visitor called on the calling thread, in document order, once all the nodes are selected; may be null,
+     *            to only select
+     * @return all the nodes selected by the Xpath, in document order.
+     */
+    public List<JsonNode> findAndUpdateMultiple( JsonNode tree, String xpath, JsonXpathVisitor visitor ) {
+        return findAndUpdateMultiple( tree, JsonXpath.compiled( xpath ), visitor );
+    }
+
+    /**
+     * @param tree
+     * @param xpath
+     * @param visitor called on the calling thread, in document order, once all the nodes are selected; may be null,
+     *            to only select
+     * @return all the nodes selected by the Xpath, in document order.
+     */
+    public List<JsonNode> findAndUpdateMultiple( JsonNode tree, CompiledXpath xpath, JsonXpathVisitor visitor ) {
+        LOG.debug( "XPath: {}", xpath );
+
+        Selection selection = null;
+        List<JsonNode> contexts = Collections.singletonList( tree );
+        for ( Step step : xpath.getSteps() ) {
+            selection = pool.invoke( new ContextsTask( contexts, step, 0, contexts.size() ) );
+            contexts = selection.values;
+        }
+
+        if ( visitor == null )
+            return selection.values;
+
+        try {
+            MutatingJsonXpathVisitor.visitAll( visitor, selection.parents, selection.values, JsonTreeMutator.direct() );
+        } catch ( TraversalStopException e ) {
+            LOG.debug( "Visits stopped", e );
+        }
+
+        return selection.values;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.vmware.xpath.json;
+
+import java.util.function.Predicate;
+
+import org.codehaus.jackson.JsonNode;
+
+/**
+ * Compiles the [] filters of Xpath steps. Engines are discovered through {@link java.util.ServiceLoader} (listed in
+ * <code>META-INF/services/com.vmware.xpath.json.PredicateEngine</code>), the first time an Xpath with a filter is
+ * compiled, and are asked in {@link #getOrder() order}; the first engine to support a filter compiles it.
+ *
+ * @see NativePredicateEngine
+ * @see ScriptPredicateEngine
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+public interface PredicateEngine
+{
+    /**
+     * @return engines with a lower order are asked first.
+     */
+    int getOrder();
+
+    /**
+     * @param filter the filter expression, without the enclosing []
+     * @return a predicate on the candidate node, or null if this engine does not support the filter. The predicate
+     *         must be thread-safe, and throws IllegalArgumentException if the filter cannot be evaluated.
+     */
+    Predicate<JsonNode> compile( String filter );
+}
@@ -0,0 +1,90 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.vmware.xpath.json;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.function.Predicate;
+
+import org.codehaus.jackson.JsonNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link PredicateEngine}s registered through the ServiceLoader. They are loaded on first use.
+ *
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+final class PredicateEngines
+{
+    private static final Logger LOG = LoggerFactory.getLogger( PredicateEngines.class );
+
+    private static final class Holder
+    {
+        static final List<PredicateEngine> ENGINES = load();
+    }
+
+    private PredicateEngines() {
+    }
+
+    private static List<PredicateEngine> load() {
+        List<PredicateEngine> engines = new ArrayList<>();
+        for ( PredicateEngine engine : ServiceLoader.load( PredicateEngine.class, PredicateEngine.class.getClassLoader() ) )
+            engines.add( engine );
+        engines.sort( Comparator.comparingInt( PredicateEngine::getOrder ) );
+
+        LOG.debug( "Predicate engines: {}", engines );
+        return engines;
+    }
+
+    /**
+     * @param filter
+     * @return the predicate compiled by the first engine supporting the filter. If no engine does, the predicate
+     *         throws IllegalArgumentException when evaluated.
+     */
+    static Predicate<JsonNode> compile( String filter ) {
+        for ( PredicateEngine engine : Holder.ENGINES ) {
+            Predicate<JsonNode> predicate = engine.compile( filter );
+            if ( predicate != null ) {
+                LOG.debug( "Filter [{}] compiled by {}", filter, engine.getClass().getSimpleName() );
+                return predicate;
+            }
+        }
+
+        return value -> {
+            throw new IllegalArgumentException( "Illegal Filter Expression: " + filter + " (no predicate engine supports it)" );
+        };
+    }
+}
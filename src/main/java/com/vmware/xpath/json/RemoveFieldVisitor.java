@@ -33,13 +33,10 @@
 package com.vmware.xpath.json;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 import org.codehaus.jackson.JsonNode;
-import org.codehaus.jackson.node.ArrayNode;
-import org.codehaus.jackson.node.ObjectNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -51,7 +48,7 @@ import com.vmware.xpath.XpathVisitorException;
  * @Copyright (c) 2018 VMware, Inc.  All rights reserved
  *
  */
-public final class RemoveFieldVisitor implements JsonXpathVisitor
+public final class RemoveFieldVisitor implements MutatingJsonXpathVisitor, Jackson2JsonXpathVisitor
 {
     final String xpath;
     final List<String> removedConstructs = new ArrayList<>();
@@ -71,50 +68,143 @@ public final class RemoveFieldVisitor implements JsonXpathVisitor
     }
 
     @Override
-    public boolean visit(JsonNode parent, JsonNode currentNodeToSelect)
+    public boolean visit(JsonNode parent, JsonNode currentNodeToSelect, JsonTreeMutator mutator)
             throws XpathVisitorException, TraversalStopException
     {
-        logger.debug(" ==> Found parent of the node "+ parent);
-        String origValue = currentNodeToSelect.asText();
-        logger.debug(" ==> TRYING removal of the node " + origValue);
+        return visit(JsonTreeAdapter.jackson1(mutator), parent, currentNodeToSelect);
+    }
 
-        if(parent instanceof ArrayNode) {
-            ArrayNode parentArr = (ArrayNode)parent;
-            for(Iterator<JsonNode> itr = parentArr.iterator(); itr.hasNext(); ) {
-                JsonNode node = itr.next();
+    @Override
+    public void visitAll(List<JsonNode> parents, List<JsonNode> nodes, JsonTreeMutator mutator)
+    {
+        visitAll(JsonTreeAdapter.jackson1(mutator), parents, nodes);
+    }
 
-                if(node.asText().equals(origValue)){
-                    logger.debug(" ==> // Removing construct {} for Xpath {}",
-                            currentNodeToSelect, this.xpath);
-                    this.removedConstructs.add(node.toString());
-                    itr.remove();
+    /**
+     * Same removal, on a Jackson 2 tree.
+     */
+    @Override
+    public boolean visit(com.fasterxml.jackson.databind.JsonNode parent,
+            com.fasterxml.jackson.databind.JsonNode currentNodeToSelect)
+            throws XpathVisitorException, TraversalStopException
+    {
+        return visit(JsonTreeAdapter.jackson2(), parent, currentNodeToSelect);
+    }
 
-                }
+    @Override
+    public void visitAll(List<com.fasterxml.jackson.databind.JsonNode> parents,
+            List<com.fasterxml.jackson.databind.JsonNode> nodes)
+    {
+        visitAll(JsonTreeAdapter.jackson2(), parents, nodes);
+    }
+
+    /**
+     * Same removal, on a tree of any model; as a {@link JsonTreeXpathVisitor} through <code>visitor::visit</code>.
+     * Only the selected node is removed; the other elements keep their order.
+     */
+    public <N> boolean visit(JsonTreeAdapter<N> adapter, N parent, N currentNodeToSelect)
+    {
+        logger.debug(" ==> Found parent of the node {}", parent);
+        String origValue = adapter.asText(currentNodeToSelect);
+        logger.debug(" ==> TRYING removal of the node {}", origValue);
+
+        if(adapter.isArray(parent)) {
+            int index = adapter.indexOf(parent, currentNodeToSelect, 0);
+            if(index >= 0) {
+                logger.debug(" ==> // Removing construct {} for Xpath {}",
+                        currentNodeToSelect, this.xpath);
+                this.removedConstructs.add(currentNodeToSelect.toString());
+                adapter.remove(parent, index);
             }
 
-        } else if (parent instanceof ObjectNode) {
-            ObjectNode parentObj = (ObjectNode)parent;
+        } else if (adapter.isObject(parent)) {
             String xpathNode = xpath.substring(xpath.lastIndexOf('/')+1);
-            String foundFieldName = "";
-            for(Iterator<Map.Entry<String, JsonNode>> itr = parentObj.getFields(); itr.hasNext(); ) {
-                Map.Entry<String, JsonNode> field = itr.next();
-
-                if(xpathNode.equals(field.getKey()) && field.getValue().asText().equals(origValue)){
-                    foundFieldName = field.getKey();
-                    if(!foundFieldName.isEmpty()) {
-                        logger.debug(" ==> Removing construct {}->{} for Xpath {}",
-                                foundFieldName, currentNodeToSelect, this.xpath);
-                        String msg = String.format("%s->%s", foundFieldName, currentNodeToSelect);
-                        this.removedConstructs.add(msg);
-                        itr.remove();
-                    }
-                }
+            N field = adapter.get(parent, xpathNode);
+
+            if(field != null && adapter.asText(field).equals(origValue)){
+                logger.debug(" ==> Removing construct {}->{} for Xpath {}",
+                        xpathNode, currentNodeToSelect, this.xpath);
+                String msg = String.format("%s->%s", xpathNode, currentNodeToSelect);
+                this.removedConstructs.add(msg);
+                adapter.remove(parent, xpathNode);
             }
         }
 
         return true;
     }
 
+    /**
+     * Same removals, in one pass over each parent array: the elements are looked up from where the previous one was
+     * found, then removed all at once.
+     */
+    public <N> void visitAll(JsonTreeAdapter<N> adapter, List<N> parents, List<N> nodes)
+    {
+        for(int from = 0; from < nodes.size(); ) {
+            N parent = parents.get(from);
+            int to = from + 1;
+            while(to < nodes.size() && parents.get(to) == parent) {
+                to++;
+            }
+
+            if(adapter.isArray(parent)) {
+                removeElements(adapter, parent, nodes.subList(from, to));
+            } else {
+                for(int i = from; i < to; i++) {
+                    visit(adapter, parent, nodes.get(i));
+                }
+            }
+            from = to;
+        }
+    }
+
+    private <N> void removeElements(JsonTreeAdapter<N> adapter, N array, List<N> nodes)
+    {
+        int[] indexes = new int[nodes.size()];
+        int count = 0;
+        int cursor = 0;
+        for(N node : nodes) {
+            int index = adapter.indexOf(array, node, cursor);
+            if(index >= 0) {
+                indexes[count++] = index;
+                cursor = index + 1;
+            }
+        }
+
+        // Elements found out of order, or twice, are put back in order
+        indexes = Arrays.copyOf(indexes, count);
+        Arrays.sort(indexes);
+        count = 0;
+        for(int i = 0; i < indexes.length; i++) {
+            if(i == 0 || indexes[i] != indexes[i-1]) {
+                indexes[count++] = indexes[i];
+                this.removedConstructs.add(adapter.get(array, indexes[i]).toString());
+            }
+        }
+
+        logger.debug(" ==> // Removing {} constructs for Xpath {}", count, this.xpath);
+        adapter.removeAll(array, Arrays.copyOf(indexes, count));
+    }
+
+    /**
+     * @return this visitor, for trees of any model evaluated through {@link JsonTreeXpath}.
+     */
+    public <N> JsonTreeXpathVisitor<N> asTreeVisitor()
+    {
+        return new JsonTreeXpathVisitor<N>() {
+            @Override
+            public boolean visit(JsonTreeAdapter<N> adapter, N parent, N currentNodeToSelect)
+            {
+                return RemoveFieldVisitor.this.visit(adapter, parent, currentNodeToSelect);
+            }
+
+            @Override
+            public void visitAll(JsonTreeAdapter<N> adapter, List<N> parents, List<N> nodes)
+            {
+                RemoveFieldVisitor.this.visitAll(adapter, parents, nodes);
+            }
+        };
+    }
+
     public List<String> getRemovedConstructs() {
         return this.removedConstructs;
     }
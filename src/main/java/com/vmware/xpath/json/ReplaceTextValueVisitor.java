@@ -33,13 +33,11 @@
 package com.vmware.xpath.json;
 
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.function.Consumer;
 
 import org.codehaus.jackson.JsonNode;
-import org.codehaus.jackson.node.ArrayNode;
-import org.codehaus.jackson.node.ObjectNode;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 import org.slf4j.Logger;
@@ -53,7 +51,7 @@ import com.vmware.xpath.XpathVisitorException;
  * @Copyright (c) 2018 VMware, Inc.  All rights reserved
  *
  */
-public final class ReplaceTextValueVisitor implements JsonXpathVisitor
+public final class ReplaceTextValueVisitor implements MutatingJsonXpathVisitor, Jackson2JsonXpathVisitor
 {
     final String xpath;
 
@@ -93,65 +91,127 @@ public final class ReplaceTextValueVisitor implements JsonXpathVisitor
     }
 
     @Override
-    public boolean visit(JsonNode parent, JsonNode currentNodeToSelect)
+    public boolean visit(JsonNode parent, JsonNode currentNodeToSelect, JsonTreeMutator mutator)
             throws XpathVisitorException, TraversalStopException
     {
-        logger.debug(" ==> Found parent of the node " + parent);
-        String origValue = currentNodeToSelect.asText();
-        logger.debug(" ==> TRYING replacement of the node " + origValue);
+        return visit(JsonTreeAdapter.jackson1(mutator), parent, currentNodeToSelect);
+    }
 
-        if(!this.replacementMap.containsKey(origValue)) {
+    @Override
+    public void visitAll(List<JsonNode> parents, List<JsonNode> nodes, JsonTreeMutator mutator)
+    {
+        visitAll(JsonTreeAdapter.jackson1(mutator), parents, nodes);
+    }
+
+    /**
+     * Same replacement, on a Jackson 2 tree.
+     */
+    @Override
+    public boolean visit(com.fasterxml.jackson.databind.JsonNode parent,
+            com.fasterxml.jackson.databind.JsonNode currentNodeToSelect)
+            throws XpathVisitorException, TraversalStopException
+    {
+        return visit(JsonTreeAdapter.jackson2(), parent, currentNodeToSelect);
+    }
+
+    @Override
+    public void visitAll(List<com.fasterxml.jackson.databind.JsonNode> parents,
+            List<com.fasterxml.jackson.databind.JsonNode> nodes)
+    {
+        visitAll(JsonTreeAdapter.jackson2(), parents, nodes);
+    }
+
+    /**
+     * Same replacement, on a tree of any model; as a {@link JsonTreeXpathVisitor} through <code>visitor::visit</code>.
+     * The selected node is replaced in place: an element keeps its index, a field its place within the object.
+     */
+    public <N> boolean visit(JsonTreeAdapter<N> adapter, N parent, N currentNodeToSelect)
+    {
+        logger.debug(" ==> Found parent of the node {}", parent);
+        String origValue = adapter.asText(currentNodeToSelect);
+        logger.debug(" ==> TRYING replacement of the node {}", origValue);
+
+        String replacementValue = this.replacementMap.get(origValue);
+        if(replacementValue == null) {
             logger.debug( "No replacement value found for {}", currentNodeToSelect );
             //throw new TraversalStopException("No replacement-value found for: " + currentNodeToSelect);
+            return true;
         }
 
-        String replacementValue = this.replacementMap.get(origValue);
-
-        if(parent instanceof ArrayNode) {
-            ArrayNode parentArr = (ArrayNode)parent;
-            for(Iterator<JsonNode> itr = parentArr.iterator(); itr.hasNext(); ) {
-                JsonNode node = itr.next();
-
-                if(node.asText().equals(origValue)){
-                    if(replacementValue!=null) {
-                        logger.debug(" ==> // Replacing node {} for Xpath {}, with {}",
-                                currentNodeToSelect, this.xpath, replacementValue);
-                        itr.remove();
-                    }
-                }
+        if(adapter.isArray(parent)) {
+            int index = adapter.indexOf(parent, currentNodeToSelect, 0);
+            if(index >= 0) {
+                logger.debug(" ==> // Replacing node {} for Xpath {}, with {}",
+                        currentNodeToSelect, this.xpath, replacementValue);
+                adapter.set(parent, index, adapter.textNode(replacementValue));
             }
 
-            if(replacementValue!=null) {
-                parentArr.add(replacementValue);
-            }
-
-        } else if (parent instanceof ObjectNode) {
-            ObjectNode parentObj = (ObjectNode)parent;
+        } else if (adapter.isObject(parent)) {
             String xpathNode = xpath.substring(xpath.lastIndexOf('/')+1);
             if(xpathNode.contains("[")) {
                 xpathNode = xpathNode.substring(0, xpathNode.indexOf('['));
             }
 
-            String foundFieldName = "";
-            for(Iterator<Map.Entry<String, JsonNode>> itr = parentObj.getFields(); itr.hasNext(); ) {
-                Map.Entry<String, JsonNode> field = itr.next();
-
-                if(xpathNode.equals(field.getKey()) && field.getValue().asText().equals(origValue)){
-                    foundFieldName = field.getKey();
-                    if(!foundFieldName.isEmpty() && replacementValue!=null) {
-                        logger.debug(" ==> Replacing node {}->{} for Xpath {}, with {}",
-                                foundFieldName, currentNodeToSelect, this.xpath, replacementValue);
-                        itr.remove();
-                    }
-                }
+            N field = adapter.get(parent, xpathNode);
+            if(field != null && adapter.asText(field).equals(origValue)){
+                logger.debug(" ==> Replacing node {}->{} for Xpath {}, with {}",
+                        xpathNode, currentNodeToSelect, this.xpath, replacementValue);
+                adapter.put(parent, xpathNode, adapter.textNode(replacementValue));
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Same replacements, in one pass over each parent array: the elements are looked up from where the previous one
+     * was found.
+     */
+    public <N> void visitAll(JsonTreeAdapter<N> adapter, List<N> parents, List<N> nodes)
+    {
+        int cursor = 0;
+        for(int i = 0; i < nodes.size(); i++) {
+            N parent = parents.get(i);
+            N node = nodes.get(i);
+            if(!adapter.isArray(parent)) {
+                visit(adapter, parent, node);
+                continue;
+            }
+
+            if(i == 0 || parents.get(i-1) != parent) {
+                cursor = 0;
+            }
+            int index = adapter.indexOf(parent, node, cursor);
+            if(index < 0) {
+                continue;
             }
+            cursor = index + 1;
 
-            if(!foundFieldName.isEmpty() && replacementValue!=null) {
-                parentObj.put(foundFieldName, replacementValue);
+            String replacementValue = this.replacementMap.get(adapter.asText(node));
+            if(replacementValue != null) {
+                adapter.set(parent, index, adapter.textNode(replacementValue));
             }
         }
+    }
 
-        return true;
+    /**
+     * @return this visitor, for trees of any model evaluated through {@link JsonTreeXpath}.
+     */
+    public <N> JsonTreeXpathVisitor<N> asTreeVisitor()
+    {
+        return new JsonTreeXpathVisitor<N>() {
+            @Override
+            public boolean visit(JsonTreeAdapter<N> adapter, N parent, N currentNodeToSelect)
+            {
+                return ReplaceTextValueVisitor.this.visit(adapter, parent, currentNodeToSelect);
+            }
+
+            @Override
+            public void visitAll(JsonTreeAdapter<N> adapter, List<N> parents, List<N> nodes)
+            {
+                ReplaceTextValueVisitor.this.visitAll(adapter, parents, nodes);
+            }
+        };
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,212 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.vmware.xpath.json;
+
+import static javax.script.ScriptContext.ENGINE_SCOPE;
+
+import java.util.Map.Entry;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import javax.script.SimpleScriptContext;
+
+import org.codehaus.jackson.JsonNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Evaluates filters with a JSR-223 script engine; JavaScript by default. This is the fallback for the filters the
+ * {@link NativePredicateEngine} does not support.
+ *
+ * The script engine is looked up the first time such a filter is evaluated, never before. Set the system property
+ * {@value #SCRIPT_ENGINE_PROPERTY} to use another engine name, or to an empty string to disable script filters.
+ *
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+public final class ScriptPredicateEngine implements PredicateEngine
+{
+    public static final String SCRIPT_ENGINE_PROPERTY = "com.vmware.xpath.json.scriptEngine";
+
+    private static final Logger LOG = LoggerFactory.getLogger( ScriptPredicateEngine.class );
+
+    private static final int COMPILED_FILTERS_MAX = 1024;
+
+    private final String engineName = System.getProperty( SCRIPT_ENGINE_PROPERTY, "JavaScript" );
+
+    private final BoundedCache<String, CompiledScript> compiledFilters = new BoundedCache<>( COMPILED_FILTERS_MAX );
+
+    private volatile ScriptEngineManager factory;
+
+    private volatile ScriptEngine sharedEngine;
+
+    /**
+     * The script state of one thread. Each thread binds 'value' in its own ScriptContext, so concurrent filtered
+     * queries never see each other's candidate node. Engines that do not declare themselves thread-safe are not
+     * shared either; such a thread gets its own engine, along with its own compiled filters.
+     */
+    private final class ScriptFilterContext
+    {
+        final ScriptEngine engine;
+
+        final BoundedCache<String, CompiledScript> compiledFilters;
+
+        final SimpleScriptContext ctx = new SimpleScriptContext();
+
+        ScriptFilterContext() {
+            ScriptEngine shared = sharedEngine();
+            if ( shared == null || shared.getFactory().getParameter( "THREADING" ) != null ) {
+                this.engine = shared;
+                this.compiledFilters = ScriptPredicateEngine.this.compiledFilters;
+            } else {
+                this.engine = factory.getEngineByName( engineName );
+                this.compiledFilters = new BoundedCache<>( COMPILED_FILTERS_MAX );
+            }
+
+            for ( Entry<String, String> metachar : FilterCompiler.REGEX_METACHARACTERS.entrySet() )
+                ctx.setAttribute( metachar.getKey(), metachar.getValue(), ENGINE_SCOPE );
+
+            Function<Object, Object> unDoubleQuote = FilterCompiler::unDoubleQuote;
+            ctx.setAttribute( "unDoubleQuote", unDoubleQuote, ENGINE_SCOPE );
+        }
+    }
+
+    private final ThreadLocal<ScriptFilterContext> contexts = ThreadLocal.withInitial( ScriptFilterContext::new );
+
+    @Override
+    public int getOrder() {
+        return 100;
+    }
+
+    /**
+     * The filter is bound to the script state of each thread the first time it is evaluated there: from then on, that
+     * thread evaluates it without looking its compiled form up again, however long the query.
+     */
+    @Override
+    public Predicate<JsonNode> compile( String filter ) {
+        if ( engineName.isEmpty() )
+            return null;
+
+        ThreadLocal<BoundFilter> bound = new ThreadLocal<>();
+        return value -> {
+            try {
+                BoundFilter boundFilter = bound.get();
+                if ( boundFilter == null ) {
+                    boundFilter = new BoundFilter( contexts.get(), filter );
+                    bound.set( boundFilter );
+                }
+                return Boolean.TRUE.equals( boundFilter.evaluate( value ) );
+            } catch ( ScriptException e ) {
+                throw new IllegalArgumentException( "Illegal Filter Expression: " + filter, e );
+            }
+        };
+    }
+
+    private ScriptEngine sharedEngine() {
+        if ( factory == null ) {
+            synchronized ( this ) {
+                if ( factory == null ) {
+                    ScriptEngineManager manager = new ScriptEngineManager();
+                    sharedEngine = manager.getEngineByName( engineName );
+                    factory = manager;
+                    LOG.debug( "Script engine for filters: {}", sharedEngine );
+                }
+            }
+        }
+        return sharedEngine;
+    }
+
+    /**
+     * A filter along with the script state of one thread, and its compiled form there.
+     */
+    private final class BoundFilter
+    {
+        final ScriptFilterContext scr;
+
+        final String filterExprStr;
+
+        final CompiledScript compiled;
+
+        BoundFilter( ScriptFilterContext scr, String filterExprStr ) throws ScriptException {
+            this.scr = scr;
+            this.filterExprStr = filterExprStr;
+            this.compiled = scr.engine != null ? compiledFilter( scr, filterExprStr ) : null;
+        }
+
+        /**
+         * Evaluates the filter expression, with 'value' bound to the candidate node for the time of the evaluation.
+         *
+         * @param value
+         * @return
+         * @throws ScriptException
+         */
+        Object evaluate( JsonNode value ) throws ScriptException {
+            if ( scr.engine == null )
+                throw new ScriptException( "No '" + engineName + "' script engine available to evaluate the filter" );
+
+            scr.ctx.setAttribute( "value", value, ENGINE_SCOPE );
+            try {
+                return compiled != null ? compiled.eval( scr.ctx ) : scr.engine.eval( filterExprStr, scr.ctx );
+            } finally {
+                // The context lives as long as its thread: it must not keep the candidate, and its tree, reachable
+                scr.ctx.removeAttribute( "value", ENGINE_SCOPE );
+            }
+        }
+    }
+
+    /**
+     * Filters are compiled once per filter expression, when the script engine supports it, so that the expression is
+     * not re-parsed for every candidate node, nor for every query using it. The filters not used lately make room for
+     * new ones.
+     *
+     * @param scr
+     * @param filterExprStr
+     * @return the compiled filter, or null if the script engine cannot compile scripts.
+     * @throws ScriptException
+     */
+    private static CompiledScript compiledFilter( ScriptFilterContext scr, String filterExprStr ) throws ScriptException {
+        if ( !( scr.engine instanceof Compilable ) )
+            return null;
+
+        CompiledScript filter = scr.compiledFilters.get( filterExprStr );
+        if ( filter == null ) {
+            filter = ( (Compilable) scr.engine ).compile( filterExprStr );
+            scr.compiledFilters.put( filterExprStr, filter );
+        }
+        return filter;
+    }
+}
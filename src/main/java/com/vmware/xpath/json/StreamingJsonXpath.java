@@ -0,0 +1,267 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.vmware.xpath.json;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.vmware.xpath.json.CompiledXpath.Axis;
+import com.vmware.xpath.json.CompiledXpath.Step;
+
+/**
+ * Read-only evaluation of an Xpath straight off a token stream, without building the tree of the document. The
+ * nodes selected are the same, and in the same order, as with
+ * {@link JsonXpath#findAndUpdateMultiple(JsonNode, String, JsonXpathVisitor)} on the parsed document; but only the
+ * selected values are turned into JsonNodes, so memory use follows the size of the largest match rather than the size
+ * of the document.
+ *
+ * The only other values materialized are those selected by an intermediate step with a filter, as the filter needs
+ * the value; the rest of the Xpath is then evaluated on that value.
+ *
+ * Containers in which no step of the Xpath can match any more, such as the fields not named by a child step, are
+ * skipped over with {@link JsonParser#skipChildren()}.
+ *
+ * <pre>
+ * List&lt;JsonNode&gt; ruleIds = StreamingJsonXpath.findAll( inputStream, JsonXpath.compile( "//ruleId" ) );
+ * </pre>
+ *
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+public final class StreamingJsonXpath
+{
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final int NONE = -1;
+
+    private StreamingJsonXpath() {
+    }
+
+    /**
+     * @param in the JSON document; closed once read
+     * @param xpath
+     * @return the nodes selected by the Xpath, in document order.
+     * @throws IOException
+     */
+    public static List<JsonNode> findAll( InputStream in, CompiledXpath xpath ) throws IOException {
+        try ( JsonParser parser = MAPPER.getJsonFactory().createJsonParser( in ) ) {
+            return findAll( parser, xpath );
+        }
+    }
+
+    /**
+     * @param parser positioned before the JSON value to evaluate, or on its first token
+     * @param xpath
+     * @return the nodes selected by the Xpath, in document order.
+     * @throws IOException
+     */
+    public static List<JsonNode> findAll( JsonParser parser, CompiledXpath xpath ) throws IOException {
+        List<JsonNode> ret = new ArrayList<>();
+        evaluate( parser, xpath, ret::add );
+        return ret;
+    }
+
+    /**
+     * Reads one JSON value off the parser, handing each selected node to the sink as soon as it has been read.
+     *
+     * @param parser positioned before the JSON value to evaluate, or on its first token
+     * @param xpath
+     * @param sink
+     * @throws IOException
+     */
+    public static void evaluate( JsonParser parser, CompiledXpath xpath, Consumer<JsonNode> sink ) throws IOException {
+        if ( parser.getCodec() == null )
+            parser.setCodec( MAPPER );
+        new Evaluation( parser, xpath.getSteps(), sink ).run();
+    }
+
+    /**
+     * The path from the root to the current token, as a stack of containers; each container holds the step its
+     * fields (or elements) are matched against.
+     */
+    private static final class Evaluation
+    {
+        final JsonParser parser;
+
+        final List<Step> steps;
+
+        final Consumer<JsonNode> sink;
+
+        int depth;
+
+        /** Step matched within each container, or NONE */
+        int[] states = new int[16];
+
+        /** For an array value of a selected field: the step selecting each element, or NONE */
+        int[] selecting = new int[16];
+
+        /** Position of the next element within each array */
+        int[] positions = new int[16];
+
+        Evaluation( JsonParser parser, List<Step> steps, Consumer<JsonNode> sink ) {
+            this.parser = parser;
+            this.steps = steps;
+            this.sink = sink;
+        }
+
+        void run() throws IOException {
+            JsonToken token = parser.getCurrentToken();
+            if ( token == null )
+                token = parser.nextToken();
+            if ( token == null )
+                return;
+
+            value( token, NONE, 0, false );
+            while ( depth > 0 ) {
+                token = parser.nextToken();
+                if ( token == null )
+                    throw new JsonParseException( "Unexpected end of JSON input", parser.getCurrentLocation() );
+
+                if ( token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY ) {
+                    depth--;
+                } else if ( token == JsonToken.FIELD_NAME ) {
+                    int state = states[depth - 1];
+                    String name = parser.getCurrentName();
+                    token = parser.nextToken();
+                    if ( state != NONE && steps.get( state ).getName().equals( name ) )
+                        value( token, state, NONE, true );
+                    else
+                        value( token, NONE, state != NONE && steps.get( state ).getAxis() == Axis.DESCENDANT ? state : NONE, false );
+                } else {
+                    // An array element
+                    int state = states[depth - 1];
+                    int position = positions[depth - 1]++;
+                    int selectedBy = selecting[depth - 1];
+                    if ( selectedBy != NONE )
+                        value( token, selects( steps.get( selectedBy ), position ) ? selectedBy : NONE, NONE, false );
+                    else if ( state != NONE && ( steps.get( state ).getAxis() == Axis.DESCENDANT || token == JsonToken.START_OBJECT ) )
+                        value( token, NONE, state, false );
+                    else
+                        value( token, NONE, NONE, false );
+                }
+            }
+        }
+
+        /**
+         * @param token the first token of the value
+         * @param selectedBy the step selecting the value, or NONE
+         * @param state the step matched within the value, when not selected
+         * @param field true if the value is that of a field; the elements of an array value are then selected one by
+         *            one
+         */
+        void value( JsonToken token, int selectedBy, int state, boolean field ) throws IOException {
+            if ( selectedBy == NONE ) {
+                if ( token != JsonToken.START_OBJECT && token != JsonToken.START_ARRAY )
+                    return;
+                if ( state == NONE )
+                    // Nothing below can match: skip to the end of the container
+                    parser.skipChildren();
+                else
+                    push( state, NONE );
+                return;
+            }
+
+            Step step = steps.get( selectedBy );
+            boolean last = selectedBy == steps.size() - 1;
+            if ( field && token == JsonToken.START_ARRAY ) {
+                if ( step.isPositional() && step.isFromEnd() ) {
+                    // Counted back from the end: the size of the array is needed first
+                    List<JsonNode> values = new ArrayList<>();
+                    CompiledXpath.select( null, parser.readValueAsTree(), step, values, new ArrayList<>() );
+                    for ( JsonNode value : values )
+                        selected( value, selectedBy );
+                } else {
+                    push( NONE, selectedBy );
+                }
+                return;
+            }
+            if ( field && step.isPositional() ) {
+                // Only array values have positions
+                parser.skipChildren();
+                return;
+            }
+            if ( !last && !step.hasFilter() ) {
+                // Nothing to check on the value itself: carry on matching the next step within it
+                if ( token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY )
+                    push( selectedBy + 1, NONE );
+                return;
+            }
+
+            JsonNode node = parser.readValueAsTree();
+            if ( step.accept( node ) )
+                selected( node, selectedBy );
+        }
+
+        /**
+         * @param node selected by the step
+         * @param selectedBy
+         */
+        void selected( JsonNode node, int selectedBy ) {
+            if ( selectedBy == steps.size() - 1 ) {
+                sink.accept( node );
+            } else {
+                for ( Iterator<JsonNode> itr = new XpathIterator( steps.subList( selectedBy + 1, steps.size() ), node ); itr.hasNext(); )
+                    sink.accept( itr.next() );
+            }
+        }
+
+        /**
+         * @return true if the step selects the element at the position, within an array whose size is not known yet.
+         */
+        boolean selects( Step step, int position ) {
+            return !step.isPositional() || ( position >= step.first( Integer.MAX_VALUE ) && position < step.end( Integer.MAX_VALUE ) );
+        }
+
+        void push( int state, int selectedBy ) {
+            if ( depth == states.length ) {
+                states = Arrays.copyOf( states, depth * 2 );
+                selecting = Arrays.copyOf( selecting, depth * 2 );
+                positions = Arrays.copyOf( positions, depth * 2 );
+            }
+            states[depth] = state;
+            selecting[depth] = selectedBy;
+            positions[depth] = 0;
+            depth++;
+        }
+    }
+}
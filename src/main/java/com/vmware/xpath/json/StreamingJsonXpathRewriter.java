@@ -0,0 +1,440 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.vmware.xpath.json;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+import org.codehaus.jackson.node.TextNode;
+
+import com.vmware.xpath.VisitResult;
+import com.vmware.xpath.json.CompiledXpath.Axis;
+import com.vmware.xpath.json.CompiledXpath.Step;
+
+/**
+ * Rewrites a JSON document while copying it from a JsonParser to a JsonGenerator, without building its tree: the
+ * values selected by the replacement rules are written out replaced, those selected by the removal rules are left
+ * out, and everything else is copied through unchanged.
+ *
+ * The rules act as {@link ReplaceTextValueVisitor} and {@link RemoveFieldVisitor} do on a tree. Only the values
+ * selected by a step with a filter are materialized, as the filter needs the value; the rules are then applied to
+ * that value in memory. When several rules select the same value, the first one registered that changes it wins.
+ *
+ * <pre>
+ * new StreamingJsonXpathRewriter()
+ *     .replace( "//groupingObjectId", replacements )
+ *     .remove( "//description" )
+ *     .rewrite( in, out );
+ * </pre>
+ *
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+public final class StreamingJsonXpathRewriter
+{
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final int NONE = -1;
+
+    private final List<CompiledXpath> xpaths = new ArrayList<>();
+
+    /** Per rule: origValue -&gt; replacementValue, or null for a removal */
+    private final List<Map<String, String>> replacements = new ArrayList<>();
+
+    /**
+     * @param xpath
+     * @param replacementMap &lt;origValue, replacementValue&gt;
+     * @return this rewriter
+     */
+    public StreamingJsonXpathRewriter replace( String xpath, Map<String, String> replacementMap ) {
+        return replace( JsonXpath.compile( xpath ), replacementMap );
+    }
+
+    /**
+     * @param xpath
+     * @param replacementMap &lt;origValue, replacementValue&gt;
+     * @return this rewriter
+     */
+    public StreamingJsonXpathRewriter replace( CompiledXpath xpath, Map<String, String> replacementMap ) {
+        xpaths.add( xpath );
+        replacements.add( new HashMap<>( replacementMap ) );
+        return this;
+    }
+
+    /**
+     * @param xpath
+     * @return this rewriter
+     */
+    public StreamingJsonXpathRewriter remove( String xpath ) {
+        return remove( JsonXpath.compile( xpath ) );
+    }
+
+    /**
+     * @param xpath
+     * @return this rewriter
+     */
+    public StreamingJsonXpathRewriter remove( CompiledXpath xpath ) {
+        xpaths.add( xpath );
+        replacements.add( null );
+        return this;
+    }
+
+    /**
+     * @param in the JSON document; left open
+     * @param out receives the rewritten document, in UTF-8; left open
+     * @return the number of values replaced or removed.
+     * @throws IOException
+     */
+    public long rewrite( InputStream in, OutputStream out ) throws IOException {
+        JsonParser parser = MAPPER.getJsonFactory().createJsonParser( in );
+        JsonGenerator generator = MAPPER.getJsonFactory().createJsonGenerator( out, JsonEncoding.UTF8 );
+        parser.disable( JsonParser.Feature.AUTO_CLOSE_SOURCE );
+        generator.disable( JsonGenerator.Feature.AUTO_CLOSE_TARGET );
+        try {
+            return rewrite( parser, generator );
+        } finally {
+            parser.close();
+            generator.close();
+        }
+    }
+
+    /**
+     * Copies one JSON value from the parser to the generator, applying the rules on the way.
+     *
+     * @param parser positioned before the JSON value to rewrite, or on its first token
+     * @param generator
+     * @return the number of values replaced or removed.
+     * @throws IOException
+     */
+    public long rewrite( JsonParser parser, JsonGenerator generator ) throws IOException {
+        if ( parser.getCodec() == null )
+            parser.setCodec( MAPPER );
+        if ( generator.getCodec() == null )
+            generator.setCodec( MAPPER );
+        Rewrite rewrite = new Rewrite( parser, generator );
+        rewrite.run();
+        generator.flush();
+        return rewrite.changes;
+    }
+
+    /**
+     * The path from the root to the current token, as a stack of containers; each container holds, for each rule, the
+     * step its fields (or elements) are matched against.
+     */
+    private final class Rewrite
+    {
+        final JsonParser parser;
+
+        final JsonGenerator generator;
+
+        final int rules = xpaths.size();
+
+        int depth;
+
+        /** Step matched within each container, for each rule, or NONE */
+        int[] states = new int[16 * rules];
+
+        /** For an array value of a selected field: the step selecting each element, for each rule, or NONE */
+        int[] selecting = new int[16 * rules];
+
+        /** For the value at hand: the step selecting it, for each rule, or NONE */
+        final int[] selectedBy = new int[rules];
+
+        /** For the value at hand: the step matched within it, for each rule, or NONE */
+        final int[] within = new int[rules];
+
+        long changes;
+
+        Rewrite( JsonParser parser, JsonGenerator generator ) {
+            this.parser = parser;
+            this.generator = generator;
+        }
+
+        void run() throws IOException {
+            JsonToken token = parser.getCurrentToken();
+            if ( token == null )
+                token = parser.nextToken();
+            if ( token == null )
+                return;
+
+            Arrays.fill( selectedBy, NONE );
+            for ( int r = 0; r < rules; r++ )
+                within[r] = 0;
+            value( token, null );
+
+            while ( depth > 0 ) {
+                token = parser.nextToken();
+                if ( token == null )
+                    throw new JsonParseException( "Unexpected end of JSON input", parser.getCurrentLocation() );
+
+                int frame = ( depth - 1 ) * rules;
+                if ( token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY ) {
+                    generator.copyCurrentEvent( parser );
+                    depth--;
+                } else if ( token == JsonToken.FIELD_NAME ) {
+                    String name = parser.getCurrentName();
+                    token = parser.nextToken();
+                    for ( int r = 0; r < rules; r++ ) {
+                        int state = states[frame + r];
+                        Step step = state == NONE ? null : xpaths.get( r ).getSteps().get( state );
+                        boolean selected = step != null && step.getName().equals( name );
+                        selectedBy[r] = selected ? state : NONE;
+                        within[r] = !selected && step != null && step.getAxis() == Axis.DESCENDANT ? state : NONE;
+                    }
+                    value( token, name );
+                } else {
+                    // An array element
+                    for ( int r = 0; r < rules; r++ ) {
+                        int state = states[frame + r];
+                        selectedBy[r] = selecting[frame + r];
+                        within[r] = selectedBy[r] == NONE && state != NONE
+                            && ( xpaths.get( r ).getSteps().get( state ).getAxis() == Axis.DESCENDANT || token == JsonToken.START_OBJECT ) ? state : NONE;
+                    }
+                    value( token, null );
+                }
+            }
+        }
+
+        /**
+         * Copies, replaces or leaves out the value starting at the token, as selected by the rules.
+         *
+         * @param token the first token of the value
+         * @param field name of the field whose value this is, or null for an array element or the root value
+         */
+        void value( JsonToken token, String field ) throws IOException {
+            boolean container = token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY;
+            boolean materialize = false;
+            int matchedBy = NONE;
+            boolean live = false;
+            for ( int r = 0; r < rules; r++ ) {
+                if ( within[r] != NONE )
+                    live = true;
+                if ( selectedBy[r] == NONE )
+                    continue;
+
+                List<Step> steps = xpaths.get( r ).getSteps();
+                Step step = steps.get( selectedBy[r] );
+                boolean last = selectedBy[r] == steps.size() - 1;
+                if ( step.hasPredicate() ) {
+                    materialize = true;
+                } else if ( field != null && token == JsonToken.START_ARRAY ) {
+                    live = true;
+                } else if ( last ) {
+                    if ( matchedBy == NONE && changes( r, token ) )
+                        matchedBy = r;
+                } else if ( container ) {
+                    live = true;
+                }
+            }
+
+            if ( materialize ) {
+                JsonNode node = parser.readValueAsTree();
+                node = apply( node, field != null );
+                if ( node != null ) {
+                    if ( field != null )
+                        generator.writeFieldName( field );
+                    generator.writeTree( node );
+                }
+                return;
+            }
+
+            if ( matchedBy != NONE ) {
+                changes++;
+                if ( replacements.get( matchedBy ) == null ) {
+                    parser.skipChildren();
+                } else {
+                    if ( field != null )
+                        generator.writeFieldName( field );
+                    generator.writeString( replacements.get( matchedBy ).get( parser.getText() ) );
+                }
+                return;
+            }
+
+            if ( field != null )
+                generator.writeFieldName( field );
+            if ( !container ) {
+                generator.copyCurrentEvent( parser );
+            } else if ( !live ) {
+                // Nothing below can change: copy the container as is
+                generator.copyCurrentStructure( parser );
+            } else {
+                generator.copyCurrentEvent( parser );
+                push( field != null && token == JsonToken.START_ARRAY );
+            }
+        }
+
+        /**
+         * @return true if the rule changes the value at the token, selected by its last step.
+         */
+        boolean changes( int rule, JsonToken token ) throws IOException {
+            Map<String, String> replacementMap = replacements.get( rule );
+            return replacementMap == null
+                || ( token.isScalarValue() && replacementMap.containsKey( parser.getText() ) );
+        }
+
+        /**
+         * Pushes the container just started; the steps it is matched against follow from those of its value.
+         *
+         * @param fieldArray true for an array value of a field, whose elements the selecting steps select one by one
+         */
+        void push( boolean fieldArray ) {
+            if ( ( depth + 1 ) * rules > states.length ) {
+                states = Arrays.copyOf( states, states.length * 2 );
+                selecting = Arrays.copyOf( selecting, selecting.length * 2 );
+            }
+            int frame = depth * rules;
+            for ( int r = 0; r < rules; r++ ) {
+                int state = within[r];
+                int select = NONE;
+                if ( selectedBy[r] != NONE ) {
+                    if ( fieldArray )
+                        select = selectedBy[r];
+                    else if ( selectedBy[r] < xpaths.get( r ).getSteps().size() - 1 )
+                        state = selectedBy[r] + 1;
+                }
+                states[frame + r] = state;
+                selecting[frame + r] = select;
+            }
+            depth++;
+        }
+
+        /**
+         * Applies the rules to a materialized value.
+         *
+         * @param node
+         * @param field true for the value of a field, whose array elements the selecting steps select one by one
+         * @return the value rewritten, or null if it is removed.
+         */
+        JsonNode apply( JsonNode node, boolean field ) {
+            List<JsonNode> parents = new ArrayList<>();
+            List<JsonNode> nodes = new ArrayList<>();
+            List<Integer> matchingRules = new ArrayList<>();
+
+            for ( int r = 0; r < rules; r++ ) {
+                CompiledXpath xpath = xpaths.get( r );
+                int rule = r;
+                JsonXpathNodeVisitor collector = ( parent, currentNodeToSelect, mutator ) -> {
+                    parents.add( parent );
+                    nodes.add( currentNodeToSelect );
+                    matchingRules.add( rule );
+                    return VisitResult.CONTINUE;
+                };
+
+                if ( within[r] != NONE )
+                    xpath.evaluate( node, within[r], collector, null );
+                if ( selectedBy[r] == NONE )
+                    continue;
+
+                Step step = xpath.getSteps().get( selectedBy[r] );
+                boolean last = selectedBy[r] == xpath.getSteps().size() - 1;
+                List<JsonNode> selected = new ArrayList<>();
+                List<JsonNode> selectedParents = new ArrayList<>();
+                if ( field )
+                    CompiledXpath.select( null, node, step, selected, selectedParents );
+                else if ( step.accept( node ) ) {
+                    selected.add( node );
+                    selectedParents.add( null );
+                }
+                for ( int i = 0; i < selected.size(); i++ ) {
+                    if ( last ) {
+                        parents.add( selectedParents.get( i ) );
+                        nodes.add( selected.get( i ) );
+                        matchingRules.add( r );
+                    } else {
+                        xpath.evaluate( selected.get( i ), selectedBy[r] + 1, collector, null );
+                    }
+                }
+            }
+
+            // The changes are made once all the rules are evaluated, the first rule to change a value winning
+            JsonNode ret = node;
+            for ( int i = 0; i < nodes.size(); i++ ) {
+                JsonNode parent = parents.get( i );
+                JsonNode value = nodes.get( i );
+                Map<String, String> replacementMap = replacements.get( matchingRules.get( i ) );
+                if ( replacementMap != null && ( value.isContainerNode() || !replacementMap.containsKey( value.asText() ) ) )
+                    continue;
+                JsonNode replacement = replacementMap == null ? null : TextNode.valueOf( replacementMap.get( value.asText() ) );
+
+                if ( parent == null ) {
+                    if ( ret == node ) {
+                        ret = replacement;
+                        changes++;
+                    }
+                } else if ( parent instanceof ObjectNode ) {
+                    String name = fieldName( xpaths.get( matchingRules.get( i ) ) );
+                    if ( parent.get( name ) == value ) {
+                        if ( replacement == null )
+                            ( (ObjectNode) parent ).remove( name );
+                        else
+                            ( (ObjectNode) parent ).put( name, replacement );
+                        changes++;
+                    }
+                } else {
+                    ArrayNode array = (ArrayNode) parent;
+                    for ( int j = 0; j < array.size(); j++ ) {
+                        if ( array.get( j ) == value ) {
+                            if ( replacement == null )
+                                array.remove( j );
+                            else
+                                array.set( j, replacement );
+                            changes++;
+                            break;
+                        }
+                    }
+                }
+            }
+            return ret;
+        }
+
+        String fieldName( CompiledXpath xpath ) {
+            List<Step> steps = xpath.getSteps();
+            return steps.get( steps.size() - 1 ).getName();
+        }
+    }
+}
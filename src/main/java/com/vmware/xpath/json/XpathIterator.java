@@ -0,0 +1,256 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.vmware.xpath.json;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+import com.vmware.xpath.json.CompiledXpath.Axis;
+import com.vmware.xpath.json.CompiledXpath.Step;
+
+/**
+ * Pulls the nodes selected by a {@link CompiledXpath} one at a time, in document order; only as much of the tree is
+ * traversed as is needed to produce the next node. Selects the same nodes as {@link CompiledXpath#findAll(JsonNode)}.
+ *
+ * The tree must not be modified while iterating.
+ *
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+final class XpathIterator implements Iterator<JsonNode>
+{
+    /**
+     * The nodes selected by one step, from one context node.
+     */
+    private abstract static class Selection
+    {
+        final Step step;
+
+        /** Array value being expanded, and the position of its next element */
+        private JsonNode expansion;
+
+        private int position;
+
+        private int end;
+
+        /** An empty array value is selected as a whole, rather than expanded into no element */
+        boolean selectsEmptyArray;
+
+        Selection( Step step ) {
+            this.step = step;
+        }
+
+        /**
+         * @return the next selected (and filtered) node, or null when there are no more.
+         */
+        final JsonNode next() {
+            while ( true ) {
+                if ( expansion != null ) {
+                    while ( position < end ) {
+                        JsonNode element = expansion.get( position++ );
+                        if ( step.accept( element ) )
+                            return element;
+                    }
+                    expansion = null;
+                }
+
+                JsonNode fieldValue = nextFieldValue();
+                if ( fieldValue == null )
+                    return null;
+
+                // Each element of an array value is selected on its own
+                if ( fieldValue instanceof ArrayNode ) {
+                    if ( selectsEmptyArray && fieldValue.size() == 0 )
+                        return fieldValue;
+                    expansion = fieldValue;
+                    position = step.first( fieldValue.size() );
+                    end = step.end( fieldValue.size() );
+                } else if ( step.acceptValue( fieldValue ) ) {
+                    return fieldValue;
+                }
+            }
+        }
+
+        /**
+         * @return the value of the next field named after the step, or null when there are no more.
+         */
+        abstract JsonNode nextFieldValue();
+    }
+
+    /**
+     * '/name': the field of the context object, or of each object within the context array.
+     */
+    private static final class ChildSelection extends Selection
+    {
+        private final JsonNode context;
+
+        private final Iterator<JsonNode> elements;
+
+        private boolean done;
+
+        ChildSelection( Step step, JsonNode context ) {
+            super( step );
+            this.context = context;
+            this.elements = context instanceof ArrayNode ? context.getElements() : null;
+        }
+
+        @Override
+        JsonNode nextFieldValue() {
+            if ( elements == null ) {
+                if ( done || !( context instanceof ObjectNode ) )
+                    return null;
+                done = true;
+                return context.get( step.getName() );
+            }
+
+            while ( elements.hasNext() ) {
+                JsonNode element = elements.next();
+                if ( element instanceof ObjectNode ) {
+                    JsonNode fieldValue = element.get( step.getName() );
+                    if ( fieldValue != null )
+                        return fieldValue;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * '//name': the fields at any depth, depth-first. A selected field is not descended into.
+     */
+    private static final class DescendantSelection extends Selection
+    {
+        private final Deque<Iterator<?>> stack = new ArrayDeque<>();
+
+        DescendantSelection( Step step, JsonNode context ) {
+            super( step );
+            push( context );
+        }
+
+        private void push( JsonNode node ) {
+            if ( node instanceof ObjectNode )
+                stack.push( node.getFields() );
+            else if ( node instanceof ArrayNode )
+                stack.push( node.getElements() );
+        }
+
+        @Override
+        JsonNode nextFieldValue() {
+            while ( !stack.isEmpty() ) {
+                Iterator<?> top = stack.peek();
+                if ( !top.hasNext() ) {
+                    stack.pop();
+                    continue;
+                }
+
+                Object item = top.next();
+                if ( item instanceof Entry ) {
+                    @SuppressWarnings( "unchecked" )
+                    Entry<String, JsonNode> field = (Entry<String, JsonNode>) item;
+                    if ( step.getName().equals( field.getKey() ) )
+                        return field.getValue();
+                    push( field.getValue() );
+                } else {
+                    push( (JsonNode) item );
+                }
+            }
+            return null;
+        }
+    }
+
+    private final List<Step> steps;
+
+    private final Selection[] selections;
+
+    private int depth;
+
+    private JsonNode next;
+
+    /** See {@link #XpathIterator(List, JsonNode, boolean)} */
+    private final boolean emptyArrays;
+
+    XpathIterator( List<Step> steps, JsonNode tree ) {
+        this( steps, tree, false );
+    }
+
+    /**
+     * @param emptyArrays if true, a field holding an empty array is selected itself by a last step without a
+     *            predicate, as it exists although it has no element to select.
+     */
+    XpathIterator( List<Step> steps, JsonNode tree, boolean emptyArrays ) {
+        this.steps = steps;
+        this.emptyArrays = emptyArrays;
+        this.selections = new Selection[steps.size()];
+        this.selections[0] = select( 0, tree );
+    }
+
+    private Selection select( int stepIndex, JsonNode context ) {
+        Step step = steps.get( stepIndex );
+        Selection selection = step.getAxis() == Axis.CHILD ? new ChildSelection( step, context ) : new DescendantSelection( step, context );
+        selection.selectsEmptyArray = emptyArrays && stepIndex == steps.size() - 1 && !step.hasPredicate();
+        return selection;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while ( next == null && depth >= 0 ) {
+            JsonNode selected = selections[depth].next();
+            if ( selected == null ) {
+                selections[depth--] = null;
+            } else if ( depth == steps.size() - 1 ) {
+                next = selected;
+            } else {
+                depth++;
+                selections[depth] = select( depth, selected );
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public JsonNode next() {
+        if ( !hasNext() )
+            throw new NoSuchElementException();
+
+        JsonNode ret = next;
+        next = null;
+        return ret;
+    }
+}
@@ -0,0 +1,684 @@
+/*
+ *
+ * xpath-for-json
+ *
+ * Copyright (c) 2018 VMware, Inc.  All rights reserved
+ * SPDX-License-Identifier: BSD-2-Clause
+ *
+ * The BSD-2 license (the "License") set forth below applies to all parts of the
+ * xpath-for-json project.  You may not use this file except in compliance with the License.
+ *
+ * BSD-2 License
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other materials provided with
+ * the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS
+ * OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.vmware.xpath.json.tests;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.SimpleScriptContext;
+
+import org.apache.commons.io.IOUtils;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+import org.codehaus.jackson.node.TextNode;
+import org.codehaus.jettison.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vmware.xpath.TraversalStopException;
+import com.vmware.xpath.VisitResult;
+import com.vmware.xpath.json.CompiledXpath;
+import com.vmware.xpath.json.CompiledXpath.Step;
+import com.vmware.xpath.json.Jackson2JsonXpath;
+import com.vmware.xpath.json.JsonTreeAdapter;
+import com.vmware.xpath.json.JsonTreeMutator;
+import com.vmware.xpath.json.JsonTreeXpath;
+import com.vmware.xpath.json.JsonXpath;
+import com.vmware.xpath.json.JsonXpathIndex;
+import com.vmware.xpath.json.JsonXpathNodeVisitor;
+import com.vmware.xpath.json.JsonXpathQuerySet;
+import com.vmware.xpath.json.JsonXpathTracing;
+import com.vmware.xpath.json.NdjsonXpathProcessor;
+import com.vmware.xpath.json.NullJsonFilter;
+import com.vmware.xpath.json.RemoveFieldVisitor;
+import com.vmware.xpath.json.ReplaceTextValueVisitor;
+import com.vmware.xpath.json.StreamingJsonXpath;
+import com.vmware.xpath.json.StreamingJsonXpathRewriter;
+
+/**
+ * Micro-benchmarks for the Xpath engine. Not part of the unit-test run; launch with
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.vmware.xpath.json.tests.JsonXpathBenchmark
+ * </pre>
+ *
+ * Or run it straight off the test classpath. Each benchmark warms up first, then reports the average time per
+ * operation.
+ *
+ * @Copyright (c) 2018 VMware, Inc.  All rights reserved
+ */
+public class JsonXpathBenchmark
+{
+    private static final Logger LOG = LoggerFactory.getLogger( JsonXpathBenchmark.class );
+
+    private static final int WARMUP = 20_000;
+
+    private static final int ITERATIONS = 200_000;
+
+    private static volatile Object sink;
+
+    public static void main( String[] args ) throws Exception {
+        // The test log4j.xml traces the engine at DEBUG, which would dominate every measurement.
+        org.apache.log4j.LogManager.getLoggerRepository().setThreshold( org.apache.log4j.Level.INFO );
+
+        benchmarkCompiledXpath();
+        benchmarkNativeVsScriptFilter();
+        benchmarkDescendantWalk();
+        benchmarkQuerySet();
+        benchmarkFieldNameIndex();
+        benchmarkIndexMaintenance();
+        benchmarkParallelEvaluation();
+        benchmarkBatchEvaluation();
+        benchmarkStreaming();
+        benchmarkStreamingSkip();
+        benchmarkNdjson();
+        benchmarkStreamingRewrite();
+        benchmarkPositionalPredicate();
+        benchmarkFind();
+        benchmarkJackson2();
+        benchmarkJettison();
+        benchmarkTreeAdapters();
+        benchmarkBatchedMutation();
+        benchmarkTraversalAllocations();
+        benchmarkTracing();
+        benchmarkVisitResult();
+        benchmarkCompiledXpathCache();
+    }
+
+    /**
+     * Parse-per-call (what every static call used to do) vs. a precompiled Xpath.
+     */
+    static void benchmarkCompiledXpath() throws Exception {
+        JsonNode jn = readFixture( "orgVdcList.json" );
+        String xpath = "//vcloud/orgVdcs/name";
+        CompiledXpath compiled = JsonXpath.compile( xpath );
+
+        report( "parse per call  " + xpath, () -> JsonXpath.compile( xpath ).update( jn, NullJsonFilter.instance() ) );
+        report( "precompiled     " + xpath, () -> compiled.update( jn, NullJsonFilter.instance() ) );
+        report( "static (cached) " + xpath, () -> JsonXpath.findAndUpdateMultiple( jn, xpath, NullJsonFilter.instance() ) );
+        report( "parse only      " + xpath, () -> JsonXpath.compile( xpath ) );
+    }
+
+    /**
+     * The same filter evaluated over every rule of a large array, natively and through the JavaScript engine.
+     */
+    static void benchmarkNativeVsScriptFilter() throws Exception {
+        JsonNode rules = firewallRules( 10_000 );
+        String filter = "unDoubleQuote(value.get('ruleType')) == 'user' && value.get('ruleId') > 5000";
+        CompiledXpath compiled = JsonXpath.compile( "//firewallRules[" + filter + "]" );
+
+        report( "native filter, 10k rules", 20, 200, () -> compiled.findAll( rules ) );
+
+        ScriptEngine engine = new ScriptEngineManager().getEngineByName( "JavaScript" );
+        if ( !( engine instanceof Compilable ) ) {
+            LOG.info( "No compilable JavaScript engine on this JVM; skipping the script filter benchmark" );
+            return;
+        }
+        SimpleScriptContext ctx = new SimpleScriptContext();
+        ctx.setAttribute( "unDoubleQuote", (Function<Object, String>) str -> {
+            String ret = str.toString();
+            return ret.startsWith( "\"" ) && ret.endsWith( "\"" ) ? ret.substring( 1, ret.length() - 1 ) : ret;
+        }, ScriptContext.ENGINE_SCOPE );
+        CompiledScript script = ( (Compilable) engine ).compile( filter );
+
+        report( "script filter, 10k rules", 20, 200, () -> {
+            List<JsonNode> matches = new ArrayList<>();
+            for ( JsonNode rule : rules.get( "firewallRules" ) ) {
+                ctx.setAttribute( "value", rule, ScriptContext.ENGINE_SCOPE );
+                if ( Boolean.TRUE.equals( script.eval( ctx ) ) )
+                    matches.add( rule );
+            }
+            return matches;
+        } );
+    }
+
+    /**
+     * '//name' selection: the former findParents + findValues (two walks, zipped by index) vs. the single-pass walk.
+     */
+    static void benchmarkDescendantWalk() throws Exception {
+        JsonNode rules = firewallRules( 100_000 );
+        CompiledXpath compiled = JsonXpath.compile( "//groupingObjectId" );
+
+        report( "two walks, //groupingObjectId, 100k rules", 5, 50, () -> {
+            List<JsonNode> parents = rules.findParents( "groupingObjectId" );
+            List<JsonNode> values = rules.findValues( "groupingObjectId" );
+            List<JsonNode> selected = new ArrayList<>();
+            for ( int i = 0; i < values.size(); i++ ) {
+                for ( JsonNode element : values.get( i ) )
+                    selected.add( element );
+                sink = parents.get( i );
+            }
+            return selected;
+        } );
+        report( "single walk, //groupingObjectId, 100k rules", 5, 50, () -> compiled.findAll( rules ) );
+    }
+
+    /**
+     * Several queries over the same tree: one walk per query vs. one walk for the whole query set.
+     */
+    static void benchmarkQuerySet() throws Exception {
+        JsonNode rules = firewallRules( 100_000 );
+        String[] xpaths = { "//ruleId", "//name", "//source/exclude", "//groupingObjectId", "//ruleType",
+            "//source[ !value.get('exclude').asBoolean() ]/groupingObjectId" };
+        JsonXpathQuerySet queries = new JsonXpathQuerySet();
+        for ( String xpath : xpaths )
+            queries.add( xpath );
+
+        report( "one walk per query, " + xpaths.length + " queries, 100k rules", 5, 20, () -> {
+            List<List<JsonNode>> results = new ArrayList<>();
+            for ( String xpath : xpaths )
+                results.add( JsonXpath.findAndUpdateMultiple( rules, xpath, NullJsonFilter.instance() ) );
+            return results;
+        } );
+        report( "query set, " + xpaths.length + " queries, 100k rules", 5, 20, () -> queries.evaluate( rules ) );
+    }
+
+    /**
+     * Build time and memory footprint of a field-name index, and descendant queries with and without it.
+     */
+    static void benchmarkFieldNameIndex() throws Exception {
+        JsonNode rules = firewallRules( 100_000 );
+        report( "index build, 100k rules", 5, 20, () -> JsonXpathIndex.build( rules ) );
+
+        long before = usedMemory();
+        JsonXpathIndex index = JsonXpathIndex.build( rules );
+        long footprint = usedMemory() - before;
+        LOG.info( String.format( "index footprint, %d fields: %.1f MB (tree: %d rules)", index.size(), footprint / 1e6,
+            rules.get( "firewallRules" ).size() ) );
+
+        for ( String xpath : new String[] { "//groupingObjectId", "//loggingEnabled", "//source//exclude" } ) {
+            report( "walk    " + xpath + ", 100k rules", 5, 50,
+                () -> JsonXpath.findAndUpdateMultiple( rules, xpath, NullJsonFilter.instance() ) );
+            report( "indexed " + xpath + ", 100k rules", 5, 50,
+                () -> JsonXpath.findAndUpdateMultiple( index, xpath, NullJsonFilter.instance() ) );
+        }
+        sink = index;
+    }
+
+    /**
+     * Keeping an index up to date through its mutations, vs. building it again after changes.
+     */
+    static void benchmarkIndexMaintenance() throws Exception {
+        JsonNode rules = firewallRules( 100_000 );
+        ArrayNode array = (ArrayNode) rules.get( "firewallRules" );
+        JsonXpathIndex index = JsonXpathIndex.build( rules );
+
+        report( "1000 tracked updates, 100k rules", 5, 50, () -> {
+            for ( int i = 0; i < 100_000; i += 100 ) {
+                ObjectNode rule = (ObjectNode) array.get( i );
+                ObjectNode source = JsonNodeFactory.instance.objectNode();
+                source.put( "exclude", true );
+                source.putArray( "groupingObjectId" ).add( "ipset-" + i );
+                index.put( rule, "source", source );
+                index.put( rule, "name", TextNode.valueOf( "rule-" + i ) );
+            }
+            return index;
+        } );
+        report( "rebuild after updates, 100k rules", 5, 50, () -> JsonXpathIndex.build( rules ) );
+        report( "indexed //groupingObjectId after updates", 5, 50,
+            () -> JsonXpath.findAndUpdateMultiple( index, "//groupingObjectId", NullJsonFilter.instance() ) );
+    }
+
+    /**
+     * Sequential vs. fork/join evaluation over a 500k rules array, with as many workers as cores.
+     */
+    static void benchmarkParallelEvaluation() throws Exception {
+        JsonNode rules = firewallRules( 500_000 );
+        ForkJoinPool pool = new ForkJoinPool( Runtime.getRuntime().availableProcessors() );
+        try {
+            for ( String xpath : new String[] { "//groupingObjectId", "//firewallRules[ value.get('ruleId') > 250000 ]" } ) {
+                report( "sequential " + xpath, 2, 10, () -> JsonXpath.findAndUpdateMultiple( rules, xpath, NullJsonFilter.instance() ) );
+                report( "parallel(" + pool.getParallelism() + ") " + xpath, 2, 10,
+                    () -> JsonXpath.withParallelism( pool ).findAndUpdateMultiple( rules, xpath, NullJsonFilter.instance() ) );
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Throughput of one Xpath over many small documents: a plain loop vs. a batch over a pool of as many threads as
+     * cores.
+     */
+    static void benchmarkBatchEvaluation() throws Exception {
+        List<JsonNode> documents = new ArrayList<>();
+        for ( int i = 0; i < 10_000; i++ )
+            documents.add( readFixture( "edgeFirewall.json" ) );
+        CompiledXpath xpath = JsonXpath.compile( "/firewallRules/firewallRules[ 'accept' == unDoubleQuote( value.get('action') ) ]/ruleId" );
+
+        report( "loop, 10k documents", 2, 10, () -> {
+            List<List<JsonNode>> results = new ArrayList<>();
+            for ( JsonNode document : documents )
+                results.add( xpath.update( document, NullJsonFilter.instance() ) );
+            return results;
+        } );
+
+        ExecutorService pool = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+        try {
+            report( "batch, 10k documents", 2, 10, () -> JsonXpath.evaluateBatch( documents, xpath, pool ) );
+            LOG.info( "batch: {}", JsonXpath.evaluateBatch( documents, xpath, pool ) );
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Parse the whole document then query it, vs. evaluating the Xpath on the token stream.
+     */
+    static void benchmarkStreaming() throws Exception {
+        byte[] json = new ObjectMapper().writeValueAsBytes( firewallRules( 100_000 ) );
+        CompiledXpath xpath = JsonXpath.compile( "//loggingEnabled" );
+        ObjectMapper mapper = new ObjectMapper();
+
+        report( "readTree + find //loggingEnabled, 100k rules", 3, 10,
+            () -> xpath.update( mapper.readTree( json ), NullJsonFilter.instance() ) );
+        report( "streaming //loggingEnabled, 100k rules", 3, 10,
+            () -> StreamingJsonXpath.findAll( new ByteArrayInputStream( json ), xpath ) );
+
+        long before = usedMemory();
+        JsonNode tree = mapper.readTree( json );
+        LOG.info( String.format( "tree held while querying: %.1f MB (%d bytes of JSON)", ( usedMemory() - before ) / 1e6,
+            json.length ) );
+        sink = tree;
+    }
+
+    /**
+     * An absolute Xpath whose target lives in a small corner of the document: the other subtrees are skipped, vs. a
+     * descendant Xpath giving the same node, which has to look at every token.
+     */
+    static void benchmarkStreamingSkip() throws Exception {
+        ObjectNode document = (ObjectNode) firewallRules( 100_000 );
+        ObjectNode globalConfig = document.putObject( "globalConfig" );
+        globalConfig.put( "tcpTimeoutOpen", 30 );
+        globalConfig.put( "udpTimeout", 60 );
+        byte[] json = new ObjectMapper().writeValueAsBytes( document );
+        ObjectMapper mapper = new ObjectMapper();
+
+        CompiledXpath absolute = JsonXpath.compile( "/globalConfig/udpTimeout" );
+        CompiledXpath descendant = JsonXpath.compile( "//udpTimeout" );
+        report( "readTree + find /globalConfig/udpTimeout, 100k rules", 3, 10,
+            () -> absolute.update( mapper.readTree( json ), NullJsonFilter.instance() ) );
+        report( "streaming //udpTimeout, 100k rules", 3, 20,
+            () -> StreamingJsonXpath.findAll( new ByteArrayInputStream( json ), descendant ) );
+        report( "streaming /globalConfig/udpTimeout, 100k rules", 3, 20,
+            () -> StreamingJsonXpath.findAll( new ByteArrayInputStream( json ), absolute ) );
+    }
+
+    /**
+     * A JSON Lines file read line by line, each record parsed then queried, vs. the memory-mapped processor.
+     */
+    static void benchmarkNdjson() throws Exception {
+        String record = readFixture( "edgeFirewall.json" ).toString();
+        Path file = Files.createTempFile( "benchmark", ".ndjson" );
+        try {
+            try ( BufferedWriter out = Files.newBufferedWriter( file, StandardCharsets.UTF_8 ) ) {
+                for ( int i = 0; i < 100_000; i++ ) {
+                    out.write( record.replace( "133123", Integer.toString( i ) ) );
+                    out.newLine();
+                }
+            }
+            CompiledXpath xpath = JsonXpath.compile( "/firewallRules/firewallRules/ruleId" );
+            ObjectMapper mapper = new ObjectMapper();
+            String name = String.format( ", 100k records (%.0f MB)", Files.size( file ) / 1e6 );
+
+            report( "readLine + readTree + find" + name, 1, 3, () -> {
+                long matches = 0;
+                try ( BufferedReader in = Files.newBufferedReader( file, StandardCharsets.UTF_8 ) ) {
+                    for ( String line = in.readLine(); line != null; line = in.readLine() )
+                        matches += xpath.update( mapper.readTree( line ), NullJsonFilter.instance() ).size();
+                }
+                return matches;
+            } );
+
+            ExecutorService pool = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+            try {
+                NdjsonXpathProcessor processor = new NdjsonXpathProcessor( xpath, pool );
+                report( "NdjsonXpathProcessor" + name, 1, 3, () -> processor.process( file, ( offset, matches ) -> {
+                } ) );
+                LOG.info( "NdjsonXpathProcessor: {}", processor.process( file, ( offset, matches ) -> {
+                } ) );
+            } finally {
+                pool.shutdown();
+            }
+        } finally {
+            Files.delete( file );
+        }
+    }
+
+    /**
+     * Parse, run the visitors and serialize again, vs. rewriting while copying the token stream.
+     */
+    static void benchmarkStreamingRewrite() throws Exception {
+        byte[] json = new ObjectMapper().writeValueAsBytes( firewallRules( 100_000 ) );
+        Map<String, String> ruleTypes = new HashMap<>();
+        ruleTypes.put( "user", "USER" );
+        ObjectMapper mapper = new ObjectMapper();
+
+        report( "readTree + visitors + write, 100k rules", 2, 5, () -> {
+            JsonNode tree = mapper.readTree( json );
+            JsonXpath.findAndUpdateMultiple( tree, "//ruleType", new ReplaceTextValueVisitor( "//ruleType", ruleTypes ) );
+            JsonXpath.findAndUpdateMultiple( tree, "//loggingEnabled", new RemoveFieldVisitor( "//loggingEnabled", null ) );
+            ByteArrayOutputStream out = new ByteArrayOutputStream( json.length );
+            mapper.writeTree( mapper.getJsonFactory().createJsonGenerator( out ), tree );
+            return out;
+        } );
+
+        StreamingJsonXpathRewriter rewriter =
+            new StreamingJsonXpathRewriter().replace( "//ruleType", ruleTypes ).remove( "//loggingEnabled" );
+        report( "streaming rewrite, 100k rules", 2, 5, () -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream( json.length );
+            rewriter.rewrite( new ByteArrayInputStream( json ), out );
+            return out;
+        } );
+    }
+
+    /**
+     * A positional predicate answered off the array vs. a filter run on every element.
+     */
+    static void benchmarkPositionalPredicate() throws Exception {
+        JsonNode rules = firewallRules( 100_000 );
+        CompiledXpath filtered = JsonXpath.compile( "//firewallRules[ value.get('ruleId') == 99999 ]" );
+        CompiledXpath positional = JsonXpath.compile( "//firewallRules[last()]" );
+
+        report( "filter //firewallRules[ruleId == 99999], 100k rules", 5, 50,
+            () -> filtered.update( rules, NullJsonFilter.instance() ) );
+        report( "positional //firewallRules[last()], 100k rules", 100, 10_000,
+            () -> positional.update( rules, NullJsonFilter.instance() ) );
+    }
+
+    /**
+     * find() on an absolute path next to a large subtree: direct lookups, vs. the depth-first search of '//'.
+     */
+    static void benchmarkFind() throws Exception {
+        ObjectNode document = (ObjectNode) firewallRules( 100_000 );
+        document.putObject( "globalConfig" ).put( "udpTimeout", 60 );
+
+        report( "find globalConfig/udpTimeout, 100k rules", () -> JsonXpath.find( document, "globalConfig/udpTimeout" ) );
+        report( "find //udpTimeout, 100k rules", 5, 50, () -> JsonXpath.find( document, "//udpTimeout" ) );
+    }
+
+    /**
+     * A Jackson 2 document queried through a serialize-and-reparse bridge to Jackson 1, vs. queried as it is.
+     */
+    static void benchmarkJackson2() throws Exception {
+        String json = IOUtils.toString( TestJsonXpath.class.getResourceAsStream( "edgeFirewall.json" ), "UTF-8" );
+        com.fasterxml.jackson.databind.ObjectMapper mapper2 = new com.fasterxml.jackson.databind.ObjectMapper();
+        com.fasterxml.jackson.databind.JsonNode jn2 = mapper2.readTree( json );
+        ObjectMapper mapper = new ObjectMapper();
+        String xpath = "/firewallRules/firewallRules/ruleId";
+
+        report( "bridged to Jackson 1 " + xpath, 2_000, 20_000,
+            () -> JsonXpath.findAndUpdateMultiple( mapper.readTree( mapper2.writeValueAsString( jn2 ) ), xpath, NullJsonFilter.instance() ) );
+        report( "native Jackson 2 " + xpath, 2_000, 20_000, () -> Jackson2JsonXpath.findAll( jn2, xpath ) );
+    }
+
+    static void benchmarkJettison() throws Exception {
+        String text = IOUtils.toString( TestJsonXpath.class.getResourceAsStream( "edgeFirewall.json" ), "UTF-8" );
+        JSONObject json = new JSONObject( text );
+        ObjectMapper mapper = new ObjectMapper();
+        String xpath = "/firewallRules/firewallRules/ruleId";
+
+        report( "text round-trip " + xpath, 2_000, 20_000,
+            () -> JsonXpath.findAndUpdateMultiple( mapper.readTree( json.toString() ), xpath, NullJsonFilter.instance() ) );
+        report( "direct conversion " + xpath, 2_000, 20_000, () -> JsonXpath.findMultiple( json, xpath, NullJsonFilter.instance() ) );
+        report( "flatten", 2_000, 20_000, () -> JsonXpath.flattenJSONObjectToMap( json ) );
+    }
+
+    static void benchmarkTreeAdapters() throws Exception {
+        String text = IOUtils.toString( TestJsonXpath.class.getResourceAsStream( "edgeFirewall.json" ), "UTF-8" );
+        JSONObject jettison = new JSONObject( text );
+        Object collections = new ObjectMapper().readValue( text, Object.class );
+        String xpath = "/firewallRules/firewallRules/ruleId";
+
+        report( "converted Jettison " + xpath, 2_000, 20_000, () -> JsonXpath.findMultiple( jettison, xpath, NullJsonFilter.instance() ) );
+        report( "adapted Jettison " + xpath, 2_000, 20_000, () -> JsonTreeXpath.findAll( JsonTreeAdapter.jettison(), jettison, xpath ) );
+        report( "converted Map / List " + xpath, 2_000, 20_000,
+            () -> JsonXpath.findAndUpdateMultiple( JsonTreeAdapter.collections().toJackson1( collections ), xpath, NullJsonFilter.instance() ) );
+        report( "adapted Map / List " + xpath, 2_000, 20_000, () -> JsonTreeXpath.findAll( JsonTreeAdapter.collections(), collections, xpath ) );
+
+        // Filters on the candidates of the adapted models
+        String filtered = "/firewallRules/firewallRules[value.get('ruleId') > 131073]/name";
+        report( "adapted Jettison " + filtered, 2_000, 20_000, () -> JsonTreeXpath.findAll( JsonTreeAdapter.jettison(), jettison, filtered ) );
+        report( "adapted Map / List " + filtered, 2_000, 20_000,
+            () -> JsonTreeXpath.findAll( JsonTreeAdapter.collections(), collections, filtered ) );
+    }
+
+    static void benchmarkBatchedMutation() throws Exception {
+        int n = 10_000;
+        Map<String, String> renames = new HashMap<>();
+        for ( int i = 0; i < n; i++ )
+            renames.put( "ipset-" + i, "IPSET-" + i );
+
+        report( "replace all of " + n + " elements", 5, 20, () -> {
+            JsonNode tree = groupingObjectIds( n );
+            return JsonXpath.findAndUpdateMultiple( tree, "/groupingObjectId", new ReplaceTextValueVisitor( "/groupingObjectId", renames ) );
+        } );
+        report( "remove half of " + n + " elements", 5, 20, () -> {
+            JsonNode tree = groupingObjectIds( n );
+            return JsonXpath.findAndUpdateMultiple( tree, "/groupingObjectId[position() < " + n / 2 + "]",
+                new RemoveFieldVisitor( "/groupingObjectId", null ) );
+        } );
+    }
+
+    static void benchmarkTraversalAllocations() throws Exception {
+        JsonNode tree = firewallRules( 10_000 );
+        for ( String xpath : new String[] { "/firewallRules", "//source/groupingObjectId", "//ruleId" } ) {
+            report( xpath, 20, 200, () -> JsonXpath.findAndUpdateMultiple( tree, xpath, NullJsonFilter.instance() ) );
+            reportAllocations( xpath, 20, 200, () -> JsonXpath.findAndUpdateMultiple( tree, xpath, NullJsonFilter.instance() ) );
+        }
+    }
+
+    /**
+     * With debug logging off, tracing off vs. a tracer only counting the events.
+     */
+    static void benchmarkTracing() throws Exception {
+        JsonNode tree = firewallRules( 1_000 );
+        String xpath = "/firewallRules[value.get('ruleId') > 500]/source/groupingObjectId";
+        report( "tracing off " + xpath, 20, 200, () -> JsonXpath.findAndUpdateMultiple( tree, xpath, NullJsonFilter.instance() ) );
+        reportAllocations( "tracing off " + xpath, 20, 200, () -> JsonXpath.findAndUpdateMultiple( tree, xpath, NullJsonFilter.instance() ) );
+
+        AtomicLong events = new AtomicLong();
+        JsonXpathTracing.enable( event -> events.incrementAndGet() );
+        try {
+            report( "tracing on  " + xpath, 20, 200, () -> JsonXpath.findAndUpdateMultiple( tree, xpath, NullJsonFilter.instance() ) );
+        } finally {
+            JsonXpathTracing.disable();
+        }
+        LOG.info( "{} events per evaluation", events.get() / 220 );
+    }
+
+    /**
+     * Stopping at the first node, by throwing vs. returning STOP; then the internal rules only, filtered vs. pruned on
+     * entry.
+     */
+    static void benchmarkVisitResult() throws Exception {
+        JsonNode tree = firewallRules( 10_000 );
+        String xpath = "/firewallRules/source/groupingObjectId";
+        report( "stop by TraversalStopException " + xpath, 20, 200,
+            () -> JsonXpath.findAndUpdateMultiple( tree, xpath, ( parent, node ) -> {
+                throw new TraversalStopException();
+            } ) );
+        report( "stop by VisitResult.STOP       " + xpath, 20, 200,
+            () -> JsonXpath.traverse( tree, xpath, ( parent, node, mutator ) -> VisitResult.STOP ) );
+
+        String filtered = "/firewallRules[unDoubleQuote(value.get('ruleType')) == 'internal_high']/source/groupingObjectId";
+        report( "filtered " + filtered, 20, 200, () -> JsonXpath.findAndUpdateMultiple( tree, filtered, NullJsonFilter.instance() ) );
+        JsonXpathNodeVisitor internalOnly = new JsonXpathNodeVisitor() {
+            @Override
+            public VisitResult visit( JsonNode parent, JsonNode currentNodeToSelect, JsonTreeMutator mutator ) {
+                return VisitResult.CONTINUE;
+            }
+
+            @Override
+            public VisitResult enter( Step step, JsonNode parent, JsonNode node ) {
+                return step.getName().equals( "firewallRules" ) && !"internal_high".equals( node.get( "ruleType" ).getTextValue() )
+                    ? VisitResult.SKIP_SUBTREE : VisitResult.CONTINUE;
+            }
+        };
+        report( "pruned on entry " + xpath, 20, 200, () -> JsonXpath.traverse( tree, xpath, internalOnly ) );
+    }
+
+    /**
+     * Static calls on a small document from many threads at once, where the lookup of the compiled Xpath is a large
+     * share of each call.
+     */
+    static void benchmarkCompiledXpathCache() throws Exception {
+        JsonNode jn = readFixture( "edgeFirewall.json" );
+        String[] xpaths = { "/firewallRules/firewallRules/ruleId", "/firewallRules/firewallRules/name", "/version" };
+        int threads = Math.max( 4, Runtime.getRuntime().availableProcessors() );
+        List<Callable<Object>> callers = new ArrayList<>();
+        for ( int t = 0; t < threads; t++ ) {
+            callers.add( () -> {
+                for ( int i = 0; i < 10_000; i++ )
+                    sink = JsonXpath.findAndUpdateMultiple( jn, xpaths[i % xpaths.length], NullJsonFilter.instance() );
+                return sink;
+            } );
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool( threads );
+        try {
+            report( "static calls, " + threads + " threads x 10k", 5, 20, () -> {
+                for ( Future<Object> caller : pool.invokeAll( callers ) )
+                    caller.get();
+                return null;
+            } );
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    static JsonNode groupingObjectIds( int n ) {
+        ObjectNode root = JsonNodeFactory.instance.objectNode();
+        ArrayNode ids = root.putArray( "groupingObjectId" );
+        for ( int i = 0; i < n; i++ )
+            ids.add( "ipset-" + i );
+        return root;
+    }
+
+    /**
+     * @param n
+     * @return <code>{"firewallRules": [ {"ruleId": .., "name": .., "ruleType": .., "source": {..}}, .. ]}</code>; one
+     *         rule in a thousand also has "loggingEnabled".
+     */
+    static JsonNode firewallRules( int n ) {
+        ObjectNode root = JsonNodeFactory.instance.objectNode();
+        ArrayNode rules = root.putArray( "firewallRules" );
+        for ( int i = 0; i < n; i++ ) {
+            ObjectNode rule = rules.addObject();
+            rule.put( "ruleId", i );
+            rule.put( "name", "rule-" + i );
+            rule.put( "ruleType", i % 10 == 0 ? "internal_high" : "user" );
+            if ( i % 1000 == 0 )
+                rule.put( "loggingEnabled", true );
+            ObjectNode source = rule.putObject( "source" );
+            source.put( "exclude", false );
+            ArrayNode groupingObjectIds = source.putArray( "groupingObjectId" );
+            groupingObjectIds.add( "ipset-" + ( i % 100 ) );
+            groupingObjectIds.add( "vm-" + i );
+        }
+        return root;
+    }
+
+    static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for ( int i = 0; i < 3; i++ )
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    static JsonNode readFixture( String name ) throws Exception {
+        String json = IOUtils.toString( TestJsonXpath.class.getResourceAsStream( name ), "UTF-8" );
+        return new ObjectMapper().readTree( json );
+    }
+
+    static void report( String name, Op op ) throws Exception {
+        report( name, WARMUP, ITERATIONS, op );
+    }
+
+    static void report( String name, int warmup, int iterations, Op op ) throws Exception {
+        for ( int i = 0; i < warmup; i++ )
+            sink = op.run();
+
+        long start = System.nanoTime();
+        for ( int i = 0; i < iterations; i++ )
+            sink = op.run();
+        long elapsed = System.nanoTime() - start;
+
+        LOG.info( String.format( "%-60s %12.1f ns/op", name, (double) elapsed / iterations ) );
+    }
+
+    /**
+     * Bytes allocated by the calling thread per run of the operation.
+     */
+    static void reportAllocations( String name, int warmup, int iterations, Op op ) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for ( int i = 0; i < warmup; i++ )
+            sink = op.run();
+
+        long start = threads.getThreadAllocatedBytes( Thread.currentThread().getId() );
+        for ( int i = 0; i < iterations; i++ )
+            sink = op.run();
+        long allocated = threads.getThreadAllocatedBytes( Thread.currentThread().getId() ) - start;
+
+        LOG.info( String.format( "%-60s %12.1f B/op", name, (double) allocated / iterations ) );
+    }
+
+    interface Op {
+        Object run() throws Exception;
+    }
+}
@@ -32,19 +32,40 @@
 
 package com.vmware.xpath.json.tests;
 
+import static org.junit.Assume.assumeTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.script.ScriptEngineManager;
+
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.net.util.SubnetUtils;
 import org.codehaus.jackson.JsonNode;
@@ -54,6 +75,7 @@ import org.codehaus.jackson.annotate.JsonAutoDetect.Visibility;
 import org.codehaus.jackson.annotate.JsonMethod;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
 import org.codehaus.jackson.node.MissingNode;
 import org.codehaus.jackson.node.ObjectNode;
 import org.codehaus.jackson.node.TextNode;
@@ -61,17 +83,40 @@ import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.vmware.xpath.TraversalStopException;
+import com.vmware.xpath.VisitResult;
 import com.vmware.xpath.XpathVisitorException;
+import com.vmware.xpath.json.CompiledXpath;
+import com.vmware.xpath.json.CompiledXpath.Axis;
+import com.vmware.xpath.json.CompiledXpath.Step;
 import com.vmware.xpath.json.DebugJsonXpathVisitor;
 import com.vmware.xpath.json.DistinctTextValueJsonXpathVisitor;
+import com.vmware.xpath.json.Jackson2JsonXpath;
+import com.vmware.xpath.json.JsonTreeAdapter;
+import com.vmware.xpath.json.JsonTreeMutator;
+import com.vmware.xpath.json.JsonTreeXpath;
+import com.vmware.xpath.json.JsonTreeXpathVisitor;
 import com.vmware.xpath.json.JsonXpath;
+import com.vmware.xpath.json.JsonXpathBatchResult;
+import com.vmware.xpath.json.JsonXpathIndex;
+import com.vmware.xpath.json.JsonXpathNodeVisitor;
+import com.vmware.xpath.json.JsonXpathQuerySet;
+import com.vmware.xpath.json.JsonXpathTracer;
+import com.vmware.xpath.json.JsonXpathTracing;
 import com.vmware.xpath.json.JsonXpathVisitor;
+import com.vmware.xpath.json.MutatingJsonXpathVisitor;
+import com.vmware.xpath.json.NdjsonXpathProcessor;
 import com.vmware.xpath.json.NullJsonFilter;
+import com.vmware.xpath.json.PredicateEngine;
+import com.vmware.xpath.json.RemoveFieldVisitor;
 import com.vmware.xpath.json.ReplaceTextValueVisitor;
+import com.vmware.xpath.json.StreamingJsonXpath;
+import com.vmware.xpath.json.StreamingJsonXpathRewriter;
 
 import junit.framework.TestCase;
 
@@ -80,6 +125,7 @@ import junit.framework.TestCase;
  * @author banerjees
  *
  */
+@RunWith(JUnit4.class)
 public class TestJsonXpath extends TestCase{
 
     private static final Logger LOG = LoggerFactory
@@ -147,6 +193,31 @@ public class TestJsonXpath extends TestCase{
         }
     }
 
+    /**
+     * Sample PredicateEngine, registered in META-INF/services of the test resources.
+     * Supports a single filter: 'even()'
+     */
+    public static final class EvenPredicateEngine implements PredicateEngine {
+
+        static final AtomicInteger EVALUATIONS = new AtomicInteger();
+
+        @Override
+        public int getOrder() {
+            return -1;
+        }
+
+        @Override
+        public Predicate<JsonNode> compile(String filter) {
+            if (!filter.equals("even()")) {
+                return null;
+            }
+            return value -> {
+                EVALUATIONS.incrementAndGet();
+                return value.isIntegralNumber() && value.getLongValue() % 2 == 0;
+            };
+        }
+    }
+
     private static final class HostPort
     {
         public String host;
@@ -545,7 +616,7 @@ public class TestJsonXpath extends TestCase{
          */
         assertEquals("Incorrect replacement for xpath: "+ xpath,
                 // expected
-                "[\"resgroup-65\", \"vm-43\", \"securitygroup-10\", \"dvportgroup-40\", \"$ipset_2\", \"$ipset_3\", \"vm-58\", \"ipset-4\", \"$ipset_3\"]",
+                "[\"$ipset_2\", \"resgroup-65\", \"vm-43\", \"securitygroup-10\", \"dvportgroup-40\", \"$ipset_3\", \"vm-58\", \"ipset-4\", \"$ipset_3\"]",
                 // Actual groupingObjectIds values (array)
                 JsonXpath.findAndUpdateMultiple(jn, xpath, NullJsonFilter.instance()).toString()
         );
@@ -578,7 +649,7 @@ public class TestJsonXpath extends TestCase{
          */
         assertEquals("Incorrect replacement for xpath: "+ xpath,
                 // expected
-                "[\"resgroup-65\", \"securitygroup-10\", \"dvportgroup-40\", \"$ipset_2\", \"$ipset_3\", \"$go_1\"]",
+                "[\"$ipset_2\", \"resgroup-65\", \"$go_1\", \"securitygroup-10\", \"dvportgroup-40\", \"$ipset_3\"]",
                 // Actual groupingObjectIds values (array)
                 JsonXpath.findAndUpdateMultiple(jn, xpath, NullJsonFilter.instance()).toString()
         );
@@ -986,6 +1057,1262 @@ public class TestJsonXpath extends TestCase{
 //        LOG.info("Resulting JSON2: {}\n", new JSONObject(documentContext.jsonString()));
     }
 
+    /**
+     * A compiled Xpath is parsed once and gives the same results as the static helpers.
+     */
+    @Test
+    public void testCompiledXpath() throws Exception {
+        String orgVdcList = IOUtils.toString(TestJsonXpath.class.getResourceAsStream("orgVdcList.json"), "UTF-8");
+        JsonNode jn = getJsonNode(orgVdcList);
+
+        CompiledXpath compiled = JsonXpath.compile("//vcloud/orgVdcs//name");
+        assertEquals("[//vcloud, /orgVdcs, //name]", compiled.getSteps().toString());
+        assertEquals(JsonXpath.findAndUpdateMultiple(jn, "//vcloud/orgVdcs//name", NullJsonFilter.instance()),
+                compiled.findAll(jn));
+        assertEquals(compiled.findAll(jn), compiled.findAll(jn));
+
+        // A '/' within a filter does not split the step
+        compiled = JsonXpath.compile("/clouds[value.get('id') == 'a/b']//orgName");
+        assertEquals(2, compiled.getSteps().size());
+        assertEquals(Axis.CHILD, compiled.getSteps().get(0).getAxis());
+        assertEquals("clouds", compiled.getSteps().get(0).getName());
+        assertEquals("value.get('id') == 'a/b'", compiled.getSteps().get(0).getPredicate());
+        assertEquals(Axis.DESCENDANT, compiled.getSteps().get(1).getAxis());
+
+        compiled = JsonXpath.compile("rmq/hosts[2]/host");
+        assertEquals(2, compiled.getSteps().get(1).getIndex());
+        assertEquals(-1, compiled.getSteps().get(2).getIndex());
+
+        compiled = JsonXpath.compile("a[2147483646]/b[position() <= 2147483646]");
+        assertEquals(2147483646, compiled.getSteps().get(0).getIndex());
+
+        for (String invalid : new String[] { "/", "//", "a/", "a[b", "a[99999999999]", "a[2147483647]",
+                "a[position() <= 2147483647]", "a[position() > 99999999999]" }) {
+            try {
+                JsonXpath.compile(invalid);
+                fail("Expected invalid xpath: " + invalid);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Filters evaluated without a script engine: numeric comparison, boolean logic, prefix/suffix tests.
+     */
+    @Test
+    public void testXpathNativeFilterExpressions() throws Exception {
+        String edgeFirewall = IOUtils.toString(TestJsonXpath.class.getResourceAsStream("edgeFirewall.json"), "UTF-8");
+        JsonNode jn = getJsonNode(edgeFirewall);
+
+        String[] xpaths = new String[] {
+            "//firewallRules/firewallRules[value.get('ruleId') > 131073 && value.get('ruleType') != '\"user\"']/name",
+            "//firewallRules/firewallRules[value.get('ruleId') == 133123 || !value.get('enabled').asBoolean()]/name",
+            "//groupingObjectId[unDoubleQuote(value).startsWith('ipset-') || unDoubleQuote(value) === 'vm-58']",
+            "//groupingObjectId[unDoubleQuote(value).endsWith('-3') && unDoubleQuote(value).length >= 7]",
+            "//ruleId[value <= 131073 + 0]",
+            "//ruleType[(value.getTextValue().indexOf('_') > -1) == true]",
+        };
+
+        String[] expectedResults = new String[] {
+            "[\"firewall\"]",
+            "[\"test1\"]",
+            "[\"ipset-2\", \"ipset-3\", \"vm-58\", \"ipset-4\", \"ipset-3\"]",
+            "[\"ipset-3\", \"ipset-3\"]",
+            "[131073]",
+            "[\"internal_high\", \"default_policy\"]",
+        };
+
+        int i = 0;
+        for (String xpath : xpaths) {
+            quickAssertXpathResult(xpath, expectedResults[i], jn);
+            i++;
+        }
+
+        // || and && evaluate to the deciding operand, as in JavaScript
+        jn = getJsonNode("{\"rules\":[{\"a\":\"x\",\"n\":1},{\"n\":2},{\"a\":\"\",\"n\":3}]}");
+        quickAssertXpathResult("/rules[(value.get('a') || 'x') == 'x']/n", "[2]", jn);
+        quickAssertXpathResult("/rules[(value.has('a') && value.get('n')) == 1]/n", "[1]", jn);
+        quickAssertXpathResult("/rules[value.has('a') && (value.get('n') > 2 || false)]/n", "[3]", jn);
+    }
+
+    /**
+     * Filtered queries from many threads, over the same tree, must each see their own candidate nodes.
+     * Also logs the throughput with one thread vs. all cores.
+     */
+    @Test
+    public void testXpathConcurrentFilteredQueries() throws Exception {
+        String orgVdcList = IOUtils.toString(TestJsonXpath.class.getResourceAsStream("orgVdcList.json"), "UTF-8");
+        final JsonNode jn = getJsonNode(orgVdcList);
+
+        final String[] xpaths = new String[] {
+            "/clouds[ 'cld-1000-2' == unDoubleQuote(value.get('id'))]//orgName",
+            "//clouds['cld-1000-1' == unDoubleQuote(value.get('id')) ]//orgName",
+            "//id[unDoubleQuote(value).matches('cld-('+ d+ '+)-'+ d+ '')]",
+            "//orgVdcs[ 'Active' !=  unDoubleQuote( value.get('status') ) ]/name[!unDoubleQuote(value).endsWith('-03')]",
+        };
+        final Map<String, String> expected = new HashMap<>();
+        for (String xpath : xpaths) {
+            expected.put(xpath, JsonXpath.findAndUpdateMultiple(jn, xpath, NullJsonFilter.instance()).toString());
+        }
+
+        final int queriesPerThread = 500;
+        int cores = Math.max(2, Runtime.getRuntime().availableProcessors());
+        for (int threads : new int[] { 1, cores }) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                final AtomicInteger mismatches = new AtomicInteger();
+                List<Callable<Void>> tasks = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    final int offset = t;
+                    tasks.add(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            for (int q = 0; q < queriesPerThread; q++) {
+                                String xpath = xpaths[(q + offset) % xpaths.length];
+                                String actual = JsonXpath.findAndUpdateMultiple(jn, xpath, NullJsonFilter.instance()).toString();
+                                if (!expected.get(xpath).equals(actual)) {
+                                    mismatches.incrementAndGet();
+                                }
+                            }
+                            return null;
+                        }
+                    });
+                }
+
+                long start = System.nanoTime();
+                for (Future<Void> f : executor.invokeAll(tasks)) {
+                    f.get();
+                }
+                long elapsed = System.nanoTime() - start;
+
+                assertEquals("Filtered queries interfered with each other, on " + threads + " thread(s)", 0, mismatches.get());
+                LOG.info("{} thread(s): {} filtered queries/s", threads,
+                        (long) (threads * queriesPerThread / (elapsed / 1e9)));
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Filters beyond the native subset go to the script engine: the same compiled Xpaths, shared by many threads, must
+     * each see their own candidate nodes there too. Skipped when the JVM has no JavaScript engine.
+     */
+    @Test
+    public void testXpathConcurrentScriptFilters() throws Exception {
+        assumeTrue("No JavaScript engine", new ScriptEngineManager().getEngineByName("JavaScript") != null);
+
+        String orgVdcList = IOUtils.toString(TestJsonXpath.class.getResourceAsStream("orgVdcList.json"), "UTF-8");
+        final JsonNode jn = getJsonNode(orgVdcList);
+
+        // split() and [] indexing are beyond the native subset
+        final CompiledXpath[] xpaths = new CompiledXpath[] {
+            JsonXpath.compile("/clouds[unDoubleQuote(value.get('id')).split('-')[2] == '1']//orgName"),
+            JsonXpath.compile("/clouds[unDoubleQuote(value.get('id')).split('-')[2] == '2']//orgName"),
+            JsonXpath.compile("//orgVdcs[unDoubleQuote(value.get('id')).split('-')[3] != '03']/name"),
+        };
+        final String[] expected = new String[xpaths.length];
+        for (int i = 0; i < xpaths.length; i++) {
+            expected[i] = xpaths[i].update(jn, NullJsonFilter.instance()).toString();
+        }
+        assertFalse(expected[0].equals(expected[1]));
+
+        final int queriesPerThread = 200;
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final AtomicInteger mismatches = new AtomicInteger();
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int offset = t;
+                tasks.add(() -> {
+                    for (int q = 0; q < queriesPerThread; q++) {
+                        int i = (q + offset) % xpaths.length;
+                        if (!expected[i].equals(xpaths[i].update(jn, NullJsonFilter.instance()).toString())) {
+                            mismatches.incrementAndGet();
+                        }
+                    }
+                    return null;
+                });
+            }
+            for (Future<Void> f : executor.invokeAll(tasks)) {
+                f.get();
+            }
+            assertEquals("Script filters interfered with each other", 0, mismatches.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Filters are compiled by the PredicateEngines registered through the ServiceLoader.
+     */
+    @Test
+    public void testXpathPluggablePredicateEngine() throws Exception {
+        String edgeFirewall = IOUtils.toString(TestJsonXpath.class.getResourceAsStream("edgeFirewall.json"), "UTF-8");
+        JsonNode jn = getJsonNode(edgeFirewall);
+
+        // Custom engine
+        quickAssertXpathResult("//ruleId[even()]", "[131074]", jn);
+        // Native engine
+        quickAssertXpathResult("//ruleId[value > 131073]", "[131074, 133123]", jn);
+    }
+
+    /**
+     * Lazy evaluation selects the same nodes, and stops traversing once the stream is satisfied.
+     */
+    @Test
+    public void testXpathLazyStream() throws Exception {
+        String orgVdcList = IOUtils.toString(TestJsonXpath.class.getResourceAsStream("orgVdcList.json"), "UTF-8");
+        JsonNode jn = getJsonNode(orgVdcList);
+
+        for (String xpath : new String[] { "//orgName", "/clouds//orgName", "//clouds/orgVdcs/name", "//vcloud/name", "/name",
+                "//orgVdcs[ 'Active' !=  unDoubleQuote( value.get('status') ) ]/name[!unDoubleQuote(value).endsWith('-03')]" }) {
+            assertEquals("Incorrect lazy results for Xpath:" + xpath,
+                    JsonXpath.findAndUpdateMultiple(jn, xpath, NullJsonFilter.instance()),
+                    JsonXpath.stream(jn, xpath).collect(Collectors.toList()));
+        }
+        assertTrue(JsonXpath.exists(jn, "//clouds/orgVdcs/name"));
+        assertFalse(JsonXpath.exists(jn, "//clouds/orgVdcs/nothing"));
+
+        // A field holding an empty array exists, although it has no element to select
+        JsonNode empty = getJsonNode("{\"a\":{\"empty\":[]}}");
+        assertTrue(JsonXpath.exists(empty, "a/empty"));
+        assertTrue(JsonXpath.exists(empty, "//empty"));
+        assertEquals("[]", JsonXpath.find(empty, "a/empty").toString());
+        assertFalse(JsonXpath.exists(empty, "a/empty[0]"));
+        assertFalse(JsonXpath.exists(empty, "a/nothing"));
+
+        String edgeFirewall = IOUtils.toString(TestJsonXpath.class.getResourceAsStream("edgeFirewall.json"), "UTF-8");
+        jn = getJsonNode(edgeFirewall);
+
+        // Only the first //ruleId has been filtered to find the first match
+        EvenPredicateEngine.EVALUATIONS.set(0);
+        assertEquals("131074", JsonXpath.stream(jn, "//ruleId[even()]").findFirst().get().asText());
+        assertEquals(1, EvenPredicateEngine.EVALUATIONS.get());
+
+        EvenPredicateEngine.EVALUATIONS.set(0);
+        assertEquals(1, JsonXpath.stream(jn, "//ruleId[even()]").count());
+        assertEquals(3, EvenPredicateEngine.EVALUATIONS.get());
+    }
+
+    /**
+     * A query set selects, for each of its Xpaths, what each Xpath selects on its own, in a single walk.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testXpathQuerySet() throws Exception {
+        String[] xpaths = new String[] { "//ruleId", "//firewallRules/name", "/firewallRules/firewallRules/source/groupingObjectId",
+                "//groupingObjectId", "//firewallRules[ 'accept' == unDoubleQuote( value.get('action') ) ]/ruleId",
+                "//source//groupingObjectId", "/enabled", "//nothing/name" };
+        String edgeFirewall = IOUtils.toString(TestJsonXpath.class.getResourceAsStream("edgeFirewall.json"), "UTF-8");
+        JsonNode jn = getJsonNode(edgeFirewall);
+
+        final Map<String, Integer> visits = new HashMap<>();
+        JsonXpathQuerySet queries = new JsonXpathQuerySet();
+        for (final String xpath : xpaths) {
+            queries.add(xpath, (parent, node) -> {
+                visits.merge(xpath, 1, Integer::sum);
+                return true;
+            });
+        }
+        Map<String, List<JsonNode>> results = queries.evaluate(jn);
+
+        assertEquals(Arrays.asList(xpaths), new ArrayList<>(results.keySet()));
+        for (String xpath : xpaths) {
+            List<JsonNode> expected = JsonXpath.findAndUpdateMultiple(jn, xpath, NullJsonFilter.instance());
+            assertEquals("Incorrect query set results for Xpath:" + xpath, expected, results.get(xpath));
+            assertEquals("Incorrect visits for Xpath:" + xpath, expected.size(), visits.getOrDefault(xpath, 0).intValue());
+        }
+        assertFalse(results.get("//ruleId").isEmpty());
+
+        String orgVdcList = IOUtils.toString(TestJsonXpath.class.getResourceAsStream("orgVdcList.json"), "UTF-8");
+        jn = getJsonNode(orgVdcList);
+        queries = new JsonXpathQuerySet().add("//orgName").add("/clouds//orgName").add("//clouds/orgVdcs/name")
+                .add("//vcloud/name").add("/clouds/vcloud").add("//orgVdcs[ 'Active' !=  unDoubleQuote( value.get('status') ) ]/name");
+        for (Map.Entry<String, List<JsonNode>> result : queries.evaluate(jn).entrySet()) {
+            assertEquals("Incorrect query set results for Xpath:" + result.getKey(),
+                    JsonXpath.findAndUpdateMultiple(jn, result.getKey(), NullJsonFilter.instance()), result.getValue());
+        }
+
+        try {
+            queries.add("//orgName");
+            fail("Xpath added twice");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Xpaths evaluated through a field-name index select the same nodes as when walking the tree.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testXpathFieldNameIndex() throws Exception {
+        String edgeFirewall = IOUtils.toString(TestJsonXpath.class.getResourceAsStream("edgeFirewall.json"), "UTF-8");
+        String orgVdcList = IOUtils.toString(TestJsonXpath.class.getResourceAsStream("orgVdcList.json"), "UTF-8");
+        String[][] xpaths = new String[][] {
+                { edgeFirewall, "//ruleId", "//groupingObjectId", "//source//groupingObjectId", "//firewallRules/name",
+                        "//firewallRules[ 'accept' == unDoubleQuote( value.get('action') ) ]/ruleId", "/enabled",
+                        "//firewallRules//firewallRules", "//nothing" },
+                { orgVdcList, "//orgName", "/clouds//orgName", "//clouds/orgVdcs/name", "//vcloud/name", "//name",
+                        "//orgVdcs[ 'Active' !=  unDoubleQuote( value.get('status') ) ]//name" } };
+
+        for (String[] test : xpaths) {
+            JsonNode jn = getJsonNode(test[0]);
+            JsonXpathIndex index = JsonXpathIndex.build(jn);
+            assertSame(jn, index.getRoot());
+            for (int i = 1; i < test.length; i++) {
+                String xpath = test[i];
+                assertEquals("Incorrect indexed results for Xpath:" + xpath,
+                        JsonXpath.findAndUpdateMultiple(jn, xpath, NullJsonFilter.instance()),
+                        JsonXpath.findAndUpdateMultiple(index, xpath, NullJsonFilter.instance()));
+            }
+        }
+
+        JsonXpathIndex index = JsonXpathIndex.build(getJsonNode(edgeFirewall));
+        assertEquals(index.getRoot().findValues("ruleId").size(), index.count("ruleId"));
+        assertEquals(0, index.count("nothing"));
+    }
+
+    /**
+     * Changes made through the index, or by mutating visitors evaluated on the index, keep the index up to date.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testXpathIndexMaintenance() throws Exception {
+        String edgeFirewall = IOUtils.toString(TestJsonXpath.class.getResourceAsStream("edgeFirewall.json"), "UTF-8");
+        String[] xpaths = new String[] { "//ruleId", "//groupingObjectId", "//source//groupingObjectId", "//firewallRules/name",
+                "//destination/groupingObjectId", "//ruleTag", "//comment", "//application//service" };
+
+        JsonNode jn = getJsonNode(edgeFirewall);
+        JsonXpathIndex index = JsonXpathIndex.build(jn);
+
+        Map<String, String> replacementValues = new HashMap<>();
+        replacementValues.put("ipset-3", "$ipset_3");
+        replacementValues.put("ipset-2", "$ipset_2");
+        replacementValues.put("131074", "$ruleId");
+        JsonXpath.findAndUpdateMultiple(index, "//ruleId", new ReplaceTextValueVisitor("//ruleId", replacementValues));
+        JsonXpath.findAndUpdateMultiple(index, "//groupingObjectId",
+                new ReplaceTextValueVisitor("//groupingObjectId", replacementValues));
+        JsonXpath.findAndUpdateMultiple(index, "//destination//groupingObjectId[ value.asText().startsWith('vm-') ]",
+                new RemoveFieldVisitor("//destination//groupingObjectId", null));
+        JsonXpath.findAndUpdateMultiple(index, "//ruleTag", new RemoveFieldVisitor("//ruleTag", null));
+        assertEquals(0, index.count("ruleTag"));
+
+        // Structural changes, including new containers within the middle of the tree
+        ArrayNode rules = (ArrayNode) jn.get("firewallRules").get("firewallRules");
+        ObjectNode service = new ObjectMapper().createObjectNode();
+        service.putArray("service").addObject().put("comment", "http");
+        index.put((ObjectNode) rules.get(1).get("application"), "applications", service);
+        index.put((ObjectNode) rules.get(0), "source", getJsonNode(rules.get(1).get("source").toString()));
+        index.set(rules, 2, getJsonNode(rules.get(1).get("destination").toString()));
+        index.remove((ObjectNode) rules.get(1), "source");
+        for (int i = 0; i < 40; i++) {
+            // Inserting repeatedly at the same place exhausts the room left there, and renumbers the index
+            ObjectNode rule = new ObjectMapper().createObjectNode();
+            rule.put("ruleId", i);
+            rule.putObject("application").putArray("service").addObject().put("comment", "rule-" + i);
+            index.insert(rules, 1, rule);
+        }
+        index.add(rules, service);
+
+        JsonXpathIndex rebuilt = JsonXpathIndex.build(jn);
+        assertEquals(rebuilt.size(), index.size());
+        for (String xpath : xpaths) {
+            List<JsonNode> expected = JsonXpath.findAndUpdateMultiple(jn, xpath, NullJsonFilter.instance());
+            assertEquals("Incorrect indexed results for Xpath:" + xpath, expected,
+                    JsonXpath.findAndUpdateMultiple(index, xpath, NullJsonFilter.instance()));
+            assertEquals("Incorrect count for Xpath:" + xpath, rebuilt.count(xpath.substring(xpath.lastIndexOf('/') + 1)),
+                    index.count(xpath.substring(xpath.lastIndexOf('/') + 1)));
+        }
+        assertEquals(42, JsonXpath.findAndUpdateMultiple(index, "//comment", NullJsonFilter.instance()).size());
+    }
+
+    /**
+     * Parallel evaluation selects the same nodes, in the same order, and applies the same updates.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testXpathParallelEvaluation() throws Exception {
+        String edgeFirewall = IOUtils.toString(TestJsonXpath.class.getResourceAsStream("edgeFirewall.json"), "UTF-8");
+        // Large enough for the arrays and objects to be split into several tasks
+        StringBuilder edges = new StringBuilder("{\"edges\":[");
+        StringBuilder byId = new StringBuilder("\"byId\":{");
+        for (int i = 0; i < 300; i++) {
+            edges.append(i == 0 ? "" : ",").append(edgeFirewall);
+            byId.append(i == 0 ? "" : ",").append("\"edge-").append(i).append("\":").append(edgeFirewall);
+        }
+        String json = edges.append("],").append(byId).append("}}").toString();
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            JsonNode jn = getJsonNode(json);
+            for (String xpath : new String[] { "//ruleId", "//groupingObjectId", "//byId//source//groupingObjectId",
+                    "/byId/edge-7/version", "//firewallRules[ 'accept' == unDoubleQuote( value.get('action') ) ]/ruleId", "//nothing" }) {
+                assertEquals("Incorrect parallel results for Xpath:" + xpath,
+                        JsonXpath.findAndUpdateMultiple(jn, xpath, NullJsonFilter.instance()),
+                        JsonXpath.withParallelism(pool).findAndUpdateMultiple(jn, xpath, NullJsonFilter.instance()));
+            }
+            JsonNode edgeArray = jn.get("edges");
+            assertEquals(JsonXpath.findAndUpdateMultiple(edgeArray, "/firewallRules/firewallRules/name", NullJsonFilter.instance()),
+                    JsonXpath.withParallelism(pool).findAndUpdateMultiple(edgeArray, "/firewallRules/firewallRules/name",
+                            NullJsonFilter.instance()));
+            // No visitor: only select
+            assertEquals(JsonXpath.findAndUpdateMultiple(jn, "//ruleId", null),
+                    JsonXpath.withParallelism(pool).findAndUpdateMultiple(jn, "//ruleId", null));
+
+            Map<String, String> replacementValues = new HashMap<>();
+            replacementValues.put("ipset-3", "$ipset_3");
+            replacementValues.put("131074", "$ruleId");
+            JsonNode expected = getJsonNode(json);
+            for (String xpath : new String[] { "//ruleId", "//groupingObjectId" }) {
+                JsonXpath.findAndUpdateMultiple(expected, xpath, new ReplaceTextValueVisitor(xpath, replacementValues));
+                JsonXpath.withParallelism(pool).findAndUpdateMultiple(jn, xpath, new ReplaceTextValueVisitor(xpath, replacementValues));
+            }
+            assertEquals(expected, jn);
+            assertTrue(jn.toString().contains("$ipset_3"));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Batch evaluation selects, for each document, what a single evaluation selects; without ever handing more
+     * documents to the executor than allowed.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testXpathBatchEvaluation() throws Exception {
+        String edgeFirewall = IOUtils.toString(TestJsonXpath.class.getResourceAsStream("edgeFirewall.json"), "UTF-8");
+        List<JsonNode> documents = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            documents.add(getJsonNode(edgeFirewall.replace("131074", Integer.toString(131074 + i))));
+        }
+
+        // Four workers draining the queue of the documents handed over
+        final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+        final AtomicInteger maxQueued = new AtomicInteger();
+        Executor executor = task -> {
+            queue.add(task);
+            maxQueued.accumulateAndGet(queue.size(), Math::max);
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            for (int i = 0; i < 4; i++) {
+                pool.execute(() -> {
+                    try {
+                        while (true) {
+                            queue.take().run();
+                        }
+                    } catch (InterruptedException e) {
+                        // done
+                    }
+                });
+            }
+
+            CompiledXpath xpath = JsonXpath.compile("//firewallRules[ value.get('ruleId') > 131100 ]/ruleId");
+            JsonXpathBatchResult result = JsonXpath.evaluateBatch(documents, xpath, executor, 3);
+
+            assertEquals(documents.size(), result.size());
+            assertEquals(0, result.getFailures());
+            assertTrue(maxQueued.get() <= 3);
+            int matches = 0;
+            for (int i = 0; i < documents.size(); i++) {
+                List<JsonNode> expected = xpath.update(documents.get(i), NullJsonFilter.instance());
+                assertEquals("Incorrect batch results for document " + i, expected, result.get(i));
+                matches += expected.size();
+            }
+            assertEquals(matches, result.getMatches());
+            assertTrue(result.getDocumentsPerSecond() > 0);
+            LOG.info("Batch evaluation: {}", result);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        // Interrupted while handing over the documents: those already handed over are done before it returns
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger started = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        Executor slow = task -> {
+            started.incrementAndGet();
+            caller.interrupt();
+            new Thread(() -> {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    // run it anyway
+                }
+                running.incrementAndGet();
+                task.run();
+            }).start();
+        };
+        try {
+            JsonXpath.evaluateBatch(documents, JsonXpath.compile("//ruleId"), slow, 1);
+            fail("Batch evaluation not interrupted");
+        } catch (InterruptedException e) {
+            assertEquals(1, started.get());
+            // Not returned while the document handed over was still waiting to run
+            assertEquals(1, running.get());
+            assertFalse(Thread.currentThread().isInterrupted());
+        }
+
+        // A failing document is reported; an Error other than a stack overflow stops the batch
+        JsonNode failing = new ObjectNode(JsonNodeFactory.instance) {
+            @Override
+            public Iterator<Entry<String, JsonNode>> getFields() {
+                throw new IllegalStateException("failing");
+            }
+        };
+        JsonNode broken = new ObjectNode(JsonNodeFactory.instance) {
+            @Override
+            public Iterator<Entry<String, JsonNode>> getFields() {
+                throw new AssertionError("broken");
+            }
+        };
+        Executor threads = task -> new Thread(task).start();
+        JsonXpathBatchResult result = JsonXpath.evaluateBatch(Arrays.asList(documents.get(0), failing, documents.get(1)),
+                JsonXpath.compile("//ruleId"), threads, 2);
+        assertEquals(1, result.getFailures());
+        assertTrue(result.getError(1) instanceof IllegalStateException);
+        try {
+            JsonXpath.evaluateBatch(Arrays.asList(documents.get(0), broken, documents.get(1)), JsonXpath.compile("//ruleId"),
+                    threads, 2);
+            fail("Error not propagated");
+        } catch (AssertionError e) {
+            assertEquals("broken", e.getMessage());
+        }
+    }
+
+    /**
+     * Streaming evaluation gives the same nodes as evaluation on the parsed document
+     */
+    @Test
+    public void testXpathStreamingEvaluation() throws Exception {
+        String[][] cases = new String[][] {
+            { "edgeFirewall.json", "//ruleId", "/firewallRules/firewallRules/name", "//groupingObjectId",
+                    "//firewallRules/firewallRules[value.get('ruleId') > 131073]/name",
+                    "//firewallRules/firewallRules[value.has('source') && value.path('source').size() > 0]/name",
+                    "//firewallRules/firewallRules[value.path('description').isMissingNode()]/ruleId",
+                    "//firewallRules/firewallRules[value.get('action').asText() == 'accept' && !value.isArray()]/name",
+                    "//ruleId[value > 131073]",
+                    "//ruleId[value <= 131073 + 0]", "/firewallRules/firewallRules", "//source", "//nothing" },
+            { "orgVdcList.json", "//orgName", "//vdcName", "/orgVdcList" },
+            { "natRulesArray.json", "/originalAddress", "//originalAddress", "//description", "/desc" },
+            { "vcdAdminConfig.json", "//host", "/rmq/hosts/port", "//nsx/url", "/vcd" },
+        };
+
+        for (String[] testCase : cases) {
+            String json = IOUtils.toString(TestJsonXpath.class.getResourceAsStream(testCase[0]), "UTF-8");
+            JsonNode jn = getJsonNode(json);
+            for (int i = 1; i < testCase.length; i++) {
+                String xpath = testCase[i];
+                List<JsonNode> expected = JsonXpath.findAndUpdateMultiple(jn, xpath, NullJsonFilter.instance());
+                List<JsonNode> streamed = StreamingJsonXpath.findAll(
+                        TestJsonXpath.class.getResourceAsStream(testCase[0]), JsonXpath.compile(xpath));
+                assertEquals("Incorrect streamed results for Xpath:" + xpath + " on " + testCase[0], expected, streamed);
+            }
+        }
+
+        // Matches are handed over as they are read
+        String edgeFirewall = IOUtils.toString(TestJsonXpath.class.getResourceAsStream("edgeFirewall.json"), "UTF-8");
+        JsonParser parser = new ObjectMapper().getJsonFactory().createJsonParser(edgeFirewall);
+        List<String> names = new ArrayList<>();
+        StreamingJsonXpath.evaluate(parser, JsonXpath.compile("/firewallRules/firewallRules/name"),
+                name -> names.add(name.getTextValue()));
+        assertEquals(Arrays.asList("firewall", "test1", "default rule for ingress traffic"), names);
+
+        // Skipped subtrees leave the parser at the end of the value evaluated
+        parser = new ObjectMapper().getJsonFactory().createJsonParser(
+                "{\"a\":{\"b\":[1,{\"c\":2}]},\"d\":{\"c\":3}} {\"d\":{\"c\":4}}");
+        CompiledXpath xpath = JsonXpath.compile("/d/c");
+        assertEquals("[3]", StreamingJsonXpath.findAll(parser, xpath).toString());
+        parser.nextToken();
+        assertEquals("[4]", StreamingJsonXpath.findAll(parser, xpath).toString());
+    }
+
+    /**
+     * Evaluation over each record of a JSON Lines file, in chunks smaller than a record
+     */
+    @Test
+    public void testXpathNdjsonProcessor() throws Exception {
+        String edgeFirewall = IOUtils.toString(TestJsonXpath.class.getResourceAsStream("edgeFirewall.json"), "UTF-8");
+        String record = getJsonNode(edgeFirewall).toString();
+        String xpath = "/firewallRules/firewallRules[value.get('ruleId') > 131073]/ruleId";
+
+        StringBuilder ndjson = new StringBuilder();
+        Map<Long, List<JsonNode>> expected = new HashMap<>();
+        for (int i = 0; i < 50; i++) {
+            String line = record.replace("133123", Integer.toString(133123 + i));
+            if (i % 10 == 3) {
+                line = "{\"firewallRules\": " + line;         // malformed
+            } else {
+                expected.put((long) ndjson.length(), JsonXpath.findAndUpdateMultiple(getJsonNode(line), xpath,
+                        NullJsonFilter.instance()));
+            }
+            ndjson.append(line).append(i % 2 == 0 ? "\n" : "\r\n");
+            if (i % 7 == 0) {
+                ndjson.append("\n");
+            }
+        }
+
+        Path file = Files.createTempFile("records", ".ndjson");
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            Files.write(file, ndjson.toString().getBytes("UTF-8"));
+            Map<Long, List<JsonNode>> found = new ConcurrentHashMap<>();
+            NdjsonXpathProcessor processor = new NdjsonXpathProcessor(JsonXpath.compile(xpath), pool, 700);
+            NdjsonXpathProcessor.Summary summary = processor.process(file, found::put);
+
+            assertEquals(45, summary.getRecords());
+            assertEquals(5, summary.getMalformedRecords());
+            assertEquals(45, summary.getMatchedRecords());
+            assertEquals(90, summary.getMatches());
+            assertEquals(ndjson.length(), summary.getBytes());
+            assertEquals(expected, found);
+            LOG.info("JSON Lines processing: {}", summary);
+        } finally {
+            pool.shutdown();
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Streaming rewrite gives the same document as the visitors on the parsed document
+     */
+    @Test
+    public void testXpathStreamingRewrite() throws Exception {
+        String edgeFirewall = IOUtils.toString(TestJsonXpath.class.getResourceAsStream("edgeFirewall.json"), "UTF-8");
+        Map<String, String> ruleTypes = new HashMap<>();
+        ruleTypes.put("user", "USER");
+        ruleTypes.put("default_policy", "DEFAULT");
+        Map<String, String> names = new HashMap<>();
+        names.put("test1", "renamed");
+        names.put("default rule for ingress traffic", "never");
+        String renamedRules = "/firewallRules/firewallRules[value.get('ruleId') > 131073]/name";
+        String ipsets = "//groupingObjectId[unDoubleQuote(value).startsWith('ipset-')]";
+
+        JsonNode expected = getJsonNode(edgeFirewall);
+        JsonXpath.findAndUpdateMultiple(expected, "//ruleType", new ReplaceTextValueVisitor("//ruleType", ruleTypes));
+        JsonXpath.findAndUpdateMultiple(expected, renamedRules, new ReplaceTextValueVisitor(renamedRules, names));
+        JsonXpath.findAndUpdateMultiple(expected, "//description", new RemoveFieldVisitor("//description", null));
+        JsonXpath.findAndUpdateMultiple(expected, ipsets, new RemoveFieldVisitor(ipsets, null));
+
+        StreamingJsonXpathRewriter rewriter = new StreamingJsonXpathRewriter()
+                .replace("//ruleType", ruleTypes)
+                .replace(renamedRules, names)
+                .remove("//description")
+                .remove(ipsets);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long changes = rewriter.rewrite(new ByteArrayInputStream(edgeFirewall.getBytes("UTF-8")), out);
+
+        assertEquals(expected, getJsonNode(out.toString("UTF-8")));
+        assertEquals(2 + 1 + 3 + 4, changes);
+
+        // Array elements are replaced in place, and the first rule to change a value wins
+        Map<String, String> vms = new HashMap<>();
+        vms.put("vm-43", "VM");
+        out.reset();
+        changes = new StreamingJsonXpathRewriter()
+                .replace("/firewallRules/firewallRules/source/groupingObjectId", vms)
+                .remove("//groupingObjectId")
+                .rewrite(new ByteArrayInputStream(edgeFirewall.getBytes("UTF-8")), out);
+        JsonNode rewritten = getJsonNode(out.toString("UTF-8"));
+        assertEquals("[[], [\"VM\"]]",
+                JsonXpath.findAndUpdateMultiple(rewritten, "/firewallRules/firewallRules/source",
+                        NullJsonFilter.instance()).stream()
+                        .map(source -> String.valueOf(source.get("groupingObjectId")))
+                        .collect(Collectors.toList()).toString());
+        assertEquals(6 + 3, changes);
+    }
+
+    /**
+     * Positional predicates select by position within the array, the same way in every evaluation mode
+     */
+    @Test
+    public void testXpathPositionalPredicates() throws Exception {
+        String vcdAdminConfig = IOUtils.toString(TestJsonXpath.class.getResourceAsStream("vcdAdminConfig.json"),
+                "UTF-8");
+        JsonNode jn = getJsonNode(vcdAdminConfig);
+
+        String[] xpaths = new String[] {
+            "/rmq/hosts[1]/host",
+            "//hosts[last()]/host",
+            "//hosts[ position() < 2 ]/host",
+            "//hosts[position() >= 1]/port",
+            "//hosts[position()=0]",
+            "/nsx[last()]/userName",
+            "//hosts[5]",
+            "/rmq[0]",
+            "//host[last()]",
+        };
+
+        String[] expectedResults = new String[] {
+            "[\"110.244.199.133\"]",
+            "[\"20.200.20.200\"]",
+            "[\"10.144.99.33\", \"110.244.199.133\"]",
+            "[\"25678\"]",
+            "[{\"host\":\"10.144.99.33\",\"port\":\"15678\"}]",
+            "[\"NSX USER NAME2\"]",
+            "[]",
+            "[]",
+            "[]",
+        };
+
+        JsonXpathQuerySet querySet = new JsonXpathQuerySet();
+        for (String xpath : xpaths) {
+            querySet.add(xpath);
+        }
+        Map<String, List<JsonNode>> allResults = querySet.evaluate(jn);
+
+        for (int i = 0; i < xpaths.length; i++) {
+            String xpath = xpaths[i];
+            CompiledXpath compiled = JsonXpath.compile(xpath);
+            assertTrue(compiled.getSteps().stream().anyMatch(step -> step.isPositional()));
+            quickAssertXpathResult(xpath, expectedResults[i], jn);
+            assertEquals(xpath, expectedResults[i], compiled.findAll(jn).toString());
+            assertEquals(xpath, expectedResults[i], allResults.get(xpath).toString());
+            assertEquals(xpath, expectedResults[i], StreamingJsonXpath.findAll(
+                    TestJsonXpath.class.getResourceAsStream("vcdAdminConfig.json"), compiled).toString());
+        }
+
+        assertEquals("\"20.200.20.200\"", JsonXpath.find(jn, "rmq/hosts[last()]/host").toString());
+        assertEquals("\"10.144.99.33\"", JsonXpath.find(jn, "rmq/hosts[position() < 2]/host").toString());
+        assertEquals("", JsonXpath.find(jn, "rmq/hosts[position() > 2]/host").toString());
+    }
+
+    /**
+     * find() looks each child step up directly, and only searches at any depth for '//'
+     */
+    @Test
+    public void testXpathFindChildLookup() throws Exception {
+        String vcdAdminConfig = IOUtils.toString(TestJsonXpath.class.getResourceAsStream("vcdAdminConfig.json"),
+                "UTF-8");
+        JsonNode jn = getJsonNode(vcdAdminConfig);
+
+        String[] xpaths = new String[] {
+            "vcd/userName",
+            "/nsx/userName",
+            "rmq/hosts[0]/host",
+            "rmq/hosts/port",
+            "/userName",
+            "//userName",
+            "rmq/host",
+            "rmq//host",
+            "//hosts[2]/port",
+            "presto/configured/url",
+        };
+
+        String[] expectedResults = new String[] {
+            "\"VCD USER NAME\"",
+            "\"NSX USER NAME\"",
+            "\"10.144.99.33\"",
+            "\"15678\"",
+            "",
+            "\"VCD USER NAME\"",
+            "",
+            "\"10.144.99.33\"",
+            "\"25678\"",
+            "",
+        };
+
+        for (int i = 0; i < xpaths.length; i++) {
+            JsonNode res = JsonXpath.find(jn, xpaths[i]);
+            assertEquals("Incorrect result for xpath: " + xpaths[i], expectedResults[i], res.toString());
+        }
+
+        // No tree, no match
+        assertTrue(JsonXpath.find(null, "//orgName").isMissingNode());
+        assertTrue(JsonXpath.find(null, "/clouds").isMissingNode());
+        assertFalse(JsonXpath.exists(null, "//orgName"));
+    }
+
+    /**
+     * Jackson 2 trees give the same results as Jackson 1 trees
+     */
+    @Test
+    public void testXpathOnJackson2Trees() throws Exception {
+        com.fasterxml.jackson.databind.ObjectMapper mapper2 = new com.fasterxml.jackson.databind.ObjectMapper();
+        String[][] cases = new String[][] {
+            { "edgeFirewall.json", "//ruleId", "/firewallRules/firewallRules/name", "//groupingObjectId",
+                    "//firewallRules/firewallRules[value.get('ruleId') > 131073]/name", "//ruleId[value <= 131073 + 0]",
+                    "//firewallRules/firewallRules[last()]/ruleTag" },
+            { "natRulesArray.json", "/originalAddress", "//description" },
+            { "vcdAdminConfig.json", "//host", "/rmq/hosts[position() > 0]/port", "/nsx/url" },
+        };
+
+        for (String[] testCase : cases) {
+            String json = IOUtils.toString(TestJsonXpath.class.getResourceAsStream(testCase[0]), "UTF-8");
+            JsonNode jn = getJsonNode(json);
+            com.fasterxml.jackson.databind.JsonNode jn2 = mapper2.readTree(json);
+            for (int i = 1; i < testCase.length; i++) {
+                String xpath = testCase[i];
+                assertEquals("Incorrect Jackson 2 results for Xpath:" + xpath,
+                        JsonXpath.findAndUpdateMultiple(jn, xpath, NullJsonFilter.instance()).toString(),
+                        Jackson2JsonXpath.findAll(jn2, xpath).toString());
+                assertEquals("Incorrect Jackson 2 results without a visitor for Xpath:" + xpath,
+                        JsonXpath.findAndUpdateMultiple(jn, xpath, null).toString(),
+                        Jackson2JsonXpath.findAndUpdateMultiple(jn2, xpath, null).toString());
+                assertEquals("Incorrect Jackson 2 result for Xpath:" + xpath,
+                        JsonXpath.find(jn, xpath.substring(1)).toString(),
+                        Jackson2JsonXpath.find(jn2, xpath.substring(1)).toString());
+            }
+        }
+
+        // Visitors update Jackson 2 trees in place
+        String edgeFirewall = IOUtils.toString(TestJsonXpath.class.getResourceAsStream("edgeFirewall.json"), "UTF-8");
+        JsonNode jn = getJsonNode(edgeFirewall);
+        com.fasterxml.jackson.databind.JsonNode jn2 = mapper2.readTree(edgeFirewall);
+        Map<String, String> replacements = new HashMap<>();
+        replacements.put("user", "USER");
+        replacements.put("vse", "VSE");
+        for (String xpath : new String[] { "//ruleType", "//vnicGroupId" }) {
+            ReplaceTextValueVisitor visitor = new ReplaceTextValueVisitor(xpath, replacements);
+            JsonXpath.findAndUpdateMultiple(jn, xpath, visitor);
+            Jackson2JsonXpath.findAndUpdateMultiple(jn2, xpath, visitor);
+        }
+        RemoveFieldVisitor remover = new RemoveFieldVisitor("//description", null);
+        JsonXpath.findAndUpdateMultiple(jn, "//description", remover);
+        Jackson2JsonXpath.findAndUpdateMultiple(jn2, "//description", remover);
+        assertEquals(6, remover.getRemovedConstructs().size());
+        assertEquals(jn.toString(), jn2.toString());
+    }
+
+    /**
+     * Jettison objects are queried and flattened without going through their JSON text
+     */
+    @Test
+    public void testXpathOnJettisonObjects() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        String[][] cases = new String[][] {
+            { "edgeFirewall.json", "//ruleId", "/firewallRules/firewallRules", "//enabled", "//groupingObjectId" },
+            { "orgVdcList.json", "//orgName", "/clouds/vcloud" },
+            { "vcdAdminConfig.json", "//host", "/rmq" },
+        };
+        for (String[] testCase : cases) {
+            JSONObject json = new JSONObject(
+                    IOUtils.toString(TestJsonXpath.class.getResourceAsStream(testCase[0]), "UTF-8"));
+            JsonNode reparsed = mapper.readTree(json.toString());
+            for (int i = 1; i < testCase.length; i++) {
+                assertEquals("Incorrect Jettison results for Xpath:" + testCase[i],
+                        JsonXpath.findAndUpdateMultiple(reparsed, testCase[i], NullJsonFilter.instance()),
+                        JsonXpath.findMultiple(json, testCase[i], NullJsonFilter.instance()));
+            }
+        }
+
+        JSONObject json = new JSONObject("{\"A\":{\"B\":{\"C\":10, \"D\":[1.5, true, null, \"x/y\"]}}, \"E\":12345678901}");
+        Map<String, Object> flattened = JsonXpath.flattenJSONObjectToMap(json);
+        assertEquals("10", flattened.get("A.B.C"));
+        assertEquals("12345678901", flattened.get("E"));
+        assertEquals("x/y", flattened.get("A.B.D"));
+        assertEquals(3, flattened.size());
+    }
+
+    /**
+     * The same queries and visitors run in place on Jackson 1, Jackson 2, Jettison and Map / List trees
+     */
+    @Test
+    public void testXpathOnAdaptedTrees() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        com.fasterxml.jackson.databind.ObjectMapper mapper2 = new com.fasterxml.jackson.databind.ObjectMapper();
+        String[][] cases = new String[][] {
+            { "edgeFirewall.json", "//ruleId", "/firewallRules/firewallRules/name", "//groupingObjectId",
+                    "//firewallRules/firewallRules[value.get('ruleId') > 131073]/name",
+                    "//firewallRules/firewallRules[last()]/ruleTag", "/firewallRules/firewallRules" },
+            { "natRulesArray.json", "/originalAddress", "//description" },
+            { "vcdAdminConfig.json", "//host", "/rmq/hosts[position() > 0]/port", "/nsx/url" },
+        };
+
+        for (String[] testCase : cases) {
+            String json = IOUtils.toString(TestJsonXpath.class.getResourceAsStream(testCase[0]), "UTF-8");
+            JsonNode jn = getJsonNode(json);
+            Object jettison = json.trim().startsWith("[") ? new JSONArray(json) : new JSONObject(json);
+            Object collections = mapper.readValue(json, Object.class);
+            for (int i = 1; i < testCase.length; i++) {
+                String xpath = testCase[i];
+                String expected = JsonXpath.findAndUpdateMultiple(jn, xpath, NullJsonFilter.instance()).toString();
+                assertEquals("Incorrect Jackson 1 adapter results for Xpath:" + xpath, expected,
+                        JsonTreeXpath.findAll(JsonTreeAdapter.jackson1(), jn, xpath).toString());
+                assertEquals("Incorrect Jackson 2 adapter results for Xpath:" + xpath, expected,
+                        JsonTreeXpath.findAll(JsonTreeAdapter.jackson2(), mapper2.readTree(json), xpath).toString());
+                assertEquals("Incorrect Jettison adapter results for Xpath:" + xpath, expected,
+                        toJackson1(JsonTreeAdapter.jettison(), JsonTreeXpath.findAll(JsonTreeAdapter.jettison(), jettison, xpath)));
+                assertEquals("Incorrect Map / List adapter results for Xpath:" + xpath, expected,
+                        toJackson1(JsonTreeAdapter.collections(), JsonTreeXpath.findAll(JsonTreeAdapter.collections(), collections, xpath)));
+
+                String first = JsonXpath.find(jn, xpath.substring(1)).toString();
+                Object found = JsonTreeXpath.find(JsonTreeAdapter.collections(), collections, xpath.substring(1));
+                assertEquals("Incorrect Map / List adapter result for Xpath:" + xpath, first,
+                        found == null ? MissingNode.getInstance().toString() : JsonTreeAdapter.collections().toJackson1(found).toString());
+            }
+        }
+
+        // Visitors update the trees in place, through the adapter
+        String edgeFirewall = IOUtils.toString(TestJsonXpath.class.getResourceAsStream("edgeFirewall.json"), "UTF-8");
+        JsonNode jn = getJsonNode(edgeFirewall);
+        JSONObject jettison = new JSONObject(edgeFirewall);
+        Object collections = mapper.readValue(edgeFirewall, Object.class);
+        Map<String, String> replacements = new HashMap<>();
+        replacements.put("user", "USER");
+        replacements.put("vse", "VSE");
+        for (String xpath : new String[] { "//ruleType", "//vnicGroupId" }) {
+            ReplaceTextValueVisitor visitor = new ReplaceTextValueVisitor(xpath, replacements);
+            JsonXpath.findAndUpdateMultiple(jn, xpath, visitor);
+            JsonTreeXpath.findAndUpdateMultiple(JsonTreeAdapter.jettison(), jettison, xpath, visitor::visit);
+            JsonTreeXpath.findAndUpdateMultiple(JsonTreeAdapter.collections(), collections, xpath, visitor::visit);
+        }
+        RemoveFieldVisitor remover = new RemoveFieldVisitor("//description", null);
+        JsonXpath.findAndUpdateMultiple(jn, "//description", remover);
+        JsonTreeXpath.findAndUpdateMultiple(JsonTreeAdapter.jettison(), jettison, "//description", remover::visit);
+        JsonTreeXpath.findAndUpdateMultiple(JsonTreeAdapter.collections(), collections, "//description", remover::visit);
+        assertEquals(9, remover.getRemovedConstructs().size());
+        assertEquals(jn.toString(), JsonTreeAdapter.jettison().toJackson1(jettison).toString());
+        assertEquals(jn.toString(), JsonTreeAdapter.collections().toJackson1(collections).toString());
+        assertTrue(JsonTreeXpath.findAll(JsonTreeAdapter.jettison(), jettison, "//description").isEmpty());
+    }
+
+    private static <N> String toJackson1(JsonTreeAdapter<N> adapter, List<N> nodes) {
+        List<JsonNode> ret = new ArrayList<>();
+        for (N node : nodes)
+            ret.add(adapter.toJackson1(node));
+        return ret.toString();
+    }
+
+    /**
+     * Replacements and removals edit the selected nodes only, in place, and keep the order of everything else
+     */
+    @Test
+    public void testXpathBatchedMutation() throws Exception {
+        String json = "{\"list\":[\"a\",\"b\",\"a\",\"c\"],\"x\":\"a\",\"y\":1}";
+        Map<String, String> replacements = new HashMap<>();
+        replacements.put("a", "A");
+        replacements.put("c", "C");
+
+        JsonNode jn = getJsonNode(json);
+        JsonXpath.findAndUpdateMultiple(jn, "/list", new ReplaceTextValueVisitor("/list", replacements));
+        JsonXpath.findAndUpdateMultiple(jn, "/x", new ReplaceTextValueVisitor("/x", replacements));
+        assertEquals("{\"list\":[\"A\",\"b\",\"A\",\"C\"],\"x\":\"A\",\"y\":1}", jn.toString());
+
+        com.fasterxml.jackson.databind.JsonNode jn2 = new com.fasterxml.jackson.databind.ObjectMapper().readTree(json);
+        Jackson2JsonXpath.findAndUpdateMultiple(jn2, "/list", new ReplaceTextValueVisitor("/list", replacements));
+        assertEquals("{\"list\":[\"A\",\"b\",\"A\",\"C\"],\"x\":\"a\",\"y\":1}", jn2.toString());
+
+        Object collections = new ObjectMapper().readValue(json, Object.class);
+        ReplaceTextValueVisitor replacer = new ReplaceTextValueVisitor("/x", replacements);
+        JsonTreeXpath.findAndUpdateMultiple(JsonTreeAdapter.collections(), collections, "/x", replacer.asTreeVisitor());
+        assertEquals("{list=[a, b, a, c], x=A, y=1}", collections.toString());
+
+        // Only the selected elements are removed, not their siblings of the same text
+        jn = getJsonNode(json);
+        RemoveFieldVisitor remover = new RemoveFieldVisitor("/list", null);
+        JsonXpath.findAndUpdateMultiple(jn, "/list[position() < 2]", remover);
+        assertEquals("[\"a\",\"c\"]", jn.get("list").toString());
+        assertEquals(Arrays.asList("\"a\"", "\"b\""), remover.getRemovedConstructs());
+
+        remover = new RemoveFieldVisitor("/list", null);
+        JsonTreeXpath.findAndUpdateMultiple(JsonTreeAdapter.collections(), collections, "/list[position() >= 2]",
+                remover.asTreeVisitor());
+        assertEquals("{list=[a, b], x=A, y=1}", collections.toString());
+
+        JSONObject jettison = new JSONObject("{\"list\":[\"a\",\"b\",\"a\",null,\"c\"]}");
+        remover = new RemoveFieldVisitor("/list", null);
+        JsonTreeXpath.findAndUpdateMultiple(JsonTreeAdapter.jettison(), jettison, "/list[position() > 0]",
+                remover.asTreeVisitor());
+        assertEquals("{\"list\":[\"a\"]}", jettison.toString());
+
+        // Removals through an index keep it up to date
+        String edgeFirewall = IOUtils.toString(TestJsonXpath.class.getResourceAsStream("edgeFirewall.json"), "UTF-8");
+        jn = getJsonNode(edgeFirewall);
+        JsonXpathIndex index = JsonXpathIndex.build(jn);
+        remover = new RemoveFieldVisitor("//firewallRules/firewallRules", null);
+        JsonXpath.findAndUpdateMultiple(index, "//firewallRules/firewallRules[position() < 2]", remover);
+        assertEquals(2, remover.getRemovedConstructs().size());
+        assertEquals("[131073]", JsonXpath.findAndUpdateMultiple(index, "//ruleId", NullJsonFilter.instance()).toString());
+        assertEquals(JsonXpathIndex.build(jn).size(), index.size());
+
+        // Replacing every element of a large array keeps it in order
+        ArrayNode large = JsonNodeFactory.instance.arrayNode();
+        Map<String, String> renames = new HashMap<>();
+        for (int i = 0; i < 100_000; i++) {
+            large.add("ipset-" + i);
+            renames.put("ipset-" + i, "IPSET-" + i);
+        }
+        ObjectNode root = JsonNodeFactory.instance.objectNode();
+        root.put("groupingObjectId", large);
+        JsonXpath.findAndUpdateMultiple(root, "/groupingObjectId", new ReplaceTextValueVisitor("/groupingObjectId", renames));
+        assertEquals(100_000, large.size());
+        assertEquals("IPSET-0", large.get(0).asText());
+        assertEquals("IPSET-99999", large.get(99_999).asText());
+    }
+
+    /**
+     * Equal but distinct containers stay distinct: each selected node is visited with its own parent
+     */
+    @Test
+    public void testXpathIdentityOfParents() throws Exception {
+        JsonNode jn = getJsonNode("{\"rules\":[{\"x\":\"a\",\"l\":[\"v\"]},{\"x\":\"a\",\"l\":[\"v\"]}]}");
+        List<JsonNode> parents = new ArrayList<>();
+        JsonXpathVisitor recorder = (parent, currentNodeToSelect) -> parents.add(parent);
+
+        assertEquals(2, JsonXpath.findAndUpdateMultiple(jn, "/rules/x", recorder).size());
+        assertEquals(2, parents.size());
+        assertSame(jn.get("rules").get(0), parents.get(0));
+        assertSame(jn.get("rules").get(1), parents.get(1));
+
+        parents.clear();
+        assertEquals(2, JsonXpath.findAndUpdateMultiple(jn, "//l", recorder).size());
+        assertSame(jn.get("rules").get(0).get("l"), parents.get(0));
+        assertSame(jn.get("rules").get(1).get("l"), parents.get(1));
+
+        // Edits go to the parent of the node visited, not to an equal one
+        Map<String, String> replacements = new HashMap<>();
+        replacements.put("v", "w");
+        JsonXpath.findAndUpdateMultiple(jn, "/rules/l[position() = 0]", new ReplaceTextValueVisitor("/rules/l", replacements));
+        assertEquals("{\"rules\":[{\"x\":\"a\",\"l\":[\"w\"]},{\"x\":\"a\",\"l\":[\"w\"]}]}", jn.toString());
+        JsonXpath.findAndUpdateMultiple(jn.get("rules").get(1), "/l", new RemoveFieldVisitor("/l", null));
+        assertEquals("{\"rules\":[{\"x\":\"a\",\"l\":[\"w\"]},{\"x\":\"a\",\"l\":[]}]}", jn.toString());
+    }
+
+    /**
+     * Tracing records each step and the filter outcome of each candidate, with its path; nothing once disabled
+     */
+    @Test
+    public void testXpathTracing() throws Exception {
+        JsonNode jn = getJsonNode("{\"rules\":[{\"id\":1,\"src\":{\"g\":\"a\"}},{\"id\":2,\"src\":{\"x\":{\"g\":\"b\"}}}]}");
+        String xpath = "/rules[value.get('id') > 1]/src//g";
+        List<JsonXpathTracer.Event> events = new ArrayList<>();
+
+        JsonXpathTracing.enable(events::add);
+        List<JsonNode> found;
+        try {
+            found = JsonXpath.findAndUpdateMultiple(jn, xpath, null);
+        } finally {
+            JsonXpathTracing.disable();
+        }
+        assertEquals("[\"b\"]", found.toString());
+
+        List<String> trace = new ArrayList<>();
+        for (JsonXpathTracer.Event event : events) {
+            trace.add(event.toString());
+        }
+        assertEquals(Arrays.asList(
+                "STEP /rules[value.get('id') > 1] /",
+                "CANDIDATE /rules[value.get('id') > 1] /rules[0] rejected",
+                "CANDIDATE /rules[value.get('id') > 1] /rules[1] accepted",
+                "STEP /src /rules[1]",
+                "CANDIDATE /src /rules[1]/src accepted",
+                "STEP //g /rules[1]/src",
+                "CANDIDATE //g /rules[1]/src/x/g accepted"), trace);
+
+        JsonXpathTracer.Event last = events.get(events.size() - 1);
+        assertEquals(2, last.getStepIndex());
+        assertSame(found.get(0), last.getNode());
+        assertSame(jn.get("rules").get(1).get("src").get("x"), last.getParent());
+
+        events.clear();
+        assertFalse(JsonXpathTracing.isEnabled());
+        assertEquals(found, JsonXpath.findAndUpdateMultiple(jn, xpath, null));
+        assertTrue(events.isEmpty());
+
+        // Adapted trees are traced the same, with their nodes converted for the events
+        JSONObject jettison = new JSONObject(jn.toString());
+        JsonXpathTracing.enable(events::add);
+        List<Object> foundInPlace;
+        try {
+            foundInPlace = JsonTreeXpath.findAll(JsonTreeAdapter.jettison(), jettison, xpath);
+        } finally {
+            JsonXpathTracing.disable();
+        }
+        assertEquals(Arrays.asList("b"), foundInPlace);
+        List<String> adaptedTrace = new ArrayList<>();
+        for (JsonXpathTracer.Event event : events) {
+            adaptedTrace.add(event.toString());
+        }
+        assertEquals(trace, adaptedTrace);
+    }
+
+    /**
+     * Visitors steer the traversal by their VisitResult: skipped subtrees are not evaluated, STOP ends the traversal
+     */
+    @Test
+    public void testXpathVisitResult() throws Exception {
+        JsonNode jn = getJsonNode("{\"rules\":[{\"enabled\":true,\"src\":[\"a\",\"b\"]},"
+                + "{\"enabled\":false,\"src\":[\"c\"]},{\"enabled\":true,\"src\":[\"d\",\"e\"]}]}");
+        List<String> visited = new ArrayList<>();
+
+        JsonXpathNodeVisitor enabledOnly = new JsonXpathNodeVisitor() {
+            @Override
+            public VisitResult visit(JsonNode parent, JsonNode currentNodeToSelect, JsonTreeMutator mutator) {
+                visited.add(currentNodeToSelect.getTextValue());
+                return VisitResult.CONTINUE;
+            }
+
+            @Override
+            public VisitResult enter(Step step, JsonNode parent, JsonNode node) {
+                return node.get("enabled").asBoolean() ? VisitResult.CONTINUE : VisitResult.SKIP_SUBTREE;
+            }
+        };
+        assertEquals("[\"a\", \"b\", \"d\", \"e\"]", JsonXpath.traverse(jn, "/rules/src", enabledOnly).toString());
+        assertEquals(Arrays.asList("a", "b", "d", "e"), visited);
+
+        // Nodes already selected with the one stopping the traversal are still returned
+        visited.clear();
+        JsonXpathNodeVisitor untilB = (parent, currentNodeToSelect, mutator) -> {
+            visited.add(currentNodeToSelect.getTextValue());
+            return "b".equals(currentNodeToSelect.getTextValue()) ? VisitResult.STOP : VisitResult.CONTINUE;
+        };
+        assertEquals("[\"a\", \"b\"]", JsonXpath.traverse(jn, "/rules/src", untilB).toString());
+        assertEquals(Arrays.asList("a", "b"), visited);
+
+        // The legacy visitor contract, through the adapter
+        visited.clear();
+        JsonXpathVisitor legacy = (parent, currentNodeToSelect) -> {
+            if ("a".equals(currentNodeToSelect.getTextValue()))
+                throw new XpathVisitorException("skipped");
+            if ("d".equals(currentNodeToSelect.getTextValue()))
+                throw new TraversalStopException();
+            visited.add(currentNodeToSelect.getTextValue());
+            return true;
+        };
+        assertEquals("[\"a\", \"b\", \"c\", \"d\", \"e\"]", JsonXpath.findAndUpdateMultiple(jn, "/rules/src", legacy).toString());
+        assertEquals(Arrays.asList("b", "c"), visited);
+
+        // TraversalStopException ends the visits, not the selection, in every engine
+        String all = "[\"a\", \"b\", \"c\", \"d\", \"e\"]";
+        visited.clear();
+        JsonXpathVisitor untilFirst = (parent, currentNodeToSelect) -> {
+            visited.add(currentNodeToSelect.getTextValue());
+            throw new TraversalStopException();
+        };
+        assertEquals(all, JsonXpath.findAndUpdateMultiple(jn, "/rules/src", untilFirst).toString());
+        assertEquals(Arrays.asList("a"), visited);
+
+        visited.clear();
+        assertEquals(all, JsonXpath.withParallelism(ForkJoinPool.commonPool())
+                .findAndUpdateMultiple(jn, "/rules/src", untilFirst).toString());
+        assertEquals(Arrays.asList("a"), visited);
+
+        visited.clear();
+        Map<String, List<JsonNode>> queries = new JsonXpathQuerySet().add("/rules/src", untilFirst).evaluate(jn);
+        assertEquals(all, queries.get("/rules/src").toString());
+        assertEquals(Arrays.asList("a"), visited);
+
+        visited.clear();
+        JsonTreeXpathVisitor<JsonNode> treeUntilFirst = (adapter, parent, currentNodeToSelect) -> {
+            visited.add(currentNodeToSelect.getTextValue());
+            throw new TraversalStopException();
+        };
+        assertEquals(all, JsonTreeXpath.findAndUpdateMultiple(JsonTreeAdapter.jackson1(), jn, "/rules/src", treeUntilFirst)
+                .toString());
+        assertEquals(Arrays.asList("a"), visited);
+
+        JsonXpathNodeVisitor adapted = JsonXpathNodeVisitor.of(untilFirst);
+        visited.clear();
+        assertEquals(VisitResult.CONTINUE, adapted.visit(null, TextNode.valueOf("d"), null));
+        assertEquals(VisitResult.CONTINUE, adapted.visit(null, TextNode.valueOf("e"), null));
+        assertEquals(Arrays.asList("d"), visited);
+    }
+
+    /**
+     * A descendant step selects a matching field without descending into it, in the order of findParents/findValues
+     */
+    @Test
+    public void testXpathDescendantWalk() throws Exception {
+        JsonNode jn = getJsonNode("{\"a\":{\"a\":1,\"b\":{\"a\":2}},\"b\":[{\"a\":{\"c\":{\"a\":3}}},"
+                + "{\"x\":{\"a\":4}}],\"c\":{\"d\":{\"a\":5},\"a\":6}}");
+        List<JsonNode> parents = new ArrayList<>();
+        JsonXpathVisitor recorder = (parent, currentNodeToSelect) -> parents.add(parent);
+
+        List<JsonNode> found = JsonXpath.findAndUpdateMultiple(jn, "//a", recorder);
+        assertEquals("[{\"a\":1,\"b\":{\"a\":2}}, {\"c\":{\"a\":3}}, 4, 5, 6]", found.toString());
+
+        List<JsonNode> values = jn.findValues("a");
+        List<JsonNode> expectedParents = jn.findParents("a");
+        assertEquals(values.size(), found.size());
+        assertEquals(expectedParents.size(), parents.size());
+        for (int i = 0; i < values.size(); i++) {
+            assertSame(values.get(i), found.get(i));
+            assertSame(expectedParents.get(i), parents.get(i));
+        }
+
+        // Below a match, a further step still finds the nested fields
+        assertEquals("[1]", JsonXpath.findAndUpdateMultiple(jn, "//a/a", null).toString());
+        assertEquals("[1, 2, 3]", JsonXpath.findAndUpdateMultiple(jn, "//a//a", null).toString());
+    }
+
+    /**
+     * Mutating visitors edit the tree the same through a query set as through one findAndUpdateMultiple per query,
+     * and get the nodes of one parent in one batch
+     */
+    @Test
+    public void testXpathQuerySetMutations() throws Exception {
+        String edgeFirewall = IOUtils.toString(TestJsonXpath.class.getResourceAsStream("edgeFirewall.json"), "UTF-8");
+        Map<String, String> replacements = new HashMap<>();
+        replacements.put("user", "USER");
+        replacements.put("vse", "VSE");
+        String[] xpaths = new String[] { "//ruleType", "//description",
+                "/firewallRules/firewallRules[value.get('ruleId') > 131073]", "/globalConfig/tcpTimeoutOpen" };
+
+        JsonNode expected = getJsonNode(edgeFirewall);
+        List<RemoveFieldVisitor> expectedRemovers = new ArrayList<>();
+        Map<String, List<JsonNode>> expectedResults = new LinkedHashMap<>();
+        for (String xpath : xpaths) {
+            JsonXpathVisitor visitor;
+            if (xpath.equals("//ruleType")) {
+                visitor = new ReplaceTextValueVisitor(xpath, replacements);
+            } else {
+                RemoveFieldVisitor remover = new RemoveFieldVisitor(xpath, null);
+                expectedRemovers.add(remover);
+                visitor = remover;
+            }
+            expectedResults.put(xpath, JsonXpath.findAndUpdateMultiple(expected, xpath, visitor));
+        }
+
+        JsonNode jn = getJsonNode(edgeFirewall);
+        List<RemoveFieldVisitor> removers = new ArrayList<>();
+        List<Integer> batches = new ArrayList<>();
+        JsonXpathQuerySet queries = new JsonXpathQuerySet();
+        for (String xpath : xpaths) {
+            if (xpath.equals("//ruleType")) {
+                queries.add(xpath, new ReplaceTextValueVisitor(xpath, replacements));
+                continue;
+            }
+            RemoveFieldVisitor remover = new RemoveFieldVisitor(xpath, null);
+            removers.add(remover);
+            queries.add(xpath, new MutatingJsonXpathVisitor() {
+                @Override
+                public boolean visit(JsonNode parent, JsonNode currentNodeToSelect, JsonTreeMutator mutator)
+                        throws XpathVisitorException, TraversalStopException {
+                    return remover.visit(parent, currentNodeToSelect, mutator);
+                }
+
+                @Override
+                public void visitAll(List<JsonNode> parents, List<JsonNode> nodes, JsonTreeMutator mutator) {
+                    batches.add(nodes.size());
+                    remover.visitAll(parents, nodes, mutator);
+                }
+            });
+        }
+        Map<String, List<JsonNode>> results = queries.evaluate(jn);
+
+        assertEquals(expectedResults.toString(), results.toString());
+        assertEquals(expected.toString(), jn.toString());
+        assertTrue(jn.findValues("description").isEmpty());
+        for (int i = 0; i < removers.size(); i++) {
+            assertEquals(expectedRemovers.get(i).getRemovedConstructs(), removers.get(i).getRemovedConstructs());
+        }
+        // One description per rule; the rules removed all have the rules array as their parent
+        int removedRules = expectedResults.get(xpaths[2]).size();
+        assertTrue(removedRules > 1);
+        assertEquals(Arrays.asList(1, 1, 1, removedRules, 1), batches);
+    }
+
     private void quickAssertXpathResult(String xpath, String expectedResultString, JsonNode jn) {
         List<JsonNode> res = JsonXpath.findAndUpdateMultiple(
                 jn, xpath, new DebugJsonXpathVisitor(xpath));